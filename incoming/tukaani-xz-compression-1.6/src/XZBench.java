@@ -0,0 +1,542 @@
+/*
+ * XZBench
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Random;
+import org.tukaani.xz.*;
+import org.tukaani.xz.check.Check;
+import org.tukaani.xz.delta.DeltaDecoder;
+import org.tukaani.xz.delta.DeltaEncoder;
+import org.tukaani.xz.simple.*;
+
+/**
+ * Measures the speed of the main compression and decompression paths.
+ * <p>
+ * Arguments: [-t seconds] [-s MiB] [name-prefix] ...
+ * <p>
+ * <code>-t</code> sets how long each benchmark is run (default 1 second,
+ * plus the same amount of warm-up). <code>-s</code> sets the size of
+ * the generated test data (default 4 MiB). If name prefixes are given,
+ * only the benchmarks whose names start with one of them are run, for
+ * example, <code>xz-dec-p6/ check- seek</code>.
+ * <p>
+ * The test data is generated with a fixed seed so that the results are
+ * comparable between runs, library versions, and JVMs. There are four
+ * kinds of data: text, binary, random, and repetitive. The benchmarks are:
+ * <ul>
+ *   <li><code>xz-enc-pN/data</code> and <code>xz-dec-pN/data</code>:
+ *       <code>XZOutputStream</code> and <code>XZInputStream</code> with
+ *       presets 0-9</li>
+ *   <li><code>lzma2-hc4-fast/data</code> etc.: LZMA2 with the match finders
+ *       <code>MF_HC4</code>, <code>MF_BT4</code>, and <code>MF_HB4</code>
+ *       and the modes <code>MODE_FAST</code> and <code>MODE_NORMAL</code>
+ *       (<code>MF_HB4</code> supports only <code>MODE_FAST</code>)</li>
+ *   <li><code>check-crc32</code>, <code>check-crc64</code>,
+ *       <code>check-sha256</code>: integrity checks</li>
+ *   <li><code>delta-enc</code> and <code>delta-dec</code>: Delta filter</li>
+ *   <li><code>bcj-x86</code>, <code>bcj-powerpc</code>, etc.:
+ *       BCJ filters from <code>org.tukaani.xz.simple</code></li>
+ *   <li><code>seek</code> and <code>seek-cached</code>: random seeks with
+ *       <code>SeekableXZInputStream</code>, reading 4 KiB after each seek,
+ *       without and with a <code>BlockCache</code></li>
+ * </ul>
+ * <p>
+ * The throughput is given in MB/s of uncompressed data. The allocation
+ * rate is measured with the same per-thread counter of the HotSpot
+ * <code>ThreadMXBean</code> that is used by the GC profiler of JMH.
+ * It is shown as <code>n/a</code> if the JVM doesn't support it.
+ * Running with <code>-Xmx1g</code> or more is recommended because
+ * the presets 7-9 need a lot of memory.
+ */
+class XZBench {
+    private static final String[] DATA_NAMES = {
+            "text", "binary", "random", "repetitive" };
+
+    private static final int SEEK_READ_SIZE = 4096;
+    private static final int SEEK_BLOCK_SIZE = 256 << 10;
+
+    private static long benchTime = 1000;
+    private static String[] prefixes = null;
+
+    /**
+     * One benchmark. <code>run</code> is called repeatedly and each call
+     * processes <code>bytesPerOp</code> bytes of uncompressed data.
+     */
+    private static abstract class Bench {
+        final String name;
+        final int bytesPerOp;
+
+        Bench(String name, int bytesPerOp) {
+            this.name = name;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        abstract void run() throws Exception;
+    }
+
+    /**
+     * Output stream that throws the data away. Writing to a
+     * <code>ByteArrayOutputStream</code> would distort the results.
+     */
+    private static class NullOutputStream extends OutputStream {
+        public void write(int b) {}
+        public void write(byte[] buf, int off, int len) {}
+    }
+
+    /**
+     * SeekableInputStream that reads from a byte array.
+     */
+    private static class ArraySeekableInputStream
+            extends SeekableInputStream {
+        private final byte[] buf;
+        private int pos = 0;
+
+        ArraySeekableInputStream(byte[] buf) {
+            this.buf = buf;
+        }
+
+        public int read() {
+            return pos < buf.length ? buf[pos++] & 0xFF : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (pos >= buf.length)
+                return len == 0 ? 0 : -1;
+
+            len = Math.min(len, buf.length - pos);
+            System.arraycopy(buf, pos, b, off, len);
+            pos += len;
+            return len;
+        }
+
+        public long length() {
+            return buf.length;
+        }
+
+        public long position() {
+            return pos;
+        }
+
+        public void seek(long pos) throws IOException {
+            if (pos < 0)
+                throw new IOException("Negative seek position");
+
+            this.pos = (int)Math.min(pos, buf.length);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int dataSize = 4 << 20;
+        ArrayList prefixList = new ArrayList();
+
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("-t"))
+                benchTime = (long)(Double.parseDouble(args[++i]) * 1000);
+            else if (args[i].equals("-s"))
+                dataSize = Integer.parseInt(args[++i]) << 20;
+            else
+                prefixList.add(args[i]);
+        }
+
+        if (!prefixList.isEmpty())
+            prefixes = (String[])prefixList.toArray(
+                    new String[prefixList.size()]);
+
+        System.out.println(pad("benchmark", -24) + pad("MB/s", 10)
+                           + pad("alloc MB/s", 12) + pad("alloc B/op", 14)
+                           + pad("us/op", 12));
+
+        byte[][] data = new byte[DATA_NAMES.length][];
+        for (int i = 0; i < DATA_NAMES.length; ++i)
+            data[i] = generate(DATA_NAMES[i], dataSize);
+
+        for (int preset = 0; preset <= 9; ++preset) {
+            for (int i = 0; i < DATA_NAMES.length; ++i) {
+                final byte[] in = data[i];
+                final LZMA2Options options = new LZMA2Options(preset);
+                String suffix = "-p" + preset + "/" + DATA_NAMES[i];
+
+                run(new Bench("xz-enc" + suffix, in.length) {
+                    void run() throws IOException {
+                        compress(in, options, new NullOutputStream());
+                    }
+                });
+
+                if (!isSelected("xz-dec" + suffix))
+                    continue;
+
+                final byte[] compressed = compress(in, options);
+                run(new Bench("xz-dec" + suffix, in.length) {
+                    void run() throws IOException {
+                        decompress(compressed, in.length);
+                    }
+                });
+            }
+        }
+
+        int[] mfs = { LZMA2Options.MF_HC4, LZMA2Options.MF_BT4,
+                      LZMA2Options.MF_HB4 };
+        String[] mfNames = { "hc4", "bt4", "hb4" };
+        int[] modes = { LZMA2Options.MODE_FAST, LZMA2Options.MODE_NORMAL };
+
+        for (int m = 0; m < mfs.length; ++m) {
+            for (int j = 0; j < modes.length; ++j) {
+                if (mfs[m] == LZMA2Options.MF_HB4
+                        && modes[j] == LZMA2Options.MODE_NORMAL)
+                    continue;
+
+                for (int i = 0; i < DATA_NAMES.length; ++i) {
+                    final byte[] in = data[i];
+                    final LZMA2Options options = new LZMA2Options();
+                    options.setMode(modes[j]);
+                    options.setMatchFinder(mfs[m]);
+
+                    run(new Bench("lzma2-"
+                            + mfNames[m]
+                            + (modes[j] == LZMA2Options.MODE_FAST
+                               ? "-fast/" : "-normal/")
+                            + DATA_NAMES[i], in.length) {
+                        void run() throws IOException {
+                            compress(in, options, new NullOutputStream());
+                        }
+                    });
+                }
+            }
+        }
+
+        final byte[] random = data[2];
+        final byte[] binary = data[1];
+
+        int[] checkTypes = { XZ.CHECK_CRC32, XZ.CHECK_CRC64,
+                             XZ.CHECK_SHA256 };
+        String[] checkNames = { "crc32", "crc64", "sha256" };
+        for (int i = 0; i < checkTypes.length; ++i) {
+            final Check check = Check.getInstance(checkTypes[i]);
+            run(new Bench("check-" + checkNames[i], random.length) {
+                void run() {
+                    check.update(random);
+                    check.finish();
+                }
+            });
+        }
+
+        final byte[] deltaBuf = new byte[binary.length];
+        run(new Bench("delta-enc", binary.length) {
+            void run() {
+                new DeltaEncoder(4).encode(binary, 0, binary.length,
+                                           deltaBuf);
+            }
+        });
+
+        run(new Bench("delta-dec", binary.length) {
+            void run() {
+                new DeltaDecoder(4).decode(deltaBuf, 0, deltaBuf.length);
+            }
+        });
+
+        String[] bcjNames = { "x86", "powerpc", "ia64", "arm", "armthumb",
+                              "sparc" };
+        for (int i = 0; i < bcjNames.length; ++i) {
+            final int filter = i;
+            final byte[] buf = (byte[])binary.clone();
+            run(new Bench("bcj-" + bcjNames[i], buf.length) {
+                void run() {
+                    // The filters modify the data in place. Running the
+                    // encoder again on its own output is as fast as
+                    // running it on the original data.
+                    getBCJ(filter).code(buf, 0, buf.length);
+                }
+            });
+        }
+
+        if (isSelected("seek") || isSelected("seek-cached")) {
+            LZMA2Options options = new LZMA2Options();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            XZOutputStream out = new XZOutputStream(compressed, options);
+
+            // Use Blocks of a fixed size so that a seek has to decompress
+            // half a Block on average.
+            for (int off = 0; off < binary.length; off += SEEK_BLOCK_SIZE) {
+                out.write(binary, off,
+                          Math.min(SEEK_BLOCK_SIZE, binary.length - off));
+                out.endBlock();
+            }
+
+            out.finish();
+
+            final byte[] file = compressed.toByteArray();
+            final Random seekRandom = new Random(1);
+            final byte[] buf = new byte[SEEK_READ_SIZE];
+            final BlockCache cache = new BlockCache(binary.length);
+
+            for (int c = 0; c < 2; ++c) {
+                final boolean cached = c == 1;
+                run(new Bench(cached ? "seek-cached" : "seek",
+                              SEEK_READ_SIZE) {
+                    private SeekableXZInputStream in = null;
+
+                    void run() throws IOException {
+                        if (in == null) {
+                            in = new SeekableXZInputStream(
+                                    new ArraySeekableInputStream(file));
+                            if (cached)
+                                in.setBlockCache(cache);
+                        }
+
+                        in.seek(seekRandom.nextInt(
+                                binary.length - SEEK_READ_SIZE));
+
+                        int off = 0;
+                        while (off < buf.length)
+                            off += in.read(buf, off, buf.length - off);
+                    }
+                });
+            }
+        }
+    }
+
+    private static SimpleFilter getBCJ(int filter) {
+        switch (filter) {
+            case 0:
+                return new X86(true, 0);
+            case 1:
+                return new PowerPC(true, 0);
+            case 2:
+                return new IA64(true, 0);
+            case 3:
+                return new ARM(true, 0);
+            case 4:
+                return new ARMThumb(true, 0);
+            case 5:
+                return new SPARC(true, 0);
+        }
+
+        throw new Error();
+    }
+
+    private static void compress(byte[] in, LZMA2Options options,
+                                 OutputStream compressed)
+            throws IOException {
+        XZOutputStream out = new XZOutputStream(compressed, options);
+        out.write(in);
+        out.finish();
+    }
+
+    private static byte[] compress(byte[] in, LZMA2Options options)
+            throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        compress(in, options, compressed);
+        return compressed.toByteArray();
+    }
+
+    private static void decompress(byte[] compressed, int size)
+            throws IOException {
+        InputStream in = new XZInputStream(
+                new ByteArrayInputStream(compressed));
+        byte[] buf = new byte[8192];
+        int total = 0;
+        int n;
+
+        while ((n = in.read(buf)) != -1)
+            total += n;
+
+        if (total != size)
+            throw new IOException("Wrong uncompressed size");
+    }
+
+    /**
+     * Generates deterministic test data of the given kind.
+     */
+    private static byte[] generate(String kind, int size) {
+        Random r = new Random(size);
+        byte[] buf = new byte[size];
+
+        if (kind.equals("text")) {
+            // Words with a skewed frequency distribution, somewhat
+            // like natural language.
+            byte[][] words = new byte[4096][];
+            for (int i = 0; i < words.length; ++i) {
+                words[i] = new byte[2 + r.nextInt(5) + r.nextInt(5)];
+                for (int j = 0; j < words[i].length; ++j)
+                    words[i][j] = (byte)('a' + r.nextInt(26));
+            }
+
+            int pos = 0;
+            while (pos < size) {
+                double x = r.nextDouble();
+                byte[] word = words[(int)(x * x * x * words.length)];
+                for (int j = 0; j < word.length && pos < size; ++j)
+                    buf[pos++] = word[j];
+
+                if (pos < size)
+                    buf[pos++] = (byte)(r.nextInt(12) == 0 ? '\n' : ' ');
+            }
+        } else if (kind.equals("binary")) {
+            // Fixed-size records of little endian integers mixed with
+            // x86-like code that has CALL instructions for the BCJ filter.
+            int pos = 0;
+            int counter = 0;
+            while (pos + 16 <= size) {
+                if (r.nextInt(4) == 0) {
+                    for (int j = 0; j < 16; j += 4) {
+                        int value = counter + r.nextInt(16) * j;
+                        buf[pos + j] = (byte)value;
+                        buf[pos + j + 1] = (byte)(value >>> 8);
+                        buf[pos + j + 2] = (byte)(value >>> 16);
+                        buf[pos + j + 3] = (byte)(value >>> 24);
+                    }
+
+                    ++counter;
+                } else {
+                    int target = r.nextInt(1 << 16) - pos;
+                    buf[pos] = (byte)0xE8;
+                    buf[pos + 1] = (byte)target;
+                    buf[pos + 2] = (byte)(target >>> 8);
+                    buf[pos + 3] = (byte)(target >>> 16);
+                    buf[pos + 4] = (byte)(target >>> 24);
+                    for (int j = 5; j < 16; ++j)
+                        buf[pos + j] = (byte)(r.nextInt(8) * 0x11);
+                }
+
+                pos += 16;
+            }
+        } else if (kind.equals("random")) {
+            r.nextBytes(buf);
+        } else if (kind.equals("repetitive")) {
+            // A short pattern repeated with rare changes.
+            byte[] pattern = new byte[1000];
+            r.nextBytes(pattern);
+
+            for (int pos = 0; pos < size; ++pos) {
+                if (r.nextInt(5000) == 0)
+                    pattern[r.nextInt(pattern.length)] = (byte)r.nextInt();
+
+                buf[pos] = pattern[pos % pattern.length];
+            }
+        } else {
+            throw new Error();
+        }
+
+        return buf;
+    }
+
+    private static boolean isSelected(String name) {
+        if (prefixes == null)
+            return true;
+
+        for (int i = 0; i < prefixes.length; ++i)
+            if (name.startsWith(prefixes[i]))
+                return true;
+
+        return false;
+    }
+
+    private static void run(Bench bench) throws Exception {
+        if (!isSelected(bench.name))
+            return;
+
+        // Warm up so that the JIT compiler has done its job before
+        // the measurement starts.
+        long end = System.currentTimeMillis() + benchTime;
+        do {
+            bench.run();
+        } while (System.currentTimeMillis() < end);
+
+        System.gc();
+
+        long allocStart = getAllocatedBytes();
+        long start = System.currentTimeMillis();
+        long ops = 0;
+        long elapsed;
+
+        do {
+            bench.run();
+            ++ops;
+            elapsed = System.currentTimeMillis() - start;
+        } while (elapsed < benchTime);
+
+        long allocated = getAllocatedBytes() - allocStart;
+        double seconds = Math.max(elapsed, 1) / 1000.0;
+
+        System.out.println(
+                pad(bench.name, -24)
+                + pad(format(ops * bench.bytesPerOp / 1e6 / seconds), 10)
+                + pad(allocStart < 0 ? "n/a"
+                      : format(allocated / 1e6 / seconds), 12)
+                + pad(allocStart < 0 ? "n/a"
+                      : String.valueOf(allocated / ops), 14)
+                + pad(format(elapsed * 1000.0 / ops), 12));
+    }
+
+    private static Object threadBean = null;
+    private static Method allocatedBytesMethod = null;
+    private static Object[] threadId = null;
+
+    static {
+        // These APIs don't exist in all Java versions, so they are
+        // looked up via reflection.
+        try {
+            threadBean = Class.forName(
+                    "java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean", new Class[0])
+                    .invoke(null, new Object[0]);
+            allocatedBytesMethod = Class.forName(
+                    "com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes",
+                               new Class[] { long.class });
+            threadId = new Object[] {
+                    Thread.class.getMethod("getId", new Class[0])
+                    .invoke(Thread.currentThread(), new Object[0]) };
+        } catch (Exception e) {
+            allocatedBytesMethod = null;
+        }
+    }
+
+    /**
+     * Gets the number of bytes allocated by the current thread so far,
+     * or -1 if it isn't supported.
+     */
+    private static long getAllocatedBytes() {
+        if (allocatedBytesMethod == null)
+            return -1;
+
+        try {
+            return ((Long)allocatedBytesMethod.invoke(threadBean, threadId))
+                    .longValue();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static String format(double value) {
+        long tenths = Math.round(value * 10);
+        return (tenths / 10) + "." + (tenths % 10);
+    }
+
+    /**
+     * Pads the string with spaces to the given width. A positive width
+     * aligns to the right and a negative width to the left.
+     */
+    private static String pad(String s, int width) {
+        StringBuffer buf = new StringBuffer();
+
+        if (width < 0)
+            buf.append(s);
+
+        for (int i = s.length(); i < Math.abs(width); ++i)
+            buf.append(' ');
+
+        if (width > 0)
+            buf.append(s);
+
+        return buf.toString();
+    }
+}
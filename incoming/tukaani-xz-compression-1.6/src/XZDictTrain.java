@@ -0,0 +1,254 @@
+/*
+ * XZDictTrain
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+import java.io.*;
+import java.util.ArrayList;
+import org.tukaani.xz.*;
+
+/**
+ * Builds a preset dictionary from sample files and optionally measures
+ * how much it helps.
+ * <p>
+ * Arguments: [-s dict-size] [-k segment-size] [-o dict-file]
+ * [-d dict-file] [-b] [-p preset] sample-file ...
+ * <p>
+ * Every sample file is one sample, for example, one message. The size of
+ * the dictionary (<code>-s</code>, default 32 KiB) and the segment size
+ * (<code>-k</code>, default 256) are given in bytes. The dictionary is
+ * written to the file given with <code>-o</code>. With <code>-d</code>,
+ * an existing dictionary is read instead of building a new one.
+ * <p>
+ * With <code>-b</code>, every sample is compressed separately without
+ * and with the dictionary, using <code>LZMA2OutputStream</code> and
+ * a raw <code>LZMAOutputStream</code> with the given preset (default 6).
+ * The data is decompressed with <code>LZMA2InputStream</code> or
+ * <code>LZMAInputStream</code> and compared to the original.
+ * The compressed sizes and the speeds in MB/s of uncompressed data are
+ * printed to standard output. Benchmarking with the samples that
+ * the dictionary was built from overstates the gain. Build
+ * the dictionary from one set of files and use <code>-d</code> to
+ * benchmark it with another set of the same kind:
+ * <p><blockquote><pre>
+ * java XZDictTrain -o dict.bin train/*
+ * java XZDictTrain -d dict.bin -b test/*
+ * </pre></blockquote>
+ */
+class XZDictTrain {
+    private static final long BENCH_TIME = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int dictSize = 32 << 10;
+        int segmentSize = DictionaryTrainer.DEFAULT_SEGMENT_SIZE;
+        int preset = LZMA2Options.PRESET_DEFAULT;
+        String dictFile = null;
+        String oldDictFile = null;
+        boolean bench = false;
+        ArrayList files = new ArrayList();
+
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("-s"))
+                dictSize = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-k"))
+                segmentSize = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-p"))
+                preset = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-o"))
+                dictFile = args[++i];
+            else if (args[i].equals("-d"))
+                oldDictFile = args[++i];
+            else if (args[i].equals("-b"))
+                bench = true;
+            else
+                files.add(args[i]);
+        }
+
+        if (files.isEmpty()) {
+            System.err.println("Usage: XZDictTrain [-s dict-size] "
+                               + "[-k segment-size] [-o dict-file] "
+                               + "[-d dict-file] [-b] [-p preset] "
+                               + "sample-file ...");
+            System.exit(1);
+        }
+
+        byte[][] samples = new byte[files.size()][];
+        long total = 0;
+        for (int i = 0; i < samples.length; ++i) {
+            samples[i] = readFile((String)files.get(i));
+            total += samples[i].length;
+        }
+
+        byte[] dict;
+        if (oldDictFile != null) {
+            dict = readFile(oldDictFile);
+        } else {
+            long start = System.currentTimeMillis();
+            dict = DictionaryTrainer.train(samples, dictSize, segmentSize);
+            System.err.println("Built a " + dict.length
+                               + "-byte dictionary from " + samples.length
+                               + " samples (" + total + " bytes) in "
+                               + (System.currentTimeMillis() - start)
+                               + " ms");
+        }
+
+        if (dictFile != null) {
+            FileOutputStream out = new FileOutputStream(dictFile);
+            out.write(dict);
+            out.close();
+        }
+
+        if (bench) {
+            LZMA2Options options = new LZMA2Options(preset);
+
+            // The dictionary has to be big enough to hold the preset
+            // dictionary and the biggest sample.
+            int maxSample = 0;
+            for (int i = 0; i < samples.length; ++i)
+                maxSample = Math.max(maxSample, samples[i].length);
+
+            options.setDictSize(Math.max(LZMA2Options.DICT_SIZE_MIN,
+                    Math.min(options.getDictSize(),
+                             dict.length + maxSample)));
+
+            LZMA2Options withDict = (LZMA2Options)options.clone();
+            withDict.setPrimedDict(new PrimedDictionary(dict, withDict));
+
+            System.out.println(pad("", -15) + pad("compressed", 12)
+                               + pad("ratio", 8) + pad("enc MB/s", 10)
+                               + pad("dec MB/s", 10));
+            bench("lzma2 no dict", samples, total, options, false);
+            bench("lzma2 dict", samples, total, withDict, false);
+            bench("lzma no dict", samples, total, options, true);
+            bench("lzma dict", samples, total, withDict, true);
+        }
+    }
+
+    private static byte[] readFile(String name) throws IOException {
+        InputStream in = new FileInputStream(name);
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        byte[] tmp = new byte[8192];
+        int size;
+
+        try {
+            while ((size = in.read(tmp)) != -1)
+                buf.write(tmp, 0, size);
+        } finally {
+            in.close();
+        }
+
+        return buf.toByteArray();
+    }
+
+    private static byte[] compress(byte[] sample, LZMA2Options options,
+                                   boolean lzma) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+
+        if (lzma) {
+            LZMAOutputStream out = new LZMAOutputStream(buf, options, true);
+            out.write(sample);
+            out.finish();
+        } else {
+            FinishableOutputStream out = options.getOutputStream(
+                    new FinishableWrapperOutputStream(buf));
+            out.write(sample);
+            out.finish();
+        }
+
+        return buf.toByteArray();
+    }
+
+    private static void decompress(byte[] compressed, byte[] sample,
+                                   LZMA2Options options, boolean lzma)
+            throws IOException {
+        InputStream raw = new ByteArrayInputStream(compressed);
+        byte[] dict = options.getPresetDict();
+        DataInputStream in = new DataInputStream(lzma
+                ? (InputStream)new LZMAInputStream(raw, -1,
+                        options.getLc(), options.getLp(), options.getPb(),
+                        options.getDictSize(), dict)
+                : new LZMA2InputStream(raw, options.getDictSize(), dict));
+        byte[] buf = new byte[sample.length];
+        in.readFully(buf);
+
+        if (in.read() != -1)
+            throw new IOException("Too much uncompressed data");
+
+        for (int i = 0; i < buf.length; ++i)
+            if (buf[i] != sample[i])
+                throw new IOException("Uncompressed data doesn't match");
+    }
+
+    private static void bench(String name, byte[][] samples, long total,
+                              LZMA2Options options, boolean lzma)
+            throws IOException {
+        // Compress and decompress once to warm up and to get the data
+        // for the decompression benchmark.
+        byte[][] compressed = new byte[samples.length][];
+        long compressedSize = 0;
+        for (int i = 0; i < samples.length; ++i) {
+            compressed[i] = compress(samples[i], options, lzma);
+            compressedSize += compressed[i].length;
+        }
+
+        for (int i = 0; i < samples.length; ++i)
+            decompress(compressed[i], samples[i], options, lzma);
+
+        // Repeat for at least a second to get stable speeds.
+        long rounds = 0;
+        long start = System.currentTimeMillis();
+        long elapsed;
+        do {
+            for (int i = 0; i < samples.length; ++i)
+                compress(samples[i], options, lzma);
+
+            ++rounds;
+            elapsed = System.currentTimeMillis() - start;
+        } while (elapsed < BENCH_TIME);
+
+        double encSpeed = rounds * total / 1e3 / elapsed;
+
+        rounds = 0;
+        start = System.currentTimeMillis();
+        do {
+            for (int i = 0; i < samples.length; ++i)
+                decompress(compressed[i], samples[i], options, lzma);
+
+            ++rounds;
+            elapsed = System.currentTimeMillis() - start;
+        } while (elapsed < BENCH_TIME);
+
+        double decSpeed = rounds * total / 1e3 / elapsed;
+
+        System.out.println(pad(name, -15)
+                           + pad(String.valueOf(compressedSize), 12)
+                           + pad(format(100.0 * compressedSize
+                                        / Math.max(1, total)) + "%", 8)
+                           + pad(format(encSpeed), 10)
+                           + pad(format(decSpeed), 10));
+    }
+
+    private static String format(double value) {
+        long tenths = Math.round(value * 10);
+        return (tenths / 10) + "." + (tenths % 10);
+    }
+
+    private static String pad(String s, int width) {
+        StringBuffer buf = new StringBuffer();
+
+        if (width < 0)
+            buf.append(s);
+
+        for (int i = s.length(); i < Math.abs(width); ++i)
+            buf.append(' ');
+
+        if (width > 0)
+            buf.append(s);
+
+        return buf.toString();
+    }
+}
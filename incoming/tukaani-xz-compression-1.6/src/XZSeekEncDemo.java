@@ -34,6 +34,8 @@ class XZSeekEncDemo {
         if (args.length >= 2)
             blockSize = Integer.parseInt(args[1]);
 
+        // XZOutputStream caps the dictionary size at the Block size too,
+        // but doing it here makes the memory usage figures correct.
         options.setDictSize(Math.min(options.getDictSize(),
                                      Math.max(LZMA2Options.DICT_SIZE_MIN,
                                               blockSize)));
@@ -45,23 +47,12 @@ class XZSeekEncDemo {
         System.err.println("Block size:           " + blockSize + " B");
 
         XZOutputStream out = new XZOutputStream(System.out, options);
+        out.setBlockSize(blockSize);
 
         byte[] buf = new byte[8192];
-        int left = blockSize;
-
-        while (true) {
-            int size = System.in.read(buf, 0, Math.min(buf.length, left));
-            if (size == -1)
-                break;
-
+        int size;
+        while ((size = System.in.read(buf)) != -1)
             out.write(buf, 0, size);
-            left -= size;
-
-            if (left == 0) {
-                out.endBlock();
-                left = blockSize;
-            }
-        }
 
         out.finish();
     }
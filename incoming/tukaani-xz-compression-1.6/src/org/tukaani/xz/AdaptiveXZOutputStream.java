@@ -0,0 +1,441 @@
+/*
+ * AdaptiveXZOutputStream
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz;
+
+import java.io.OutputStream;
+import java.io.IOException;
+
+/**
+ * Compresses into the .xz file format and adjusts the compression level
+ * at XZ Block boundaries to reach a target throughput.
+ * <p>
+ * The data is split into Blocks of a fixed uncompressed size. After each
+ * Block, the time spent compressing it is used to estimate the throughput
+ * of the current level. The strongest level that is expected to reach
+ * the required throughput is then set with
+ * {@link XZOutputStream#updateFilters(FilterOptions)} for the next Block.
+ * The output is a normal .xz file which can be decompressed with
+ * {@link XZInputStream} and, since it has many Blocks, accessed randomly
+ * with {@link SeekableXZInputStream}.
+ * <p>
+ * The required throughput is the target given to the constructor, but
+ * if the application writes the data more slowly than that, the rate at
+ * which the data arrives is used instead. This way the stream uses
+ * the fast levels under load and better compression when it has time
+ * for it. A latency budget per Block can be turned into a target
+ * throughput by dividing the Block size by the budget.
+ * <p>
+ * The levels are a list of {@link LZMA2Options} from the fastest to
+ * the strongest. By default they are the presets 0-6. A dictionary
+ * bigger than the Block size would only waste memory, so the dictionary
+ * sizes are reduced to the Block size (but not below
+ * <code>LZMA2Options.DICT_SIZE_MIN</code>) when needed.
+ * <p>
+ * The times include the time spent writing to the underlying output
+ * stream, so a slow output stream makes the stream pick faster levels.
+ * They are measured with <code>System.currentTimeMillis()</code>, whose
+ * resolution may be coarse, so the estimates are reliable only if
+ * compressing a Block takes at least tens of milliseconds.
+ *
+ * <h4>Examples</h4>
+ * <p>
+ * Compressing a log with 1&nbsp;MiB Blocks so that at least
+ * 20&nbsp;MB/s is reached:
+ * <p><blockquote><pre>
+ * AdaptiveXZOutputStream outxz = new AdaptiveXZOutputStream(
+ *         outfile, 20000000, 1 &lt;&lt; 20);
+ * </pre></blockquote>
+ *
+ * @see XZOutputStream
+ * @since 1.7
+ */
+public class AdaptiveXZOutputStream extends FinishableOutputStream {
+    /**
+     * The levels used when none are given: the presets 0-6.
+     * The presets 7-9 differ from 6 only by the dictionary size.
+     */
+    private static final int DEFAULT_LEVEL_MAX = 6;
+
+    /**
+     * A level is chosen only if its estimated throughput is at least
+     * this much higher than required. This avoids switching back and
+     * forth because of small variations in the measurements.
+     */
+    private static final double MARGIN = 1.1;
+
+    /**
+     * If the current level is this much faster than required, the next
+     * stronger level is tried even if it was too slow earlier.
+     * The data may have become easier to compress.
+     */
+    private static final double PROBE_FACTOR = 1.5;
+
+    private static final int BYTE_BUF_SIZE = 4096;
+
+    private final XZOutputStream xz;
+    private final LZMA2Options[] levels;
+    private final int blockSize;
+    private final double targetBytesPerSecond;
+
+    /**
+     * Estimated throughput of each level in bytes per second,
+     * or 0 if the level hasn't been used yet
+     */
+    private final double[] estimates;
+
+    private int level;
+
+    /**
+     * Uncompressed size of the current Block so far
+     */
+    private int blockPos = 0;
+
+    /**
+     * Time spent in the compressor for the current Block in milliseconds
+     */
+    private long encodeMillis = 0;
+
+    /**
+     * Time when the previous Block was ended
+     */
+    private long blockStartTime;
+
+    private byte[] byteBuf = null;
+    private int byteBufSize = 0;
+
+    private boolean finished = false;
+
+    /**
+     * Creates a new adaptive XZ compressor that uses the presets 0-6
+     * and CRC64 as the integrity check.
+     *
+     * @param       out         output stream to which the compressed data
+     *                          will be written
+     *
+     * @param       targetBytesPerSecond
+     *                          throughput to reach, in bytes of
+     *                          uncompressed data per second
+     *
+     * @param       blockSize   uncompressed size of each XZ Block
+     *
+     * @throws      IllegalArgumentException
+     *                          <code>targetBytesPerSecond</code> or
+     *                          <code>blockSize</code> isn't positive
+     *
+     * @throws      IOException may be thrown from <code>out</code>
+     */
+    public AdaptiveXZOutputStream(OutputStream out,
+                                  double targetBytesPerSecond,
+                                  int blockSize)
+            throws IOException {
+        this(out, getPresets(), XZ.CHECK_CRC64, targetBytesPerSecond,
+             blockSize);
+    }
+
+    /**
+     * Creates a new adaptive XZ compressor that uses the given levels and
+     * the specified integrity check type.
+     *
+     * @param       out         output stream to which the compressed data
+     *                          will be written
+     *
+     * @param       levels      LZMA2 options from the fastest to
+     *                          the strongest; the strongest one is used
+     *                          for the first Block
+     *
+     * @param       checkType   type of the integrity check,
+     *                          for example XZ.CHECK_CRC32
+     *
+     * @param       targetBytesPerSecond
+     *                          throughput to reach, in bytes of
+     *                          uncompressed data per second
+     *
+     * @param       blockSize   uncompressed size of each XZ Block
+     *
+     * @throws      UnsupportedOptionsException
+     *                          invalid options
+     *
+     * @throws      IllegalArgumentException
+     *                          <code>levels</code> is empty or
+     *                          <code>targetBytesPerSecond</code> or
+     *                          <code>blockSize</code> isn't positive
+     *
+     * @throws      IOException may be thrown from <code>out</code>
+     */
+    public AdaptiveXZOutputStream(OutputStream out, LZMA2Options[] levels,
+                                  int checkType, double targetBytesPerSecond,
+                                  int blockSize)
+            throws IOException {
+        if (levels.length < 1)
+            throw new IllegalArgumentException("No compression levels");
+
+        if (!(targetBytesPerSecond > 0))
+            throw new IllegalArgumentException(
+                    "Target throughput must be positive: "
+                    + targetBytesPerSecond);
+
+        if (blockSize < 1)
+            throw new IllegalArgumentException(
+                    "Block size must be positive: " + blockSize);
+
+        // The options are copied so that later changes by the caller
+        // don't affect the levels.
+        this.levels = new LZMA2Options[levels.length];
+        for (int i = 0; i < levels.length; ++i)
+            this.levels[i] = (LZMA2Options)LZMA2Options.capDictSize(
+                    (LZMA2Options)levels[i].clone(), blockSize);
+
+        this.blockSize = blockSize;
+        this.targetBytesPerSecond = targetBytesPerSecond;
+        estimates = new double[levels.length];
+        level = levels.length - 1;
+
+        xz = new XZOutputStream(out, this.levels[level], checkType);
+        blockStartTime = System.currentTimeMillis();
+    }
+
+    private static LZMA2Options[] getPresets() {
+        LZMA2Options[] presets = new LZMA2Options[DEFAULT_LEVEL_MAX + 1];
+
+        try {
+            for (int i = 0; i < presets.length; ++i)
+                presets[i] = new LZMA2Options(i);
+        } catch (UnsupportedOptionsException e) {
+            assert false;
+            throw new RuntimeException();
+        }
+
+        return presets;
+    }
+
+    /**
+     * Gets the index of the level used for the current Block.
+     * <code>0</code> is the fastest level.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Writes one byte to be compressed.
+     *
+     * @throws      XZIOException
+     *                          XZ Stream has grown too big
+     *
+     * @throws      XZIOException
+     *                          <code>finish()</code> or <code>close()</code>
+     *                          was already called
+     *
+     * @throws      IOException may be thrown by the underlying output stream
+     */
+    public void write(int b) throws IOException {
+        if (finished)
+            throw new XZIOException("Stream finished or closed");
+
+        // Collect single bytes so that the time isn't measured
+        // for every byte.
+        if (byteBufSize == BYTE_BUF_SIZE)
+            writeByteBuf();
+
+        if (byteBuf == null)
+            byteBuf = new byte[BYTE_BUF_SIZE];
+
+        byteBuf[byteBufSize++] = (byte)b;
+    }
+
+    /**
+     * Writes an array of bytes to be compressed. When a Block becomes
+     * full, it is ended and the level for the next Block is chosen.
+     *
+     * @param       buf         buffer of bytes to be written
+     * @param       off         start offset in <code>buf</code>
+     * @param       len         number of bytes to write
+     *
+     * @throws      XZIOException
+     *                          XZ Stream has grown too big
+     *
+     * @throws      XZIOException
+     *                          <code>finish()</code> or <code>close()</code>
+     *                          was already called and len &gt; 0
+     *
+     * @throws      IOException may be thrown by the underlying output stream
+     */
+    public void write(byte[] buf, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len < 0 || off + len > buf.length)
+            throw new IndexOutOfBoundsException();
+
+        writeByteBuf();
+        encode(buf, off, len);
+    }
+
+    /**
+     * Compresses the bytes collected by <code>write(int)</code>.
+     */
+    private void writeByteBuf() throws IOException {
+        if (byteBufSize > 0) {
+            int size = byteBufSize;
+            byteBufSize = 0;
+            encode(byteBuf, 0, size);
+        }
+    }
+
+    private void encode(byte[] buf, int off, int len) throws IOException {
+        do {
+            int size = Math.min(blockSize - blockPos, len);
+
+            long start = System.currentTimeMillis();
+            xz.write(buf, off, size);
+            encodeMillis += System.currentTimeMillis() - start;
+
+            off += size;
+            len -= size;
+            blockPos += size;
+
+            if (blockPos == blockSize)
+                endBlockAndAdapt();
+        } while (len > 0);
+    }
+
+    /**
+     * Ends the current Block and picks the level for the next one.
+     */
+    private void endBlockAndAdapt() throws IOException {
+        long start = System.currentTimeMillis();
+        xz.endBlock();
+        long end = System.currentTimeMillis();
+        encodeMillis += end - start;
+
+        if (blockPos > 0) {
+            // The time outside the compressor is the time the application
+            // took to produce the data. If it is slow, the compressor
+            // doesn't need to be faster than that.
+            double required = targetBytesPerSecond;
+            long idleMillis = end - blockStartTime - encodeMillis;
+            if (idleMillis > 0)
+                required = Math.min(required,
+                                    blockPos * 1e3 / idleMillis);
+
+            double throughput = blockPos * 1e3 / Math.max(encodeMillis, 1);
+            estimates[level] = estimates[level] == 0
+                               ? throughput
+                               : (estimates[level] + throughput) / 2;
+
+            int newLevel = chooseLevel(required);
+            if (newLevel != level) {
+                xz.updateFilters(levels[newLevel]);
+                level = newLevel;
+            }
+        }
+
+        blockPos = 0;
+        encodeMillis = 0;
+        blockStartTime = end;
+    }
+
+    /**
+     * Chooses the level for the next Block. Too slow a level is replaced
+     * with the strongest faster level that is expected to be fast enough.
+     * A fast enough level is replaced with the next stronger level if
+     * that is expected to be fast enough too or hasn't been tried yet,
+     * or if the current level is much faster than required.
+     */
+    private int chooseLevel(double required) {
+        if (estimates[level] < required) {
+            int i = level - 1;
+            while (i > 0 && estimates[i] != 0
+                    && estimates[i] < required * MARGIN)
+                --i;
+
+            return Math.max(i, 0);
+        }
+
+        if (level + 1 < levels.length) {
+            double next = estimates[level + 1];
+            if (next == 0 || next >= required * MARGIN
+                    || estimates[level] >= required * PROBE_FACTOR)
+                return level + 1;
+        }
+
+        return level;
+    }
+
+    /**
+     * Ends the current XZ Block even if it isn't full and picks
+     * the level for the next Block.
+     * <p>
+     * If there is no unfinished Block open, this function will do nothing.
+     *
+     * @throws      XZIOException
+     *                          XZ Stream has grown too big
+     *
+     * @throws      XZIOException
+     *                          stream finished or closed
+     *
+     * @throws      IOException may be thrown by the underlying output stream
+     */
+    public void endBlock() throws IOException {
+        writeByteBuf();
+        endBlockAndAdapt();
+    }
+
+    /**
+     * Flushes the encoder and calls <code>out.flush()</code>.
+     * See {@link XZOutputStream#flush()}.
+     *
+     * @throws      XZIOException
+     *                          XZ Stream has grown too big
+     *
+     * @throws      XZIOException
+     *                          stream finished or closed
+     *
+     * @throws      IOException may be thrown by the underlying output stream
+     */
+    public void flush() throws IOException {
+        writeByteBuf();
+
+        long start = System.currentTimeMillis();
+        xz.flush();
+        encodeMillis += System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Finishes compression without closing the underlying stream.
+     * No more data can be written to this stream after finishing
+     * (calling <code>write</code> with an empty buffer is OK).
+     *
+     * @throws      XZIOException
+     *                          XZ Stream has grown too big
+     *
+     * @throws      IOException may be thrown by the underlying output stream
+     */
+    public void finish() throws IOException {
+        writeByteBuf();
+        xz.finish();
+        finished = true;
+    }
+
+    /**
+     * Finishes compression and closes the underlying stream.
+     * See {@link XZOutputStream#close()}.
+     *
+     * @throws      XZIOException
+     *                          XZ Stream has grown too big
+     *
+     * @throws      IOException may be thrown by the underlying output stream
+     */
+    public void close() throws IOException {
+        try {
+            writeByteBuf();
+        } catch (IOException e) {}
+
+        finished = true;
+        xz.close();
+    }
+}
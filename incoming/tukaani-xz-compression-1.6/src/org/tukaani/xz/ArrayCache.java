@@ -0,0 +1,153 @@
+/*
+ * ArrayCache
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz;
+
+/**
+ * Caches large arrays for reuse (base class and a dummy cache implementation).
+ * <p>
+ * When compressing or decompressing many (very) small files in a row, the
+ * time spent in construction of new compressor or decompressor objects
+ * can be longer than the time spent in actual compression or decompression.
+ * A large part of this initialization overhead comes from allocation and
+ * garbage collection of large arrays, for example, the LZ dictionary
+ * buffer and the match finder hash tables.
+ * <p>
+ * An <code>ArrayCache</code> keeps arrays that are no longer needed so
+ * that a later compressor or decompressor can reuse them. The arrays are
+ * given back to the cache when a stream is finished, reaches its end,
+ * or is closed.
+ * <p>
+ * This class itself doesn't cache anything: <code>get</code> methods
+ * allocate a new array and <code>putArray</code> methods do nothing.
+ * {@link BasicArrayCache} is an implementation that actually caches
+ * arrays. Applications may also extend this class to implement their
+ * own caching policy. A cache that is shared between threads, including
+ * the worker threads of {@link ParallelXZOutputStream},
+ * {@link SeekableXZInputStream}, and LZMA2 compression with
+ * {@link LZMA2Options#setThreads(int)}, must be thread safe.
+ * <p>
+ * The constructors of the compressor and decompressor classes that don't
+ * take an <code>ArrayCache</code> argument use the default cache returned
+ * by {@link #getDefaultCache()}. Initially it is the dummy cache,
+ * so caching must be enabled explicitly, for example:
+ * <p><blockquote><pre>
+ * ArrayCache.setDefaultCache(BasicArrayCache.getInstance());
+ * </pre></blockquote>
+ *
+ * @since 1.7
+ */
+public class ArrayCache {
+    /**
+     * Global dummy cache instance that is returned by
+     * <code>getDummyCache()</code>.
+     */
+    private static final ArrayCache dummyCache = new ArrayCache();
+
+    /**
+     * Global default <code>ArrayCache</code> that is used when
+     * no other cache has been specified.
+     */
+    private static volatile ArrayCache defaultCache = dummyCache;
+
+    /**
+     * Returns a statically-allocated <code>ArrayCache</code> instance.
+     * It can be shared by all code that needs a dummy cache.
+     */
+    public static ArrayCache getDummyCache() {
+        return dummyCache;
+    }
+
+    /**
+     * Gets the default <code>ArrayCache</code> instance.
+     * This is a global cache that is used when the application
+     * specifies nothing else. The default is a dummy cache
+     * (see <code>getDummyCache()</code>).
+     */
+    public static ArrayCache getDefaultCache() {
+        return defaultCache;
+    }
+
+    /**
+     * Sets the default <code>ArrayCache</code> instance.
+     * Use with care. Other libraries using this package probably shouldn't
+     * call this function; libraries cannot know if there are other users
+     * of the xz package in the same application.
+     *
+     * @throws      NullPointerException
+     *                          <code>arrayCache</code> is <code>null</code>
+     */
+    public static void setDefaultCache(ArrayCache arrayCache) {
+        if (arrayCache == null)
+            throw new NullPointerException();
+
+        defaultCache = arrayCache;
+    }
+
+    /**
+     * Creates a new <code>ArrayCache</code> that does no caching
+     * (a dummy cache). If you need a dummy cache, you may want to call
+     * {@link #getDummyCache()} instead.
+     */
+    public ArrayCache() {}
+
+    /**
+     * Allocates a new byte array.
+     * <p>
+     * This implementation simply returns <code>new byte[size]</code>.
+     *
+     * @param       size            the size of the array to allocate;
+     *                              the returned array must have exactly
+     *                              this length
+     *
+     * @param       fillWithZeros   if true, the caller expects that the first
+     *                              <code>size</code> elements in the array are
+     *                              zero; if false, the array contents can be
+     *                              anything, which speeds things up when
+     *                              reusing a cached array
+     */
+    public byte[] getByteArray(int size, boolean fillWithZeros) {
+        return new byte[size];
+    }
+
+    /**
+     * Puts the given byte array to the cache. The caller must no longer
+     * use the array.
+     * <p>
+     * This implementation does nothing.
+     */
+    public void putArray(byte[] array) {}
+
+    /**
+     * Allocates a new int array.
+     * <p>
+     * This implementation simply returns <code>new int[size]</code>.
+     *
+     * @param       size            the size of the array to allocate;
+     *                              the returned array must have exactly
+     *                              this length
+     *
+     * @param       fillWithZeros   if true, the caller expects that the first
+     *                              <code>size</code> elements in the array are
+     *                              zero; if false, the array contents can be
+     *                              anything, which speeds things up when
+     *                              reusing a cached array
+     */
+    public int[] getIntArray(int size, boolean fillWithZeros) {
+        return new int[size];
+    }
+
+    /**
+     * Puts the given int array to the cache. The caller must no longer
+     * use the array.
+     * <p>
+     * This implementation does nothing.
+     */
+    public void putArray(int[] array) {}
+}
@@ -0,0 +1,566 @@
+/*
+ * AsyncXZOutputStream
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz;
+
+import java.io.OutputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+
+/**
+ * Compresses into the .xz file format in a background thread.
+ * <p>
+ * <code>write</code> only copies the data into an input buffer and
+ * returns. A background thread compresses the filled buffers with
+ * an {@link XZOutputStream} and writes the compressed data to
+ * the underlying output stream. This way the writing thread doesn't
+ * wait for the compression, and compression overlaps with the I/O done
+ * by the underlying output stream. The output is identical to what
+ * <code>XZOutputStream</code> would produce.
+ * <p>
+ * There is a fixed number of input buffers. If the background thread
+ * cannot keep up, <code>write</code> blocks until a buffer is free.
+ * <code>flush()</code>, <code>finish()</code>, and <code>close()</code>
+ * wait until the background thread has processed everything written
+ * before them. <code>endBlock()</code> doesn't wait.
+ * <p>
+ * If the background thread gets an exception, it is thrown from the next
+ * call to <code>write</code>, <code>flush</code>, <code>endBlock</code>,
+ * <code>finish</code>, or <code>close</code>. The data written after
+ * the failed operation is discarded.
+ * <p>
+ * The background thread is started when there is something to compress
+ * and it exits when it has nothing left to do. So a stream that is
+ * finished but not closed, or abandoned without closing it, doesn't keep
+ * a thread or the memory of the encoder in use.
+ * <p>
+ * Like with the other streams, only one thread at a time may use
+ * an <code>AsyncXZOutputStream</code>.
+ *
+ * <h4>Memory usage</h4>
+ * <p>
+ * In addition to the memory used by the encoder, up to
+ * <code>bufferCount</code> buffers of <code>bufferSize</code> bytes
+ * are allocated. The default is four 256&nbsp;KiB buffers.
+ *
+ * @see XZOutputStream
+ * @since 1.7
+ */
+public class AsyncXZOutputStream extends FinishableOutputStream {
+    /**
+     * Default size of an input buffer.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 256 << 10;
+
+    /**
+     * Default maximum number of input buffers.
+     */
+    public static final int DEFAULT_BUFFER_COUNT = 4;
+
+    private static final int WRITE = 0;
+    private static final int FLUSH = 1;
+    private static final int END_BLOCK = 2;
+    private static final int FINISH = 3;
+    private static final int CLOSE = 4;
+
+    /**
+     * The compressor. Only the background thread uses it, except that
+     * <code>close()</code> closes it if the background thread has stopped
+     * because of an exception.
+     */
+    private final XZOutputStream xz;
+
+    private final int bufferSize;
+    private final int bufferCount;
+
+    /**
+     * Requests that the background thread hasn't processed yet.
+     * This is also used as the lock for all state shared with
+     * the background thread.
+     */
+    private final LinkedList queue = new LinkedList();
+
+    /**
+     * Input buffers that can be filled again.
+     */
+    private final LinkedList freeBuffers = new LinkedList();
+
+    /**
+     * Number of input buffers allocated so far.
+     */
+    private int allocatedBuffers = 0;
+
+    /**
+     * The background thread, or <code>null</code> if it isn't running.
+     * It is started by <code>submit</code> and it exits when
+     * the queue becomes empty.
+     */
+    private Worker worker = null;
+
+    private long submitted = 0;
+    private long completed = 0;
+
+    /**
+     * Exception thrown in the background thread. Once this has been set,
+     * the background thread has stopped.
+     */
+    private IOException exception = null;
+    private Throwable error = null;
+
+    /**
+     * Input buffer being filled by <code>write</code>.
+     */
+    private byte[] inBuf = null;
+    private int inPos = 0;
+
+    private boolean finished = false;
+    private boolean closed = false;
+
+    private final byte[] tempBuf = new byte[1];
+
+    /**
+     * Operation for the background thread.
+     */
+    private static class Request {
+        final int op;
+        final byte[] buf;
+        final int size;
+
+        Request(int op, byte[] buf, int size) {
+            this.op = op;
+            this.buf = buf;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Creates a new background XZ compressor using one filter and CRC64
+     * as the integrity check.
+     *
+     * @param       out         output stream to which the compressed data
+     *                          will be written
+     *
+     * @param       filterOptions
+     *                          filter options to use
+     *
+     * @throws      UnsupportedOptionsException
+     *                          invalid filter chain
+     *
+     * @throws      IOException may be thrown from <code>out</code>
+     */
+    public AsyncXZOutputStream(OutputStream out, FilterOptions filterOptions)
+            throws IOException {
+        this(new XZOutputStream(out, filterOptions), DEFAULT_BUFFER_SIZE,
+             DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * Creates a new background XZ compressor using 1-4 filters and
+     * the specified integrity check type.
+     *
+     * @param       out         output stream to which the compressed data
+     *                          will be written
+     *
+     * @param       filterOptions
+     *                          array of filter options to use
+     *
+     * @param       checkType   type of the integrity check,
+     *                          for example XZ.CHECK_CRC32
+     *
+     * @throws      UnsupportedOptionsException
+     *                          invalid filter chain
+     *
+     * @throws      IOException may be thrown from <code>out</code>
+     */
+    public AsyncXZOutputStream(OutputStream out,
+                               FilterOptions[] filterOptions, int checkType)
+            throws IOException {
+        this(new XZOutputStream(out, filterOptions, checkType),
+             DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * Creates a new background compressor that uses an existing
+     * <code>XZOutputStream</code>. This way all settings of
+     * <code>XZOutputStream</code> are available. <code>xz</code> must
+     * not be used directly after calling this constructor.
+     *
+     * @param       xz          the compressor to run in the background
+     *
+     * @param       bufferSize  size of an input buffer
+     *
+     * @param       bufferCount maximum number of input buffers
+     *
+     * @throws      IllegalArgumentException
+     *                          <code>bufferSize</code> or
+     *                          <code>bufferCount</code> isn't positive
+     */
+    public AsyncXZOutputStream(XZOutputStream xz, int bufferSize,
+                               int bufferCount) {
+        if (xz == null)
+            throw new NullPointerException();
+
+        if (bufferSize <= 0 || bufferCount <= 0)
+            throw new IllegalArgumentException(
+                    "Buffer size and count must be positive");
+
+        this.xz = xz;
+        this.bufferSize = bufferSize;
+        this.bufferCount = bufferCount;
+    }
+
+    /**
+     * Writes one byte to be compressed.
+     *
+     * @throws      XZIOException
+     *                          <code>finish()</code> or <code>close()</code>
+     *                          was already called
+     *
+     * @throws      IOException an earlier operation failed in
+     *                          the background thread
+     */
+    public void write(int b) throws IOException {
+        // Store the byte directly if that doesn't fill the buffer.
+        // An exception from the background thread is then noticed
+        // when the buffer is submitted.
+        if (inBuf != null && inPos < inBuf.length - 1 && !finished) {
+            inBuf[inPos++] = (byte)b;
+            return;
+        }
+
+        tempBuf[0] = (byte)b;
+        write(tempBuf, 0, 1);
+    }
+
+    /**
+     * Copies an array of bytes to be compressed in the background.
+     * This blocks only if all input buffers are full.
+     *
+     * @param       buf         buffer of bytes to be written
+     * @param       off         start offset in <code>buf</code>
+     * @param       len         number of bytes to write
+     *
+     * @throws      XZIOException
+     *                          <code>finish()</code> or <code>close()</code>
+     *                          was already called
+     *
+     * @throws      XZIOException
+     *                          the thread was interrupted while waiting
+     *                          for a free input buffer
+     *
+     * @throws      IOException an earlier operation failed in
+     *                          the background thread
+     */
+    public void write(byte[] buf, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len < 0 || off + len > buf.length)
+            throw new IndexOutOfBoundsException();
+
+        checkState();
+
+        while (len > 0) {
+            if (inBuf == null)
+                inBuf = getFreeBuffer();
+
+            int copySize = Math.min(len, inBuf.length - inPos);
+            System.arraycopy(buf, off, inBuf, inPos, copySize);
+            inPos += copySize;
+            off += copySize;
+            len -= copySize;
+
+            if (inPos == inBuf.length)
+                submitInput();
+        }
+    }
+
+    /**
+     * Finishes the current XZ Block in the background. This doesn't wait
+     * for the Block to be finished.
+     *
+     * @throws      XZIOException
+     *                          <code>finish()</code> or <code>close()</code>
+     *                          was already called
+     *
+     * @throws      IOException an earlier operation failed in
+     *                          the background thread
+     *
+     * @see XZOutputStream#endBlock()
+     */
+    public void endBlock() throws IOException {
+        checkState();
+        submitInput();
+        submit(new Request(END_BLOCK, null, 0));
+    }
+
+    /**
+     * Compresses and flushes everything written so far and waits until
+     * <code>out.flush()</code> has been called.
+     *
+     * @throws      XZIOException
+     *                          <code>finish()</code> or <code>close()</code>
+     *                          was already called
+     *
+     * @throws      IOException compressing or flushing failed
+     *
+     * @see XZOutputStream#flush()
+     */
+    public void flush() throws IOException {
+        checkState();
+        submitInput();
+        submit(new Request(FLUSH, null, 0));
+        waitForWorker();
+    }
+
+    /**
+     * Finishes compression without closing the underlying stream.
+     * This waits until the whole XZ Stream has been written.
+     * No more data can be written to this stream after finishing.
+     *
+     * @throws      IOException compressing or writing failed
+     *
+     * @see XZOutputStream#finish()
+     */
+    public void finish() throws IOException {
+        if (closed)
+            throw new XZIOException("Stream closed");
+
+        if (!finished) {
+            throwException();
+            submitInput();
+            submit(new Request(FINISH, null, 0));
+            finished = true;
+        }
+
+        waitForWorker();
+    }
+
+    /**
+     * Finishes compression and closes the underlying stream.
+     *
+     * @throws      IOException compressing, writing, or closing failed,
+     *                          or an earlier operation failed in
+     *                          the background thread
+     */
+    public void close() throws IOException {
+        if (closed)
+            return;
+
+        closed = true;
+        finished = true;
+
+        boolean workerStopped;
+        synchronized (queue) {
+            workerStopped = exception != null || error != null;
+        }
+
+        if (!workerStopped) {
+            submitInput();
+            submit(new Request(CLOSE, null, 0));
+
+            try {
+                waitForWorker();
+                return;
+            } catch (IOException e) {
+                // Fall through to close xz below.
+            }
+        }
+
+        // The background thread has stopped without closing xz.
+        // XZOutputStream.close() remembers the earlier exception and
+        // throws it after closing the underlying stream.
+        try {
+            xz.close();
+        } catch (IOException e) {}
+
+        throwException();
+    }
+
+    private void checkState() throws IOException {
+        if (finished)
+            throw new XZIOException("Stream finished or closed");
+
+        throwException();
+    }
+
+    /**
+     * Throws the exception from the background thread, if any.
+     */
+    private void throwException() throws IOException {
+        synchronized (queue) {
+            if (exception != null)
+                throw exception;
+
+            if (error instanceof RuntimeException)
+                throw (RuntimeException)error;
+
+            if (error != null)
+                throw (Error)error;
+        }
+    }
+
+    /**
+     * Gets an empty input buffer, waiting for one if all are in use.
+     */
+    private byte[] getFreeBuffer() throws IOException {
+        synchronized (queue) {
+            while (freeBuffers.isEmpty() && allocatedBuffers == bufferCount
+                    && exception == null && error == null) {
+                try {
+                    queue.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new XZIOException("Interrupted while waiting "
+                            + "for a free input buffer");
+                }
+            }
+
+            throwException();
+
+            if (!freeBuffers.isEmpty())
+                return (byte[])freeBuffers.removeFirst();
+
+            ++allocatedBuffers;
+        }
+
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Gives the current input buffer to the background thread
+     * if it has any data.
+     */
+    private void submitInput() {
+        if (inPos > 0) {
+            submit(new Request(WRITE, inBuf, inPos));
+            inBuf = null;
+            inPos = 0;
+        }
+    }
+
+    /**
+     * Queues a request for the background thread and starts the thread
+     * if it isn't running.
+     */
+    private void submit(Request request) {
+        synchronized (queue) {
+            queue.addLast(request);
+            ++submitted;
+
+            if (worker == null) {
+                worker = new Worker();
+                worker.start();
+            }
+        }
+    }
+
+    /**
+     * Waits until the background thread has processed all requests
+     * or stopped because of an exception.
+     */
+    private void waitForWorker() throws IOException {
+        synchronized (queue) {
+            while (completed < submitted && exception == null
+                    && error == null) {
+                try {
+                    queue.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new XZIOException("Interrupted while waiting "
+                            + "for the background thread");
+                }
+            }
+
+            throwException();
+        }
+    }
+
+    private class Worker extends Thread {
+        Worker() {
+            super("XZ encoder");
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (true) {
+                Request request;
+
+                synchronized (queue) {
+                    // Exit when there is nothing to do. submit starts
+                    // a new thread for the next request. This way
+                    // the thread doesn't keep the encoder alive if
+                    // the stream is abandoned.
+                    if (queue.isEmpty()) {
+                        worker = null;
+                        return;
+                    }
+
+                    request = (Request)queue.removeFirst();
+                }
+
+                IOException newException = null;
+                Throwable newError = null;
+
+                // Errors are caught too. Otherwise the writing thread
+                // could wait forever.
+                try {
+                    switch (request.op) {
+                        case WRITE:
+                            xz.write(request.buf, 0, request.size);
+                            break;
+
+                        case FLUSH:
+                            xz.flush();
+                            break;
+
+                        case END_BLOCK:
+                            xz.endBlock();
+                            break;
+
+                        case FINISH:
+                            xz.finish();
+                            break;
+
+                        case CLOSE:
+                            xz.close();
+                            break;
+
+                        default:
+                            throw new Error();
+                    }
+                } catch (IOException e) {
+                    newException = e;
+                } catch (RuntimeException e) {
+                    newError = e;
+                } catch (Error e) {
+                    newError = e;
+                }
+
+                synchronized (queue) {
+                    if (request.buf != null)
+                        freeBuffers.addLast(request.buf);
+
+                    ++completed;
+
+                    if (newException != null || newError != null) {
+                        // The requests after the failed one are discarded.
+                        exception = newException;
+                        error = newError;
+                        queue.clear();
+                    }
+
+                    queue.notifyAll();
+
+                    if (exception != null || error != null) {
+                        worker = null;
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -42,7 +42,8 @@ class BCJEncoder extends BCJCoder implements FilterEncoder {
         return false;
     }
 
-    public FinishableOutputStream getOutputStream(FinishableOutputStream out) {
+    public FinishableOutputStream getOutputStream(FinishableOutputStream out,
+                                                  ArrayCache arrayCache) {
         return options.getOutputStream(out);
     }
 }
@@ -0,0 +1,247 @@
+/*
+ * BasicArrayCache
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+
+/**
+ * A basic {@link ArrayCache} implementation.
+ * <p>
+ * This caches exact array sizes, that is, <code>getByteArray</code> will
+ * return an array whose size is exactly the requested size. A limited
+ * number of different array sizes are cached at the same time; least
+ * recently used sizes will be dropped from the cache if needed (can happen
+ * if several different (de)compression options are used with the same
+ * cache).
+ * <p>
+ * The current implementation uses
+ * {@link java.lang.ref.SoftReference SoftReference} so that the garbage
+ * collector can free the cached arrays when memory runs low. Arrays
+ * smaller than 32&nbsp;KiB aren't cached because allocating them is cheap.
+ * <p>
+ * This class is thread safe.
+ *
+ * @since 1.7
+ */
+public class BasicArrayCache extends ArrayCache {
+    /**
+     * Arrays smaller than this many elements will not be cached.
+     */
+    private static final int CACHEABLE_SIZE_MIN = 32 << 10;
+
+    /**
+     * Number of stacks i.e. how many different array sizes to cache.
+     */
+    private static final int STACKS_MAX = 32;
+
+    /**
+     * Number of arrays of the same type and size to keep in the cache.
+     * (ELEMENTS_PER_STACK - 1) is used as a bit mask so ELEMENTS_PER_STACK
+     * must be a power of two!
+     */
+    private static final int ELEMENTS_PER_STACK = 512;
+
+    /**
+     * A thread-safe stack-like data structure whose <code>push</code> method
+     * overwrites the oldest element in the stack if the stack is full.
+     */
+    private static class CyclicStack {
+        /**
+         * Array that holds the elements in the cyclic stack.
+         */
+        private final SoftReference[] elements
+                = new SoftReference[ELEMENTS_PER_STACK];
+
+        /**
+         * Read-write position in the <code>elements</code> array.
+         * The most recently added element is in <code>elements[pos]</code>.
+         * If it is <code>null</code>, then the stack is empty and all
+         * elements in <code>elements</code> are <code>null</code>.
+         * <p>
+         * Note that <code>pop()</code> always modifies <code>pos</code>,
+         * even if the stack is empty. This means that when the first
+         * element is added by <code>push(Object)</code>, it can get
+         * added in any position in <code>elements</code> and the stack will
+         * start growing from there.
+         */
+        private int pos = 0;
+
+        /**
+         * Gets the most recently added element from the stack.
+         * If the stack is empty, <code>null</code> is returned.
+         */
+        public synchronized Object pop() {
+            SoftReference ref = elements[pos];
+            elements[pos] = null;
+            pos = (pos - 1) & (ELEMENTS_PER_STACK - 1);
+            return ref == null ? null : ref.get();
+        }
+
+        /**
+         * Adds a new element to the stack. If the stack is full, the oldest
+         * element is overwritten.
+         */
+        public synchronized void push(Object array) {
+            pos = (pos + 1) & (ELEMENTS_PER_STACK - 1);
+            elements[pos] = new SoftReference(array);
+        }
+    }
+
+    /**
+     * Maps array sizes to stacks of arrays of that size. The arrays are
+     * kept in least recently used order: the most recently used size is
+     * the last element. Empty slots are at the beginning and have
+     * the size <code>-1</code>.
+     * <p>
+     * There are at most <code>STACKS_MAX</code> sizes, so a linear search
+     * is plenty fast and avoids boxing the sizes for a Map.
+     */
+    private static class CacheMap {
+        private final int[] sizes = new int[STACKS_MAX];
+        private final CyclicStack[] stacks = new CyclicStack[STACKS_MAX];
+
+        CacheMap() {
+            Arrays.fill(sizes, -1);
+        }
+
+        /**
+         * Gets the stack for the given size and marks it as the most
+         * recently used. If <code>create</code> is true, a missing stack
+         * is created, possibly dropping the least recently used one.
+         * Otherwise <code>null</code> is returned if there is no stack
+         * for the given size.
+         */
+        synchronized CyclicStack get(int size, boolean create) {
+            int i = sizes.length - 1;
+            while (i >= 0 && sizes[i] != size)
+                --i;
+
+            CyclicStack stack;
+
+            if (i >= 0) {
+                stack = stacks[i];
+            } else if (create) {
+                stack = new CyclicStack();
+                i = 0;
+            } else {
+                return null;
+            }
+
+            // Move the stack to the end. If it was a new one, this
+            // drops the least recently used stack from the beginning.
+            System.arraycopy(sizes, i + 1, sizes, i, sizes.length - i - 1);
+            System.arraycopy(stacks, i + 1, stacks, i, stacks.length - i - 1);
+            sizes[sizes.length - 1] = size;
+            stacks[stacks.length - 1] = stack;
+
+            return stack;
+        }
+    }
+
+    /**
+     * Stacks for cached byte arrays.
+     */
+    private final CacheMap byteArrayCache = new CacheMap();
+
+    /**
+     * Stacks for cached int arrays.
+     */
+    private final CacheMap intArrayCache = new CacheMap();
+
+    /**
+     * Singleton instance that is returned by <code>getInstance()</code>.
+     */
+    private static final BasicArrayCache instance = new BasicArrayCache();
+
+    /**
+     * Returns a statically-allocated <code>BasicArrayCache</code> instance.
+     * This is often a good choice when a cache is needed.
+     */
+    public static BasicArrayCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Creates a new <code>BasicArrayCache</code>. If you need a cache that is
+     * shared by all code in the application, you may want to call
+     * {@link #getInstance()} instead.
+     */
+    public BasicArrayCache() {}
+
+    /**
+     * Allocates a new byte array, hopefully reusing an existing
+     * array from the cache.
+     *
+     * @param       size            size of the array to allocate
+     *
+     * @param       fillWithZeros   if true, all the elements of the returned
+     *                              array will be zero; if false, the contents
+     *                              of the returned array is undefined
+     */
+    public byte[] getByteArray(int size, boolean fillWithZeros) {
+        byte[] array = null;
+
+        if (size >= CACHEABLE_SIZE_MIN) {
+            CyclicStack stack = byteArrayCache.get(size, false);
+            if (stack != null)
+                array = (byte[])stack.pop();
+        }
+
+        if (array == null)
+            array = new byte[size];
+        else if (fillWithZeros)
+            Arrays.fill(array, (byte)0x00);
+
+        return array;
+    }
+
+    /**
+     * Puts the given byte array to the cache. The caller must no longer
+     * use the array.
+     * <p>
+     * Small arrays aren't cached and will be ignored by this method.
+     */
+    public void putArray(byte[] array) {
+        if (array.length >= CACHEABLE_SIZE_MIN)
+            byteArrayCache.get(array.length, true).push(array);
+    }
+
+    /**
+     * This is like getByteArray but for int arrays.
+     */
+    public int[] getIntArray(int size, boolean fillWithZeros) {
+        int[] array = null;
+
+        if (size >= CACHEABLE_SIZE_MIN) {
+            CyclicStack stack = intArrayCache.get(size, false);
+            if (stack != null)
+                array = (int[])stack.pop();
+        }
+
+        if (array == null)
+            array = new int[size];
+        else if (fillWithZeros)
+            Arrays.fill(array, 0);
+
+        return array;
+    }
+
+    /**
+     * Puts the given int array to the cache. The caller must no longer
+     * use the array.
+     * <p>
+     * Small arrays aren't cached and will be ignored by this method.
+     */
+    public void putArray(int[] array) {
+        if (array.length >= CACHEABLE_SIZE_MIN)
+            intArrayCache.get(array.length, true).push(array);
+    }
+}
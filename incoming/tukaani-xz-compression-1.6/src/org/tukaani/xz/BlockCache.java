@@ -0,0 +1,169 @@
+/*
+ * BlockCache
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of decompressed XZ Blocks for {@link SeekableXZInputStream}.
+ * <p>
+ * Without a cache, every seek to the middle of a Block has to decompress
+ * the Block from its beginning. When the same Blocks are read over and
+ * over again, a <code>BlockCache</code> keeps their decompressed contents
+ * in RAM so that repeated reads don't need to decompress anything.
+ * <p>
+ * The cache is limited by the total uncompressed size of the cached
+ * Blocks. When the limit would be exceeded, the least recently used Blocks
+ * are dropped. Blocks that are bigger than the limit aren't cached.
+ * <p>
+ * One cache can be shared by multiple <code>SeekableXZInputStream</code>s
+ * that read <em>the same file</em>, also from different threads. The Blocks
+ * are identified by their Block numbers, so a cache must never be shared
+ * between different files.
+ *
+ * @since 1.7
+ */
+public class BlockCache {
+    /**
+     * Decompressed Blocks in least recently used order. The keys are
+     * Block numbers as <code>Integer</code>s and the values are
+     * the decompressed data as byte arrays.
+     */
+    private final LinkedHashMap blocks = new LinkedHashMap(16, 0.75f, true);
+
+    private final long sizeMax;
+    private long size = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Uncompressed size and the number of Blocks of the file that this
+     * cache is used for. These are used to detect if the cache is
+     * accidentally shared between different files.
+     */
+    private long fileSize = -1;
+    private int fileBlockCount = -1;
+
+    /**
+     * Creates a new cache that keeps at most <code>sizeMax</code> bytes
+     * of decompressed data.
+     *
+     * @param       sizeMax     maximum total uncompressed size of
+     *                          the cached Blocks
+     *
+     * @throws      IllegalArgumentException
+     *                          <code>sizeMax</code> is negative
+     */
+    public BlockCache(long sizeMax) {
+        if (sizeMax < 0)
+            throw new IllegalArgumentException(
+                    "Cache size limit must not be negative: " + sizeMax);
+
+        this.sizeMax = sizeMax;
+    }
+
+    /**
+     * Gets the maximum total uncompressed size of the cached Blocks.
+     */
+    public long getSizeMax() {
+        return sizeMax;
+    }
+
+    /**
+     * Gets the current total uncompressed size of the cached Blocks.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the number of Blocks that were found in the cache.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of Blocks that weren't found in the cache and
+     * had to be decompressed.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Drops all Blocks from the cache. The hit and miss counters
+     * are not reset.
+     */
+    public synchronized void clear() {
+        blocks.clear();
+        size = 0;
+    }
+
+    /**
+     * Checks that this cache is used only with one file.
+     *
+     * @throws      IllegalArgumentException
+     *                          the cache has already been used with
+     *                          a different file
+     */
+    synchronized void attach(long fileSize, int fileBlockCount) {
+        if (this.fileSize == -1) {
+            this.fileSize = fileSize;
+            this.fileBlockCount = fileBlockCount;
+        } else if (this.fileSize != fileSize
+                || this.fileBlockCount != fileBlockCount) {
+            throw new IllegalArgumentException(
+                    "BlockCache cannot be shared between different files");
+        }
+    }
+
+    /**
+     * Gets the decompressed data of the given Block and marks it as
+     * the most recently used. The returned array must not be modified.
+     *
+     * @return      the decompressed Block, or <code>null</code> if
+     *              the Block isn't in the cache
+     */
+    synchronized byte[] get(int blockNumber) {
+        byte[] data = (byte[])blocks.get(new Integer(blockNumber));
+
+        if (data == null)
+            ++misses;
+        else
+            ++hits;
+
+        return data;
+    }
+
+    /**
+     * Adds a decompressed Block to the cache, dropping the least recently
+     * used Blocks if needed. The array must not be modified afterwards.
+     */
+    synchronized void put(int blockNumber, byte[] data) {
+        if (data.length > sizeMax)
+            return;
+
+        byte[] old = (byte[])blocks.put(new Integer(blockNumber), data);
+        size += data.length;
+        if (old != null)
+            size -= old.length;
+
+        Iterator i = blocks.entrySet().iterator();
+        while (size > sizeMax) {
+            Map.Entry entry = (Map.Entry)i.next();
+            size -= ((byte[])entry.getValue()).length;
+            i.remove();
+        }
+    }
+}
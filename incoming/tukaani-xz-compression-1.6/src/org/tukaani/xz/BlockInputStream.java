@@ -13,6 +13,7 @@ import java.io.InputStream;
 import java.io.DataInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.EOFException;
 import java.util.Arrays;
 import org.tukaani.xz.common.DecoderUtil;
 import org.tukaani.xz.check.Check;
@@ -20,7 +21,9 @@ import org.tukaani.xz.check.Check;
 class BlockInputStream extends InputStream {
     private final DataInputStream inData;
     private final CountingInputStream inCounted;
-    private InputStream filterChain;
+    private final FilterDecoder[] filters;
+    private final ArrayCache arrayCache;
+    private InputStream filterChain = null;
     private final Check check;
     private final boolean verifyCheck;
 
@@ -31,13 +34,27 @@ class BlockInputStream extends InputStream {
     private long uncompressedSize = 0;
     private boolean endReached = false;
 
+    /**
+     * Memory usage of the filter chain in KiB.
+     */
+    private final int memoryUsage;
+
+    private XZStatsListener statsListener = null;
+
+    /**
+     * Time spent calculating the integrity check when statistics
+     * are collected.
+     */
+    private long checkTime = 0;
+
     private final byte[] tempBuf = new byte[1];
 
     public BlockInputStream(InputStream in,
                             Check check, boolean verifyCheck,
                             int memoryLimit,
                             long unpaddedSizeInIndex,
-                            long uncompressedSizeInIndex)
+                            long uncompressedSizeInIndex,
+                            ArrayCache arrayCache)
             throws IOException, IndexIndicatorException {
         this.check = check;
         this.verifyCheck = verifyCheck;
@@ -180,23 +197,38 @@ class BlockInputStream extends InputStream {
         RawCoder.validate(filters);
 
         // Check the memory usage limit.
-        if (memoryLimit >= 0) {
-            int memoryNeeded = 0;
-            for (int i = 0; i < filters.length; ++i)
-                memoryNeeded += filters[i].getMemoryUsage();
+        int memoryNeeded = 0;
+        for (int i = 0; i < filters.length; ++i)
+            memoryNeeded += filters[i].getMemoryUsage();
 
-            if (memoryNeeded > memoryLimit)
-                throw new MemoryLimitException(memoryNeeded, memoryLimit);
-        }
+        if (memoryLimit >= 0 && memoryNeeded > memoryLimit)
+            throw new MemoryLimitException(memoryNeeded, memoryLimit);
+
+        memoryUsage = memoryNeeded;
 
         // Use an input size counter to calculate
         // the size of the Compressed Data field.
         inCounted = new CountingInputStream(in);
 
-        // Initialize the filter chain.
+        // The filter chain is initialized when it is needed for the first
+        // time. This way skipBlock() doesn't need to allocate the big
+        // arrays of the filters.
+        this.filters = filters;
+        this.arrayCache = arrayCache;
+    }
+
+    private void initFilterChain() {
         filterChain = inCounted;
         for (int i = filters.length - 1; i >= 0; --i)
-            filterChain = filters[i].getInputStream(filterChain);
+            filterChain = filters[i].getInputStream(filterChain, arrayCache);
+    }
+
+    /**
+     * Sets the listener to call once the Block has been decompressed
+     * and validated.
+     */
+    public void setStatsListener(XZStatsListener statsListener) {
+        this.statsListener = statsListener;
     }
 
     public int read() throws IOException {
@@ -207,11 +239,21 @@ class BlockInputStream extends InputStream {
         if (endReached)
             return -1;
 
+        if (filterChain == null)
+            initFilterChain();
+
         int ret = filterChain.read(buf, off, len);
 
         if (ret > 0) {
-            if (verifyCheck)
-                check.update(buf, off, ret);
+            if (verifyCheck) {
+                if (statsListener == null) {
+                    check.update(buf, off, ret);
+                } else {
+                    long start = System.nanoTime();
+                    check.update(buf, off, ret);
+                    checkTime += System.nanoTime() - start;
+                }
+            }
 
             uncompressedSize += ret;
 
@@ -232,7 +274,7 @@ class BlockInputStream extends InputStream {
             //     one byte to let the filter chain catch errors and to
             //     let it read end of payload marker(s).
             if (ret < len || uncompressedSize == uncompressedSizeInHeader) {
-                if (filterChain.read() != -1)
+                if (filterChain.read(tempBuf, 0, 1) != -1)
                     throw new CorruptedInputException();
 
                 validate();
@@ -265,13 +307,103 @@ class BlockInputStream extends InputStream {
         // Validate the integrity check if verifyCheck is true.
         byte[] storedCheck = new byte[check.getSize()];
         inData.readFully(storedCheck);
-        if (verifyCheck && !Arrays.equals(check.finish(), storedCheck))
-            throw new CorruptedInputException("Integrity check ("
-                    + check.getName() + ") does not match");
+
+        if (verifyCheck) {
+            long start = statsListener == null ? 0 : System.nanoTime();
+            byte[] computedCheck = check.finish();
+            if (statsListener != null)
+                checkTime += System.nanoTime() - start;
+
+            if (!Arrays.equals(computedCheck, storedCheck))
+                throw new CorruptedInputException("Integrity check ("
+                        + check.getName() + ") does not match");
+        }
+
+        if (statsListener != null)
+            statsListener.blockDecoded(uncompressedSize, getUnpaddedSize(),
+                                       memoryUsage, checkTime);
     }
 
     public int available() throws IOException {
-        return filterChain.available();
+        return filterChain == null ? 0 : filterChain.available();
+    }
+
+    /**
+     * Returns the uncompressed size of the Block if it can be skipped
+     * with <code>skipBlock()</code>, or <code>-1</code> if it cannot.
+     * A Block can be skipped if nothing has been read from it yet and
+     * both its compressed and uncompressed sizes are known.
+     */
+    public long getSkippableSize() {
+        return filterChain == null && !endReached
+                && compressedSizeInHeader != -1
+                && uncompressedSizeInHeader != -1
+               ? uncompressedSizeInHeader : -1;
+    }
+
+    /**
+     * Skips the whole Block without decompressing it. The integrity
+     * check isn't verified so this should be used only when verifying
+     * the check hasn't been requested.
+     */
+    public void skipBlock() throws IOException {
+        assert getSkippableSize() != -1;
+
+        skipFully(inCounted, compressedSizeInHeader);
+        uncompressedSize = uncompressedSizeInHeader;
+        endReached = true;
+
+        // Block Padding bytes must be zeros.
+        for (long i = compressedSizeInHeader; (i & 3) != 0; ++i)
+            if (inData.readUnsignedByte() != 0x00)
+                throw new CorruptedInputException();
+
+        skipFully(inData, check.getSize());
+    }
+
+    private static void skipFully(InputStream in, long n)
+            throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+
+            if (skipped > 0) {
+                n -= skipped;
+            } else {
+                // skip() may return 0 for other reasons than
+                // the end of the input, so check it with read().
+                if (in.read() == -1)
+                    throw new EOFException();
+
+                --n;
+            }
+        }
+    }
+
+    /**
+     * Closes the filter chain so that the filters can give their big
+     * arrays back to the array cache. The input stream given to
+     * the constructor is not closed.
+     */
+    public void close() {
+        if (filterChain == null)
+            return;
+
+        try {
+            filterChain.close();
+        } catch (IOException e) {
+            // None of the filters can throw an IOException here
+            // because CountingInputStream.close() does nothing.
+            assert false;
+        }
+    }
+
+    /**
+     * Gets the memory usage of the filter chain as kibibytes. This is
+     * known after the Block Header has been parsed even though the big
+     * arrays of the filters aren't allocated until the first read.
+     */
+    int getMemoryUsage() {
+        return memoryUsage;
     }
 
     public long getUnpaddedSize() {
@@ -39,6 +39,21 @@ class CountingInputStream extends FilterInputStream {
         return ret;
     }
 
+    public long skip(long n) throws IOException {
+        long ret = in.skip(n);
+        if (ret > 0 && size >= 0)
+            size += ret;
+
+        return ret;
+    }
+
+    /**
+     * Does nothing. <code>BlockInputStream</code> closes its filter chain
+     * to give the big arrays back to the array cache, but the underlying
+     * input stream belongs to the caller and must stay open.
+     */
+    public void close() {}
+
     public long getSize() {
         return size;
     }
@@ -30,7 +30,8 @@ class DeltaEncoder extends DeltaCoder implements FilterEncoder {
         return true;
     }
 
-    public FinishableOutputStream getOutputStream(FinishableOutputStream out) {
+    public FinishableOutputStream getOutputStream(FinishableOutputStream out,
+                                                  ArrayCache arrayCache) {
         return options.getOutputStream(out);
     }
 }
@@ -0,0 +1,291 @@
+/*
+ * DictionaryTrainer
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz;
+
+import java.util.Arrays;
+
+/**
+ * Builds a preset dictionary from sample data.
+ * <p>
+ * A preset dictionary helps when compressing lots of small pieces of
+ * data that have a lot in common but are compressed independently from
+ * each other, for example, messages of a network protocol or records of
+ * a database. The dictionary should contain the strings that are common
+ * in the data. This class finds such strings in a set of samples that
+ * are typical of the data to be compressed.
+ * <p>
+ * The samples are divided into segments. Each segment gets a score that
+ * is the sum of the number of samples in which each of its substrings of
+ * <code>SUBSTRING_LEN</code> bytes appears. Substrings that are already
+ * in the dictionary don't count again. The best segments are selected
+ * and placed so that the best ones are at the end of the dictionary.
+ * That way the most common strings are at the shortest distances from
+ * the data being compressed, which makes the matches cheaper to encode.
+ * <p>
+ * The dictionary is used with {@link LZMA2Options#setPresetDict(byte[])}
+ * or {@link PrimedDictionary} when compressing with
+ * {@link LZMA2OutputStream} or a raw {@link LZMAOutputStream}. The same
+ * dictionary must be given to {@link LZMA2InputStream} or
+ * {@link LZMAInputStream} when decompressing. The .xz format doesn't
+ * support preset dictionaries.
+ * <p>
+ * Example:
+ * <p><blockquote><pre>
+ * byte[] dict = DictionaryTrainer.train(samples, 32 &lt;&lt; 10);
+ * LZMA2Options options = new LZMA2Options();
+ * options.setDictSize(256 &lt;&lt; 10);
+ * options.setPrimedDict(new PrimedDictionary(dict, options));
+ * </pre></blockquote>
+ * <p>
+ * The samples should total at least ten times the dictionary size.
+ * With less sample data the dictionary will mostly contain strings that
+ * aren't common in the rest of the data. This class needs about
+ * 12&nbsp;MiB of memory in addition to the samples.
+ *
+ * @since 1.7
+ */
+public class DictionaryTrainer {
+    /**
+     * Length of the substrings whose frequencies are counted.
+     */
+    public static final int SUBSTRING_LEN = 8;
+
+    /**
+     * Default size of a segment.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 256;
+
+    private static final int HASH_BITS = 20;
+
+    private DictionaryTrainer() {}
+
+    /**
+     * Builds a dictionary of at most <code>dictSize</code> bytes using
+     * the default segment size.
+     *
+     * @param       samples     sample data; each sample should be
+     *                          a separate piece of data like one message
+     *
+     * @param       dictSize    maximum size of the dictionary
+     *
+     * @return      the dictionary, which is shorter than
+     *              <code>dictSize</code> if there isn't enough common
+     *              data in the samples
+     */
+    public static byte[] train(byte[][] samples, int dictSize) {
+        return train(samples, dictSize, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Builds a dictionary of at most <code>dictSize</code> bytes from
+     * segments of <code>segmentSize</code> bytes. Smaller segments suit
+     * samples that have short common strings in varying order. Bigger
+     * segments keep longer common parts of the samples intact.
+     *
+     * @param       samples     sample data; each sample should be
+     *                          a separate piece of data like one message
+     *
+     * @param       dictSize    maximum size of the dictionary
+     *
+     * @param       segmentSize size of the pieces that the dictionary
+     *                          is built from
+     *
+     * @return      the dictionary, which is shorter than
+     *              <code>dictSize</code> if there isn't enough common
+     *              data in the samples
+     *
+     * @throws      IllegalArgumentException
+     *                          <code>dictSize</code> is negative or
+     *                          <code>segmentSize</code> is less than
+     *                          <code>SUBSTRING_LEN</code>
+     */
+    public static byte[] train(byte[][] samples, int dictSize,
+                               int segmentSize) {
+        if (dictSize < 0)
+            throw new IllegalArgumentException(
+                    "Dictionary size must not be negative");
+
+        if (segmentSize < SUBSTRING_LEN)
+            throw new IllegalArgumentException(
+                    "Segment size must be at least " + SUBSTRING_LEN);
+
+        // Put the samples one after another. A substring that would
+        // continue to the next sample gets the hash value -1.
+        int total = 0;
+        for (int i = 0; i < samples.length; ++i)
+            total += samples[i].length;
+
+        byte[] data = new byte[total];
+        int[] hashes = new int[total];
+        Arrays.fill(hashes, -1);
+
+        // Count in how many samples each substring appears. lastSample
+        // makes a substring count only once per sample.
+        int[] freq = new int[1 << HASH_BITS];
+        int[] lastSample = new int[1 << HASH_BITS];
+        Arrays.fill(lastSample, -1);
+
+        int pos = 0;
+        for (int i = 0; i < samples.length; ++i) {
+            byte[] sample = samples[i];
+            System.arraycopy(sample, 0, data, pos, sample.length);
+
+            for (int j = 0; j + SUBSTRING_LEN <= sample.length; ++j) {
+                int h = hash(sample, j);
+                hashes[pos + j] = h;
+
+                if (lastSample[h] != i) {
+                    lastSample[h] = i;
+                    ++freq[h];
+                }
+            }
+
+            pos += sample.length;
+        }
+
+        lastSample = null;
+
+        // Divide the data into as many epochs as fit into the dictionary
+        // and select the best segment from each epoch. This keeps
+        // the running time linear and gives segments from all parts of
+        // the samples.
+        int epochs = Math.max(1, Math.min(dictSize / segmentSize,
+                                          total / segmentSize));
+        int epochSize = total / epochs;
+
+        int[] active = new int[1 << HASH_BITS];
+        int[] segStart = new int[epochs];
+        long[] order = new long[epochs];
+        int segCount = 0;
+
+        for (int e = 0; e < epochs && dictSize > 0; ++e) {
+            int start = e * epochSize;
+            int end = Math.min(total, start + epochSize + segmentSize);
+            int best = findBestSegment(hashes, freq, active, start, end,
+                                       segmentSize);
+            if (best < 0)
+                continue;
+
+            // Score the selected segment and remove its substrings from
+            // the counts so that they won't be selected again.
+            long score = 0;
+            int last = Math.min(best + segmentSize - SUBSTRING_LEN + 1,
+                                total);
+            for (int i = best; i < last; ++i) {
+                int h = hashes[i];
+                if (h >= 0) {
+                    score += freq[h];
+                    freq[h] = 0;
+                }
+            }
+
+            segStart[segCount] = best;
+            order[segCount] = (Math.min(score, Integer.MAX_VALUE) << 32)
+                              | segCount;
+            ++segCount;
+        }
+
+        // Sort by score so that the best segments end up at the end of
+        // the dictionary. If the segments don't fit, the worst ones are
+        // dropped.
+        Arrays.sort(order, 0, segCount);
+
+        int[] segSize = new int[segCount];
+        int dictPos = 0;
+        for (int i = segCount - 1; i >= 0 && dictPos < dictSize; --i) {
+            int s = (int)order[i];
+            segSize[s] = Math.min(Math.min(segmentSize, total - segStart[s]),
+                                  dictSize - dictPos);
+            dictPos += segSize[s];
+        }
+
+        byte[] dict = new byte[dictPos];
+        dictPos = 0;
+        for (int i = 0; i < segCount; ++i) {
+            int s = (int)order[i];
+            if (segSize[s] > 0) {
+                // If the segment had to be truncated, keep its end.
+                int len = Math.min(segmentSize, total - segStart[s]);
+                System.arraycopy(data, segStart[s] + len - segSize[s],
+                                 dict, dictPos, segSize[s]);
+                dictPos += segSize[s];
+            }
+        }
+
+        return dict;
+    }
+
+    /**
+     * Finds the segment with the highest score that starts in
+     * <code>[start, end - segmentSize]</code>. Every substring is
+     * counted only once per segment.
+     *
+     * @return      start position of the best segment, or -1 if no
+     *              segment has a positive score
+     */
+    private static int findBestSegment(int[] hashes, int[] freq,
+                                       int[] active, int start, int end,
+                                       int segmentSize) {
+        // Number of substring positions in a segment
+        int window = segmentSize - SUBSTRING_LEN + 1;
+
+        long score = 0;
+        long bestScore = 0;
+        int best = -1;
+
+        // Slide the window one position at a time. active[h] counts
+        // how many times h appears in the current window.
+        for (int i = start; i < end; ++i) {
+            int h = hashes[i];
+            if (h >= 0 && active[h]++ == 0)
+                score += freq[h];
+
+            int first = i - window + 1;
+            if (first < start) {
+                // If the whole range is shorter than a segment,
+                // it is used as one segment.
+                if (i == end - 1 && score > bestScore)
+                    best = start;
+
+                continue;
+            }
+
+            if (score > bestScore) {
+                bestScore = score;
+                best = first;
+            }
+
+            h = hashes[first];
+            if (h >= 0 && --active[h] == 0)
+                score -= freq[h];
+        }
+
+        // Clear the counts of the positions that are still in the window.
+        for (int i = Math.max(start, end - window + 1); i < end; ++i) {
+            int h = hashes[i];
+            if (h >= 0)
+                --active[h];
+        }
+
+        return best;
+    }
+
+    private static int hash(byte[] buf, int off) {
+        long x = (buf[off] & 0xFFL)
+                 | ((buf[off + 1] & 0xFFL) << 8)
+                 | ((buf[off + 2] & 0xFFL) << 16)
+                 | ((buf[off + 3] & 0xFFL) << 24)
+                 | ((buf[off + 4] & 0xFFL) << 32)
+                 | ((buf[off + 5] & 0xFFL) << 40)
+                 | ((buf[off + 6] & 0xFFL) << 48)
+                 | ((buf[off + 7] & 0xFFL) << 56);
+        return (int)((x * 0x9E3779B97F4A7C15L) >>> (64 - HASH_BITS));
+    }
+}
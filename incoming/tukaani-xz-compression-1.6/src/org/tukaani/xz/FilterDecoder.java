@@ -13,5 +13,5 @@ import java.io.InputStream;
 
 interface FilterDecoder extends FilterCoder {
     int getMemoryUsage();
-    InputStream getInputStream(InputStream in);
+    InputStream getInputStream(InputStream in, ArrayCache arrayCache);
 }
@@ -13,5 +13,6 @@ interface FilterEncoder extends FilterCoder {
     long getFilterID();
     byte[] getFilterProps();
     boolean supportsFlushing();
-    FinishableOutputStream getOutputStream(FinishableOutputStream out);
+    FinishableOutputStream getOutputStream(FinishableOutputStream out,
+                                           ArrayCache arrayCache);
 }
@@ -62,6 +62,18 @@ public abstract class FilterOptions implements Cloneable {
     public abstract FinishableOutputStream getOutputStream(
             FinishableOutputStream out);
 
+    /**
+     * Gets a raw (no XZ headers) encoder output stream using these options
+     * and the given <code>ArrayCache</code>. Filters that don't allocate
+     * big arrays ignore <code>arrayCache</code>.
+     *
+     * @since 1.7
+     */
+    public FinishableOutputStream getOutputStream(FinishableOutputStream out,
+                                                  ArrayCache arrayCache) {
+        return getOutputStream(out);
+    }
+
     /**
      * Gets how much memory the decoder will need to decompress the data
      * that was encoded with these options.
@@ -74,6 +86,18 @@ public abstract class FilterOptions implements Cloneable {
     public abstract InputStream getInputStream(InputStream in)
             throws IOException;
 
+    /**
+     * Gets a raw (no XZ headers) decoder input stream using these options
+     * and the given <code>ArrayCache</code>. Filters that don't allocate
+     * big arrays ignore <code>arrayCache</code>.
+     *
+     * @since 1.7
+     */
+    public InputStream getInputStream(InputStream in, ArrayCache arrayCache)
+            throws IOException {
+        return getInputStream(in);
+    }
+
     abstract FilterEncoder getFilterEncoder();
 
     FilterOptions() {}
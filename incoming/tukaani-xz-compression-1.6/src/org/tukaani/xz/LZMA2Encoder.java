@@ -15,6 +15,22 @@ class LZMA2Encoder extends LZMA2Coder implements FilterEncoder {
     private final LZMA2Options options;
     private final byte[] props = new byte[1];
 
+    /**
+     * If true, <code>getOutputStream</code> resets and returns the same
+     * LZMA2 encoder every time instead of creating a new one. This must
+     * be enabled only if the encoder is used by one Block at a time.
+     */
+    private boolean reuseEncoder = false;
+    private LZMA2OutputStream encoder = null;
+
+    /**
+     * Stored size of the reused encoders that have been given back to
+     * the cache
+     */
+    private long storedSize = 0;
+
+    private XZStatsListener statsListener = null;
+
     LZMA2Encoder(LZMA2Options options) {
         if (options.getPresetDict() != null)
             throw new IllegalArgumentException(
@@ -44,7 +60,64 @@ class LZMA2Encoder extends LZMA2Coder implements FilterEncoder {
         return true;
     }
 
-    public FinishableOutputStream getOutputStream(FinishableOutputStream out) {
-        return options.getOutputStream(out);
+    public FinishableOutputStream getOutputStream(FinishableOutputStream out,
+                                                  ArrayCache arrayCache) {
+        if (options.getMode() == LZMA2Options.MODE_UNCOMPRESSED
+                || options.getThreads() > 1)
+            return options.getOutputStream(out, arrayCache);
+
+        if (!reuseEncoder) {
+            LZMA2OutputStream newEncoder = new LZMA2OutputStream(
+                    out, options, arrayCache);
+            newEncoder.setStatsListener(statsListener);
+            return newEncoder;
+        }
+
+        if (encoder == null)
+            encoder = new LZMA2OutputStream(out, options, arrayCache, true);
+        else
+            encoder.reset(out);
+
+        encoder.setStatsListener(statsListener);
+        return encoder;
+    }
+
+    /**
+     * Sets the listener to give to the LZMA2 encoders that are created
+     * or reset by the following calls to <code>getOutputStream</code>.
+     */
+    void setStatsListener(XZStatsListener statsListener) {
+        this.statsListener = statsListener;
+    }
+
+    /**
+     * Enables reusing the LZMA2 encoder between XZ Blocks. The same
+     * <code>ArrayCache</code> must be used in every call to
+     * <code>getOutputStream</code>.
+     */
+    void setReuseEncoder() {
+        reuseEncoder = true;
+    }
+
+    /**
+     * Gets the total uncompressed size of the data that the reused
+     * LZMA2 encoder has stored in uncompressed chunks.
+     */
+    long getStoredSize() {
+        return encoder == null ? storedSize
+                               : storedSize + encoder.getStoredSize();
+    }
+
+    /**
+     * Puts the arrays of the reused LZMA2 encoder back to the cache.
+     * A new encoder will be created if <code>getOutputStream</code>
+     * is called again.
+     */
+    void putArraysToCache() {
+        if (encoder != null) {
+            storedSize += encoder.getStoredSize();
+            encoder.putArraysToCache();
+            encoder = null;
+        }
     }
 }
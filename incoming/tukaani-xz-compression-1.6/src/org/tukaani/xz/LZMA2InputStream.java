@@ -43,11 +43,11 @@ public class LZMA2InputStream extends InputStream {
 
     private static final int COMPRESSED_SIZE_MAX = 1 << 16;
 
+    private final ArrayCache arrayCache;
     private DataInputStream in;
 
-    private final LZDecoder lz;
-    private final RangeDecoderFromBuffer rc
-            = new RangeDecoderFromBuffer(COMPRESSED_SIZE_MAX);
+    private LZDecoder lz;
+    private RangeDecoderFromBuffer rc;
     private LZMADecoder lzma;
 
     private int uncompressedSize = 0;
@@ -59,7 +59,15 @@ public class LZMA2InputStream extends InputStream {
 
     private IOException exception = null;
 
-    private final byte[] tempBuf = new byte[1];
+    private static final int LOOKAHEAD_SIZE = 8 << 10;
+
+    /**
+     * Data decompressed ahead by <code>read()</code>. The buffer is
+     * allocated on the first call to <code>read()</code>.
+     */
+    private byte[] lookBuf = null;
+    private int lookPos = 0;
+    private int lookSize = 0;
 
     /**
      * Gets approximate decompressor memory requirements as kibibytes for
@@ -136,13 +144,43 @@ public class LZMA2InputStream extends InputStream {
      *                          to use no preset dictionary
      */
     public LZMA2InputStream(InputStream in, int dictSize, byte[] presetDict) {
+        this(in, dictSize, presetDict, ArrayCache.getDefaultCache());
+    }
+
+    /**
+     * Creates a new LZMA2 decompressor using a preset dictionary
+     * and array cache.
+     * <p>
+     * This is like <code>LZMA2InputStream(InputStream, int, byte[])</code>
+     * except that this also takes the <code>arrayCache</code> argument.
+     * The big arrays are given back to the cache when the end of
+     * the stream is reached or the stream is closed.
+     *
+     * @param       in          input stream from which LZMA2-compressed
+     *                          data is read
+     *
+     * @param       dictSize    LZMA2 dictionary size as bytes, must be
+     *                          in the range [<code>DICT_SIZE_MIN</code>,
+     *                          <code>DICT_SIZE_MAX</code>]
+     *
+     * @param       presetDict  preset dictionary or <code>null</code>
+     *                          to use no preset dictionary
+     *
+     * @param       arrayCache  cache to be used for allocating large arrays
+     *
+     * @since 1.7
+     */
+    public LZMA2InputStream(InputStream in, int dictSize, byte[] presetDict,
+                            ArrayCache arrayCache) {
         // Check for null because otherwise null isn't detect
         // in this constructor.
         if (in == null)
             throw new NullPointerException();
 
+        this.arrayCache = arrayCache;
         this.in = new DataInputStream(in);
-        this.lz = new LZDecoder(getDictSize(dictSize), presetDict);
+        this.rc = new RangeDecoderFromBuffer(COMPRESSED_SIZE_MAX, arrayCache);
+        this.lz = new LZDecoder(getDictSize(dictSize), presetDict, arrayCache);
 
         if (presetDict != null && presetDict.length > 0)
             needDictReset = false;
@@ -151,9 +189,8 @@ public class LZMA2InputStream extends InputStream {
     /**
      * Decompresses the next byte from this input stream.
      * <p>
-     * Reading lots of data with <code>read()</code> from this input stream
-     * may be inefficient. Wrap it in <code>java.io.BufferedInputStream</code>
-     * if you need to read lots of data one byte at a time.
+     * This decompresses a bigger piece of data at a time into an internal
+     * buffer, so reading lots of data one byte at a time is efficient.
      *
      * @return      the next decompressed byte, or <code>-1</code>
      *              to indicate the end of the compressed stream
@@ -168,7 +205,19 @@ public class LZMA2InputStream extends InputStream {
      * @throws      IOException may be thrown by <code>in</code>
      */
     public int read() throws IOException {
-        return read(tempBuf, 0, 1) == -1 ? -1 : (tempBuf[0] & 0xFF);
+        if (lookPos == lookSize) {
+            if (lookBuf == null)
+                lookBuf = new byte[LOOKAHEAD_SIZE];
+
+            int ret = decompress(lookBuf, 0, LOOKAHEAD_SIZE);
+            if (ret == -1)
+                return -1;
+
+            lookPos = 0;
+            lookSize = ret;
+        }
+
+        return lookBuf[lookPos++] & 0xFF;
     }
 
     /**
@@ -202,6 +251,33 @@ public class LZMA2InputStream extends InputStream {
         if (len == 0)
             return 0;
 
+        if (lookPos == lookSize)
+            return decompress(buf, off, len);
+
+        // Use the data decompressed ahead by read() first.
+        int size = Math.min(len, lookSize - lookPos);
+        System.arraycopy(lookBuf, lookPos, buf, off, size);
+        lookPos += size;
+
+        if (size < len) {
+            try {
+                int ret = decompress(buf, off + size, len - size);
+                if (ret > 0)
+                    size += ret;
+            } catch (IOException e) {
+                // The exception has been stored and it will be thrown
+                // by the next call.
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Decompresses into an array of bytes without looking at the data
+     * decompressed ahead by <code>read()</code>.
+     */
+    private int decompress(byte[] buf, int off, int len) throws IOException {
         if (in == null)
             throw new XZIOException("Stream closed");
 
@@ -217,8 +293,10 @@ public class LZMA2InputStream extends InputStream {
             while (len > 0) {
                 if (uncompressedSize == 0) {
                     decodeChunkHeader();
-                    if (endReached)
+                    if (endReached) {
+                        putArraysToCache();
                         return size == 0 ? -1 : size;
+                    }
                 }
 
                 int copySizeMax = Math.min(uncompressedSize, len);
@@ -297,6 +375,16 @@ public class LZMA2InputStream extends InputStream {
         }
     }
 
+    private void putArraysToCache() {
+        if (lz != null) {
+            lz.putArraysToCache(arrayCache);
+            rc.putArraysToCache(arrayCache);
+            lz = null;
+            rc = null;
+            lzma = null;
+        }
+    }
+
     private void decodeProps() throws IOException {
         int props = in.readUnsignedByte();
 
@@ -337,7 +425,7 @@ public class LZMA2InputStream extends InputStream {
         if (exception != null)
             throw exception;
 
-        return uncompressedSize;
+        return lookSize - lookPos + uncompressedSize;
     }
 
     /**
@@ -348,6 +436,12 @@ public class LZMA2InputStream extends InputStream {
      */
     public void close() throws IOException {
         if (in != null) {
+            lookBuf = null;
+            lookPos = 0;
+            lookSize = 0;
+
+            putArraysToCache();
+
             try {
                 in.close();
             } finally {
@@ -12,6 +12,7 @@ package org.tukaani.xz;
 import java.io.InputStream;
 import java.io.IOException;
 import org.tukaani.xz.lz.LZEncoder;
+import org.tukaani.xz.lz.PresetDictState;
 import org.tukaani.xz.lzma.LZMAEncoder;
 
 /**
@@ -123,6 +124,20 @@ public class LZMA2Options extends FilterOptions {
      */
     public static final int MF_BT4 = LZEncoder.MF_BT4;
 
+    /**
+     * Match finder: Hash Buckets 4
+     * <p>
+     * This is faster than <code>MF_HC4</code> with the same search depth.
+     * The search depth is limited to eight, which makes this suitable
+     * only for <code>MODE_FAST</code>, so it cannot be used with
+     * <code>MODE_NORMAL</code>. The compression ratio is usually
+     * about the same as with <code>MF_HC4</code> with the presets 0-1
+     * and a little worse with the presets 2-3.
+     *
+     * @since 1.7
+     */
+    public static final int MF_HB4 = LZEncoder.MF_HB4;
+
     private static final int[] presetToDictSize = {
             1 << 18, 1 << 20, 1 << 21, 1 << 22, 1 << 22,
             1 << 23, 1 << 23, 1 << 24, 1 << 25, 1 << 26 };
@@ -131,6 +146,7 @@ public class LZMA2Options extends FilterOptions {
 
     private int dictSize;
     private byte[] presetDict = null;
+    private PrimedDictionary primedDict = null;
     private int lc;
     private int lp;
     private int pb;
@@ -138,6 +154,7 @@ public class LZMA2Options extends FilterOptions {
     private int niceLen;
     private int mf;
     private int depthLimit;
+    private int threads = 1;
 
     /**
      * Creates new LZMA2 options and sets them to the default values.
@@ -271,6 +288,43 @@ public class LZMA2Options extends FilterOptions {
      */
     public void setPresetDict(byte[] presetDict) {
         this.presetDict = presetDict;
+        primedDict = null;
+    }
+
+    /**
+     * Sets a preset dictionary that has been prepared for repeated use.
+     * Use null to disable the use of a preset dictionary.
+     * <p>
+     * This is like <code>setPresetDict(byte[])</code> but creating
+     * an encoder is faster. See {@link PrimedDictionary} for details.
+     * <code>getPresetDict()</code> returns a copy of the bytes of
+     * the dictionary.
+     *
+     * @since 1.7
+     */
+    public void setPrimedDict(PrimedDictionary primedDict) {
+        presetDict = primedDict == null ? null : primedDict.getBytes();
+        this.primedDict = primedDict;
+    }
+
+    /**
+     * Gets the primed preset dictionary, or <code>null</code> if
+     * it hasn't been set.
+     *
+     * @since 1.7
+     */
+    public PrimedDictionary getPrimedDict() {
+        return primedDict;
+    }
+
+    /**
+     * Gets the saved match finder state of the primed preset dictionary
+     * if it matches the current settings.
+     */
+    PresetDictState getPresetDictState() {
+        return primedDict == null
+               ? null : primedDict.getState(dictSize, niceLen, mf,
+                                            depthLimit);
     }
 
     /**
@@ -415,15 +469,23 @@ public class LZMA2Options extends FilterOptions {
      * The special mode <code>MODE_UNCOMPRESSED</code> doesn't try to
      * compress the data at all (and doesn't use a match finder) and will
      * simply wrap it in uncompressed LZMA2 chunks.
+     * <p>
+     * <code>MODE_NORMAL</code> cannot be used with <code>MF_HB4</code>.
      *
      * @throws      UnsupportedOptionsException
-     *                          <code>mode</code> is not supported
+     *                          <code>mode</code> is not supported or
+     *                          is <code>MODE_NORMAL</code> when
+     *                          the match finder is <code>MF_HB4</code>
      */
     public void setMode(int mode) throws UnsupportedOptionsException {
         if (mode < MODE_UNCOMPRESSED || mode > MODE_NORMAL)
             throw new UnsupportedOptionsException(
                     "Unsupported compression mode: " + mode);
 
+        if (mode == MODE_NORMAL && mf == MF_HB4)
+            throw new UnsupportedOptionsException(
+                    "MF_HB4 cannot be used with MODE_NORMAL");
+
         this.mode = mode;
     }
 
@@ -472,15 +534,25 @@ public class LZMA2Options extends FilterOptions {
      * and compression ratio. Usually Hash Chain match finders are faster
      * than Binary Tree match finders. The default depends on the preset:
      * 0-3 use <code>MF_HC4</code> and 4-9 use <code>MF_BT4</code>.
+     * <code>MF_HB4</code> can be used with the presets 0-3 to get
+     * faster compression. It requires <code>MODE_FAST</code> (or
+     * <code>MODE_UNCOMPRESSED</code>), so with the presets 4-9 the mode
+     * has to be changed before the match finder.
      *
      * @throws      UnsupportedOptionsException
-     *                          <code>mf</code> is not supported
+     *                          <code>mf</code> is not supported or
+     *                          is <code>MF_HB4</code> when the mode is
+     *                          <code>MODE_NORMAL</code>
      */
     public void setMatchFinder(int mf) throws UnsupportedOptionsException {
-        if (mf != MF_HC4 && mf != MF_BT4)
+        if (mf != MF_HC4 && mf != MF_BT4 && mf != MF_HB4)
             throw new UnsupportedOptionsException(
                     "Unsupported match finder: " + mf);
 
+        if (mf == MF_HB4 && mode == MODE_NORMAL)
+            throw new UnsupportedOptionsException(
+                    "MF_HB4 cannot be used with MODE_NORMAL");
+
         this.mf = mf;
     }
 
@@ -499,7 +571,8 @@ public class LZMA2Options extends FilterOptions {
      * match finder from the nice length of matches.
      * <p>
      * Reasonable depth limit for Hash Chain match finders is 4-100 and
-     * 16-1000 for Binary Tree match finders. Using very high values can
+     * 16-1000 for Binary Tree match finders. <code>MF_HB4</code> uses
+     * at most eight, which is also its default. Using very high values can
      * make the compressor extremely slow with some files. Avoid settings
      * higher than 1000 unless you are prepared to interrupt the compression
      * in case it is taking far too long.
@@ -523,17 +596,67 @@ public class LZMA2Options extends FilterOptions {
         return depthLimit;
     }
 
+    /**
+     * Sets the number of threads used to compress a single LZMA2 stream.
+     * The default is one.
+     * <p>
+     * With more than one thread, the input is split into segments of
+     * three times the dictionary size (but at least 1&nbsp;MiB) which
+     * are compressed in parallel. Each thread primes its encoder with
+     * the data preceding its segment, so the result is a single LZMA2
+     * stream, and in the .xz format a single XZ Block, whose compression
+     * ratio is close to that of single-threaded compression. Priming
+     * takes some extra time in each thread, and the memory usage grows
+     * a lot since every thread needs its own encoder and the segments
+     * are buffered in RAM. See <code>getEncoderMemoryUsage()</code>.
+     * <p>
+     * This has no effect with <code>MODE_UNCOMPRESSED</code>. Statistics
+     * aren't given to an {@link XZStatsListener} when more than one
+     * thread is used.
+     *
+     * @throws      UnsupportedOptionsException
+     *                          <code>threads</code> is less than one
+     *
+     * @since 1.7
+     */
+    public void setThreads(int threads) throws UnsupportedOptionsException {
+        if (threads < 1)
+            throw new UnsupportedOptionsException(
+                    "Thread count must be positive: " + threads);
+
+        this.threads = threads;
+    }
+
+    /**
+     * Gets the number of threads used to compress a single LZMA2 stream.
+     *
+     * @since 1.7
+     */
+    public int getThreads() {
+        return threads;
+    }
+
     public int getEncoderMemoryUsage() {
-        return (mode == MODE_UNCOMPRESSED)
-               ? UncompressedLZMA2OutputStream.getMemoryUsage()
-               : LZMA2OutputStream.getMemoryUsage(this);
+        if (mode == MODE_UNCOMPRESSED)
+            return UncompressedLZMA2OutputStream.getMemoryUsage();
+
+        return threads > 1 ? ParallelLZMA2OutputStream.getMemoryUsage(this)
+                           : LZMA2OutputStream.getMemoryUsage(this);
     }
 
     public FinishableOutputStream getOutputStream(FinishableOutputStream out) {
+        return getOutputStream(out, ArrayCache.getDefaultCache());
+    }
+
+    public FinishableOutputStream getOutputStream(FinishableOutputStream out,
+                                                  ArrayCache arrayCache) {
         if (mode == MODE_UNCOMPRESSED)
-            return new UncompressedLZMA2OutputStream(out);
+            return new UncompressedLZMA2OutputStream(out, arrayCache);
+
+        if (threads > 1)
+            return new ParallelLZMA2OutputStream(out, this, arrayCache);
 
-        return new LZMA2OutputStream(out, this);
+        return new LZMA2OutputStream(out, this, arrayCache);
     }
 
     /**
@@ -563,13 +686,44 @@ public class LZMA2Options extends FilterOptions {
     }
 
     public InputStream getInputStream(InputStream in) throws IOException {
-        return new LZMA2InputStream(in, dictSize, presetDict);
+        return getInputStream(in, ArrayCache.getDefaultCache());
+    }
+
+    public InputStream getInputStream(InputStream in, ArrayCache arrayCache)
+            throws IOException {
+        return new LZMA2InputStream(in, dictSize, presetDict, arrayCache);
     }
 
     FilterEncoder getFilterEncoder() {
         return new LZMA2Encoder(this);
     }
 
+    /**
+     * Returns LZMA2 options whose dictionary isn't bigger than needed
+     * for Blocks of the given size. Other options, and LZMA2 options
+     * whose dictionary is small enough, are returned as is.
+     */
+    static FilterOptions capDictSize(FilterOptions options, long blockSize) {
+        if (!(options instanceof LZMA2Options))
+            return options;
+
+        LZMA2Options lzma2 = (LZMA2Options)options;
+        long dictSize = Math.max(DICT_SIZE_MIN, blockSize);
+        if (lzma2.getDictSize() <= dictSize)
+            return options;
+
+        lzma2 = (LZMA2Options)lzma2.clone();
+        try {
+            lzma2.setDictSize((int)dictSize);
+        } catch (UnsupportedOptionsException e) {
+            // dictSize is between DICT_SIZE_MIN and the old dictionary
+            // size, so it is always valid.
+            throw new Error();
+        }
+
+        return lzma2;
+    }
+
     public Object clone() {
         try {
             return super.clone();
@@ -13,28 +13,84 @@ package org.tukaani.xz;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import org.tukaani.xz.lz.LZEncoder;
+import org.tukaani.xz.lz.PresetDictState;
 import org.tukaani.xz.rangecoder.RangeEncoderToBuffer;
 import org.tukaani.xz.lzma.LZMAEncoder;
 
 class LZMA2OutputStream extends FinishableOutputStream {
     static final int COMPRESSED_SIZE_MAX = 64 << 10;
 
+    /**
+     * The beginning of each chunk is compressed as a trial. If it
+     * doesn't compress to less than 31/32 of its size, the rest of
+     * the chunk is stored uncompressed without running the LZMA encoder.
+     */
+    private static final int TRIAL_SIZE = 4 << 10;
+
+    /**
+     * Maximum uncompressed size of a chunk that is stored after a failed
+     * trial. The next chunk gets a new trial, so at most this much
+     * compressible data following incompressible data is stored
+     * uncompressed. The whole chunk has to fit in the LZ window behind
+     * the current position, so with a small dictionary the limit is
+     * lower (see <code>storeSize</code>).
+     */
+    private static final int STORE_SIZE_MAX = 64 << 10;
+
+    private final ArrayCache arrayCache;
+
     private FinishableOutputStream out;
-    private final DataOutputStream outData;
+    private DataOutputStream outData;
 
-    private final LZEncoder lz;
-    private final RangeEncoderToBuffer rc;
-    private final LZMAEncoder lzma;
+    private LZEncoder lz;
+    private RangeEncoderToBuffer rc;
+    private LZMAEncoder lzma;
 
     private final int props; // Cannot change props on the fly for now.
+    private final int dictSize;
+    private final byte[] presetDict;
+    private final PresetDictState presetDictState;
+
+    /**
+     * If true, the arrays aren't put back to the cache when finishing
+     * or closing so that the encoder can be reused with <code>reset</code>.
+     */
+    private final boolean reusable;
+
     private boolean dictResetNeeded = true;
     private boolean stateResetNeeded = true;
     private boolean propsNeeded = true;
 
     private int pendingSize = 0;
+
+    /**
+     * True when the current chunk will be stored uncompressed
+     * because its beginning didn't compress
+     */
+    private boolean storing = false;
+    private final int storeSize;
+
+    /**
+     * Total uncompressed size of the stored chunks. This isn't reset
+     * by <code>reset</code>.
+     */
+    private long storedSize = 0;
+
     private boolean finished = false;
     private IOException exception = null;
 
+    /**
+     * Receives statistics about the chunks, or <code>null</code>
+     * if statistics aren't collected.
+     */
+    private XZStatsListener statsListener = null;
+
+    /**
+     * Time spent in the LZMA encoder for the current chunk when
+     * statistics are collected.
+     */
+    private long encoderTime = 0;
+
     private final byte[] tempBuf = new byte[1];
 
     private static int getExtraSizeBefore(int dictSize) {
@@ -51,31 +107,96 @@ class LZMA2OutputStream extends FinishableOutputStream {
                                                options.getMatchFinder());
     }
 
-    LZMA2OutputStream(FinishableOutputStream out, LZMA2Options options) {
+    LZMA2OutputStream(FinishableOutputStream out, LZMA2Options options,
+                      ArrayCache arrayCache) {
+        this(out, options, arrayCache, false);
+    }
+
+    /**
+     * Creates a new LZMA2 encoder. If <code>reusable</code> is true,
+     * the encoder can be reused with <code>reset</code> after finishing,
+     * and the caller must call <code>putArraysToCache</code> once
+     * the encoder is no longer needed.
+     */
+    LZMA2OutputStream(FinishableOutputStream out, LZMA2Options options,
+                      ArrayCache arrayCache, boolean reusable) {
         if (out == null)
             throw new NullPointerException();
 
+        this.arrayCache = arrayCache;
         this.out = out;
         outData = new DataOutputStream(out);
-        rc = new RangeEncoderToBuffer(COMPRESSED_SIZE_MAX);
+        rc = new RangeEncoderToBuffer(COMPRESSED_SIZE_MAX, arrayCache);
 
-        int dictSize = options.getDictSize();
+        dictSize = options.getDictSize();
         int extraSizeBefore = getExtraSizeBefore(dictSize);
+        storeSize = Math.min(STORE_SIZE_MAX, dictSize + extraSizeBefore);
         lzma = LZMAEncoder.getInstance(rc,
                 options.getLc(), options.getLp(), options.getPb(),
                 options.getMode(),
                 dictSize, extraSizeBefore, options.getNiceLen(),
-                options.getMatchFinder(), options.getDepthLimit());
+                options.getMatchFinder(), options.getDepthLimit(),
+                arrayCache);
 
         lz = lzma.getLZEncoder();
 
-        byte[] presetDict = options.getPresetDict();
-        if (presetDict != null && presetDict.length > 0) {
+        presetDict = options.getPresetDict();
+        presetDictState = options.getPresetDictState();
+        setPresetDict();
+
+        props = (options.getPb() * 5 + options.getLp()) * 9 + options.getLc();
+        this.reusable = reusable;
+    }
+
+    private void setPresetDict() {
+        if (presetDictState != null) {
+            lz.setPresetDict(presetDictState);
+            dictResetNeeded = false;
+        } else if (presetDict != null && presetDict.length > 0) {
             lz.setPresetDict(dictSize, presetDict);
             dictResetNeeded = false;
         }
+    }
 
-        props = (options.getPb() * 5 + options.getLp()) * 9 + options.getLc();
+    /**
+     * Resets the encoder so that a new LZMA2 stream can be written
+     * to <code>out</code> using the same options. The state from
+     * the previous stream, including a pending exception, is discarded.
+     * This is possible only if the encoder was created as reusable.
+     */
+    void reset(FinishableOutputStream out) {
+        if (out == null)
+            throw new NullPointerException();
+
+        assert reusable;
+
+        this.out = out;
+        outData = new DataOutputStream(out);
+
+        lzma.resetForNewStream();
+        rc.reset();
+
+        dictResetNeeded = true;
+        stateResetNeeded = true;
+        propsNeeded = true;
+        pendingSize = 0;
+        storing = false;
+        finished = false;
+        exception = null;
+
+        setPresetDict();
+    }
+
+    /**
+     * Sets the listener that receives statistics about every chunk,
+     * or disables statistics if <code>statsListener</code> is
+     * <code>null</code>.
+     */
+    void setStatsListener(XZStatsListener statsListener) {
+        this.statsListener = statsListener;
+        lzma.setMatchFinderTiming(statsListener != null);
+        lzma.getMatchFinderTime();
+        encoderTime = 0;
     }
 
     public void write(int b) throws IOException {
@@ -100,7 +221,7 @@ class LZMA2OutputStream extends FinishableOutputStream {
                 len -= used;
                 pendingSize += used;
 
-                if (lzma.encodeForLZMA2())
+                if (encodeForLZMA2())
                     writeChunk();
             }
         } catch (IOException e) {
@@ -109,6 +230,54 @@ class LZMA2OutputStream extends FinishableOutputStream {
         }
     }
 
+    /**
+     * Gets the total uncompressed size of the chunks that have been
+     * stored uncompressed by this encoder, including the streams
+     * before the latest <code>reset</code>.
+     */
+    long getStoredSize() {
+        return storedSize;
+    }
+
+    private boolean encodeForLZMA2() {
+        if (statsListener == null)
+            return encodeOrStore();
+
+        long start = System.nanoTime();
+        boolean chunkFull = encodeOrStore();
+        encoderTime += System.nanoTime() - start;
+        return chunkFull;
+    }
+
+    /**
+     * Compresses the beginning of a chunk as a trial, and then either
+     * continues compressing the chunk or, if the data looks incompressible,
+     * only runs the rest of the chunk through the match finder so that it
+     * can be stored uncompressed.
+     *
+     * @return      true if the chunk became full, false otherwise
+     */
+    private boolean encodeOrStore() {
+        if (storing)
+            return lzma.skipForLZMA2(storeSize);
+
+        if (lzma.getUncompressedSize() <= TRIAL_SIZE) {
+            if (!lzma.encodeForLZMA2(TRIAL_SIZE))
+                return false;
+
+            int trialSize = lzma.getUncompressedSize();
+            if (rc.getPendingSize() >= trialSize - trialSize / 32) {
+                // Discard the trial. The LZMA state is reset anyway
+                // after an uncompressed chunk.
+                lzma.reset();
+                storing = true;
+                return lzma.skipForLZMA2(storeSize);
+            }
+        }
+
+        return lzma.encodeForLZMA2();
+    }
+
     private void writeChunk() throws IOException {
         int compressedSize = rc.finish();
         int uncompressedSize = lzma.getUncompressedSize();
@@ -118,13 +287,34 @@ class LZMA2OutputStream extends FinishableOutputStream {
 
         // +2 because the header of a compressed chunk is 2 bytes
         // bigger than the header of an uncompressed chunk.
-        if (compressedSize + 2 < uncompressedSize) {
+        boolean stored = storing || compressedSize + 2 >= uncompressedSize;
+        int outSize;
+
+        if (!stored) {
+            outSize = compressedSize + (propsNeeded ? 6 : 5);
             writeLZMA(uncompressedSize, compressedSize);
         } else {
             lzma.reset();
             uncompressedSize = lzma.getUncompressedSize();
             assert uncompressedSize > 0 : uncompressedSize;
             writeUncompressed(uncompressedSize);
+            storedSize += uncompressedSize;
+
+            // A new trial is done at the beginning of the next chunk.
+            storing = false;
+
+            // Each uncompressed chunk has a three-byte header.
+            outSize = uncompressedSize
+                      + (uncompressedSize + COMPRESSED_SIZE_MAX - 1)
+                        / COMPRESSED_SIZE_MAX * 3;
+        }
+
+        if (statsListener != null) {
+            long mfTime = lzma.getMatchFinderTime();
+            statsListener.chunkEncoded(uncompressedSize, outSize, stored,
+                                       mfTime,
+                                       Math.max(encoderTime - mfTime, 0));
+            encoderTime = 0;
         }
 
         pendingSize -= uncompressedSize;
@@ -187,7 +377,7 @@ class LZMA2OutputStream extends FinishableOutputStream {
 
         try {
             while (pendingSize > 0) {
-                lzma.encodeForLZMA2();
+                encodeForLZMA2();
                 writeChunk();
             }
 
@@ -198,6 +388,25 @@ class LZMA2OutputStream extends FinishableOutputStream {
         }
 
         finished = true;
+
+        if (!reusable)
+            putArraysToCache();
+    }
+
+    /**
+     * Gives the big arrays of the encoder back to the array cache.
+     * This is done once the encoder is no longer needed, that is,
+     * after the end marker has been written or when the stream is closed.
+     * A reusable encoder keeps its arrays until this is called explicitly.
+     */
+    void putArraysToCache() {
+        if (lzma != null) {
+            lzma.putArraysToCache(arrayCache);
+            rc.putArraysToCache(arrayCache);
+            lzma = null;
+            lz = null;
+            rc = null;
+        }
     }
 
     public void flush() throws IOException {
@@ -211,7 +420,7 @@ class LZMA2OutputStream extends FinishableOutputStream {
             lz.setFlushing();
 
             while (pendingSize > 0) {
-                lzma.encodeForLZMA2();
+                encodeForLZMA2();
                 writeChunk();
             }
 
@@ -245,6 +454,9 @@ class LZMA2OutputStream extends FinishableOutputStream {
                 } catch (IOException e) {}
             }
 
+            if (!reusable)
+                putArraysToCache();
+
             try {
                 out.close();
             } catch (IOException e) {
@@ -47,13 +47,22 @@ public class LZMAInputStream extends InputStream {
     public static final int DICT_SIZE_MAX = Integer.MAX_VALUE & ~15;
 
     private InputStream in;
+    private ArrayCache arrayCache;
     private LZDecoder lz;
     private RangeDecoderFromStream rc;
     private LZMADecoder lzma;
 
     private boolean endReached = false;
 
-    private final byte[] tempBuf = new byte[1];
+    private static final int LOOKAHEAD_SIZE = 8 << 10;
+
+    /**
+     * Data decompressed ahead by <code>read()</code>. The buffer is
+     * allocated on the first call to <code>read()</code>.
+     */
+    private byte[] lookBuf = null;
+    private int lookPos = 0;
+    private int lookSize = 0;
 
     /**
      * Number of uncompressed bytes left to be decompressed, or -1 if
@@ -214,6 +223,48 @@ public class LZMAInputStream extends InputStream {
      */
     public LZMAInputStream(InputStream in, int memoryLimit)
             throws IOException {
+        this(in, memoryLimit, ArrayCache.getDefaultCache());
+    }
+
+    /**
+     * Creates a new .lzma file format decompressor with an optional
+     * memory usage limit.
+     * <p>
+     * This is identical to <code>LZMAInputStream(InputStream, int)</code>
+     * except that this also takes the <code>arrayCache</code> argument.
+     *
+     * @param       in          input stream from which .lzma data is read;
+     *                          it might be a good idea to wrap it in
+     *                          <code>BufferedInputStream</code>, see the
+     *                          note at the top of this page
+     *
+     * @param       memoryLimit memory usage limit in kibibytes (KiB)
+     *                          or <code>-1</code> to impose no
+     *                          memory usage limit
+     *
+     * @param       arrayCache  cache to be used for allocating large arrays
+     *
+     * @throws      CorruptedInputException
+     *                          file is corrupt or perhaps not in
+     *                          the .lzma format at all
+     *
+     * @throws      UnsupportedOptionsException
+     *                          dictionary size or uncompressed size is too
+     *                          big for this implementation
+     *
+     * @throws      MemoryLimitException
+     *                          memory usage limit was exceeded
+     *
+     * @throws      EOFException
+     *                          file is truncated or perhaps not in
+     *                          the .lzma format at all
+     *
+     * @throws      IOException may be thrown by <code>in</code>
+     *
+     * @since 1.7
+     */
+    public LZMAInputStream(InputStream in, int memoryLimit,
+                           ArrayCache arrayCache) throws IOException {
         DataInputStream inData = new DataInputStream(in);
 
         // Properties byte (lc, lp, and pb)
@@ -237,7 +288,7 @@ public class LZMAInputStream extends InputStream {
         if (memoryLimit != -1 && memoryNeeded > memoryLimit)
             throw new MemoryLimitException(memoryNeeded, memoryLimit);
 
-        initialize(in, uncompSize, propsByte, dictSize, null);
+        initialize(in, uncompSize, propsByte, dictSize, null, arrayCache);
     }
 
     /**
@@ -288,7 +339,8 @@ public class LZMAInputStream extends InputStream {
      */
     public LZMAInputStream(InputStream in, long uncompSize, byte propsByte,
                            int dictSize) throws IOException {
-        initialize(in, uncompSize, propsByte, dictSize, null);
+        initialize(in, uncompSize, propsByte, dictSize, null,
+                   ArrayCache.getDefaultCache());
     }
 
     /**
@@ -326,7 +378,56 @@ public class LZMAInputStream extends InputStream {
     public LZMAInputStream(InputStream in, long uncompSize, byte propsByte,
                            int dictSize, byte[] presetDict)
             throws IOException {
-        initialize(in, uncompSize, propsByte, dictSize, presetDict);
+        initialize(in, uncompSize, propsByte, dictSize, presetDict,
+                   ArrayCache.getDefaultCache());
+    }
+
+    /**
+     * Creates a new input stream that decompresses raw LZMA data (no .lzma
+     * header) from <code>in</code> optionally with a preset dictionary.
+     * <p>
+     * This is identical to <code>LZMAInputStream(InputStream, long, byte,
+     * int, byte[])</code> except that this also takes the
+     * <code>arrayCache</code> argument.
+     *
+     * @param       in          input stream from which LZMA-compressed
+     *                          data is read
+     *
+     * @param       uncompSize  uncompressed size of the LZMA stream or -1
+     *                          if the end marker is used in the LZMA stream
+     *
+     * @param       propsByte   LZMA properties byte that has the encoded
+     *                          values for literal context bits (lc), literal
+     *                          position bits (lp), and position bits (pb)
+     *
+     * @param       dictSize    dictionary size as bytes, must be in the range
+     *                          [<code>0</code>, <code>DICT_SIZE_MAX</code>]
+     *
+     * @param       presetDict  preset dictionary or <code>null</code>
+     *                          to use no preset dictionary
+     *
+     * @param       arrayCache  cache to be used for allocating large arrays
+     *
+     * @throws      CorruptedInputException
+     *                          if <code>propsByte</code> is invalid or
+     *                          the first input byte is not 0x00
+     *
+     * @throws      UnsupportedOptionsException
+     *                          dictionary size or uncompressed size is too
+     *                          big for this implementation
+     *
+     * @throws      EOFException file is truncated or corrupt
+     *
+     * @throws      IOException may be thrown by <code>in</code>
+     *
+     * @since 1.7
+     */
+    public LZMAInputStream(InputStream in, long uncompSize, byte propsByte,
+                           int dictSize, byte[] presetDict,
+                           ArrayCache arrayCache)
+            throws IOException {
+        initialize(in, uncompSize, propsByte, dictSize, presetDict,
+                   arrayCache);
     }
 
     /**
@@ -365,11 +466,62 @@ public class LZMAInputStream extends InputStream {
                            int lc, int lp, int pb,
                            int dictSize, byte[] presetDict)
             throws IOException {
-        initialize(in, uncompSize, lc, lp, pb, dictSize, presetDict);
+        initialize(in, uncompSize, lc, lp, pb, dictSize, presetDict,
+                   ArrayCache.getDefaultCache());
+    }
+
+    /**
+     * Creates a new input stream that decompresses raw LZMA data (no .lzma
+     * header) from <code>in</code> optionally with a preset dictionary.
+     * <p>
+     * This is identical to <code>LZMAInputStream(InputStream, long, int,
+     * int, int, int, byte[])</code> except that this also takes the
+     * <code>arrayCache</code> argument.
+     *
+     * @param       in          input stream from which LZMA-compressed
+     *                          data is read
+     *
+     * @param       uncompSize  uncompressed size of the LZMA stream or -1
+     *                          if the end marker is used in the LZMA stream
+     *
+     * @param       lc          number of literal context bits, must be
+     *                          in the range [0, 8]
+     *
+     * @param       lp          number of literal position bits, must be
+     *                          in the range [0, 4]
+     *
+     * @param       pb          number position bits, must be
+     *                          in the range [0, 4]
+     *
+     * @param       dictSize    dictionary size as bytes, must be in the range
+     *                          [<code>0</code>, <code>DICT_SIZE_MAX</code>]
+     *
+     * @param       presetDict  preset dictionary or <code>null</code>
+     *                          to use no preset dictionary
+     *
+     * @param       arrayCache  cache to be used for allocating large arrays
+     *
+     * @throws      CorruptedInputException
+     *                          if the first input byte is not 0x00
+     *
+     * @throws      EOFException file is truncated or corrupt
+     *
+     * @throws      IOException may be thrown by <code>in</code>
+     *
+     * @since 1.7
+     */
+    public LZMAInputStream(InputStream in, long uncompSize,
+                           int lc, int lp, int pb,
+                           int dictSize, byte[] presetDict,
+                           ArrayCache arrayCache)
+            throws IOException {
+        initialize(in, uncompSize, lc, lp, pb, dictSize, presetDict,
+                   arrayCache);
     }
 
     private void initialize(InputStream in, long uncompSize, byte propsByte,
-                            int dictSize, byte[] presetDict)
+                            int dictSize, byte[] presetDict,
+                            ArrayCache arrayCache)
             throws IOException {
         // Validate the uncompressed size since the other "initialize" throws
         // IllegalArgumentException if uncompSize < -1.
@@ -394,12 +546,14 @@ public class LZMAInputStream extends InputStream {
             throw new UnsupportedOptionsException(
                     "LZMA dictionary is too big for this implementation");
 
-        initialize(in, uncompSize, lc, lp, pb, dictSize, presetDict);
+        initialize(in, uncompSize, lc, lp, pb, dictSize, presetDict,
+                   arrayCache);
     }
 
     private void initialize(InputStream in, long uncompSize,
                             int lc, int lp, int pb,
-                            int dictSize, byte[] presetDict)
+                            int dictSize, byte[] presetDict,
+                            ArrayCache arrayCache)
             throws IOException {
         // getDictSize validates dictSize and gives a message in
         // the exception too, so skip validating dictSize here.
@@ -408,6 +562,7 @@ public class LZMAInputStream extends InputStream {
             throw new IllegalArgumentException();
 
         this.in = in;
+        this.arrayCache = arrayCache;
 
         // If uncompressed size is known, use it to avoid wasting memory for
         // a uselessly large dictionary buffer.
@@ -415,7 +570,7 @@ public class LZMAInputStream extends InputStream {
         if (uncompSize >= 0 && dictSize > uncompSize)
             dictSize = getDictSize((int)uncompSize);
 
-        lz = new LZDecoder(getDictSize(dictSize), presetDict);
+        lz = new LZDecoder(getDictSize(dictSize), presetDict, arrayCache);
         rc = new RangeDecoderFromStream(in);
         lzma = new LZMADecoder(lz, rc, lc, lp, pb);
         remainingSize = uncompSize;
@@ -424,9 +579,8 @@ public class LZMAInputStream extends InputStream {
     /**
      * Decompresses the next byte from this input stream.
      * <p>
-     * Reading lots of data with <code>read()</code> from this input stream
-     * may be inefficient. Wrap it in <code>java.io.BufferedInputStream</code>
-     * if you need to read lots of data one byte at a time.
+     * This decompresses a bigger piece of data at a time into an internal
+     * buffer, so reading lots of data one byte at a time is efficient.
      *
      * @return      the next decompressed byte, or <code>-1</code>
      *              to indicate the end of the compressed stream
@@ -441,7 +595,19 @@ public class LZMAInputStream extends InputStream {
      * @throws      IOException may be thrown by <code>in</code>
      */
     public int read() throws IOException {
-        return read(tempBuf, 0, 1) == -1 ? -1 : (tempBuf[0] & 0xFF);
+        if (lookPos == lookSize) {
+            if (lookBuf == null)
+                lookBuf = new byte[LOOKAHEAD_SIZE];
+
+            int ret = decompress(lookBuf, 0, LOOKAHEAD_SIZE);
+            if (ret == -1)
+                return -1;
+
+            lookPos = 0;
+            lookSize = ret;
+        }
+
+        return lookBuf[lookPos++] & 0xFF;
     }
 
     /**
@@ -474,6 +640,33 @@ public class LZMAInputStream extends InputStream {
         if (len == 0)
             return 0;
 
+        if (lookPos == lookSize)
+            return decompress(buf, off, len);
+
+        // Use the data decompressed ahead by read() first.
+        int size = Math.min(len, lookSize - lookPos);
+        System.arraycopy(lookBuf, lookPos, buf, off, size);
+        lookPos += size;
+
+        if (size < len) {
+            try {
+                int ret = decompress(buf, off + size, len - size);
+                if (ret > 0)
+                    size += ret;
+            } catch (IOException e) {
+                // The exception has been stored and it will be thrown
+                // by the next call.
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Decompresses into an array of bytes without looking at the data
+     * decompressed ahead by <code>read()</code>.
+     */
+    private int decompress(byte[] buf, int off, int len) throws IOException {
         if (in == null)
             throw new XZIOException("Stream closed");
 
@@ -539,6 +732,7 @@ public class LZMAInputStream extends InputStream {
                     if (!rc.isFinished() || lz.hasPending())
                         throw new CorruptedInputException();
 
+                    putArraysToCache();
                     return size == 0 ? -1 : size;
                 }
             }
@@ -551,6 +745,13 @@ public class LZMAInputStream extends InputStream {
         }
     }
 
+    private void putArraysToCache() {
+        if (lz != null) {
+            lz.putArraysToCache(arrayCache);
+            lz = null;
+        }
+    }
+
     /**
      * Closes the stream and calls <code>in.close()</code>.
      * If the stream was already closed, this does nothing.
@@ -559,6 +760,12 @@ public class LZMAInputStream extends InputStream {
      */
     public void close() throws IOException {
         if (in != null) {
+            lookBuf = null;
+            lookPos = 0;
+            lookSize = 0;
+
+            putArraysToCache();
+
             try {
                 in.close();
             } finally {
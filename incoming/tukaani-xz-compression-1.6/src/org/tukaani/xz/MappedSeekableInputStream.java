@@ -0,0 +1,250 @@
+/*
+ * MappedSeekableInputStream
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * SeekableInputStream that reads from a memory-mapped file.
+ * <p>
+ * Reads from {@link SeekableFileInputStream} are system calls, which is
+ * slow when the decompressor does many small reads and seeks, for example,
+ * when parsing Block Headers or the Indexes of a big file. This class
+ * maps the whole file into memory with
+ * {@link java.nio.channels.FileChannel#map FileChannel.map}, so reading
+ * is a plain memory copy. Files bigger than 2&nbsp;GiB are mapped
+ * as multiple segments.
+ * <p>
+ * The mapping is created when the stream is created, so changes to
+ * the size of the file aren't noticed. Java doesn't provide a way to
+ * unmap a file explicitly, so the mapping is released by the garbage
+ * collector some time after this stream has been closed.
+ * <p>
+ * The methods of this class are thread safe. In addition to the usual
+ * sequential reading, {@link #read(long, byte[], int, int)} reads from
+ * an absolute position without using or changing the stream position,
+ * so multiple threads can read different parts of the file at the same
+ * time without locking. {@link SeekableXZInputStream} uses this to let
+ * its worker threads read the compressed Blocks themselves.
+ *
+ * @since 1.7
+ */
+public class MappedSeekableInputStream extends SeekableInputStream {
+    /**
+     * Size of one mapped segment. A power of two keeps the position
+     * calculations simple.
+     */
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+    /**
+     * Mapped segments of the file. Only absolute positions are used with
+     * these buffers, so they can be shared between threads after
+     * <code>duplicate()</code>.
+     */
+    private volatile ByteBuffer[] segments;
+
+    private final long length;
+    private long pos = 0;
+
+    /**
+     * Creates a new seekable input stream that reads from
+     * the specified file.
+     */
+    public MappedSeekableInputStream(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            length = channel.size();
+            segments = map(channel, length);
+        } finally {
+            // The mapping stays valid after the file has been closed.
+            raf.close();
+        }
+    }
+
+    /**
+     * Creates a new seekable input stream that reads from a file with
+     * the specified name.
+     */
+    public MappedSeekableInputStream(String name) throws IOException {
+        this(new File(name));
+    }
+
+    /**
+     * Creates a new seekable input stream that maps the file of
+     * an existing <code>FileChannel</code>. The channel isn't closed
+     * by this class and it can be closed right after this constructor
+     * has returned.
+     */
+    public MappedSeekableInputStream(FileChannel channel) throws IOException {
+        length = channel.size();
+        segments = map(channel, length);
+    }
+
+    private static ByteBuffer[] map(FileChannel channel, long length)
+            throws IOException {
+        ByteBuffer[] segments = new ByteBuffer[
+                (int)((length + SEGMENT_SIZE - 1) >>> SEGMENT_BITS)];
+
+        for (int i = 0; i < segments.length; ++i) {
+            long start = (long)i << SEGMENT_BITS;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                                      Math.min(SEGMENT_SIZE, length - start));
+        }
+
+        return segments;
+    }
+
+    /**
+     * Reads one byte.
+     *
+     * @return      the next byte, or <code>-1</code> at the end of the file
+     */
+    public synchronized int read() throws IOException {
+        if (segments == null)
+            throw new XZIOException("Stream closed");
+
+        if (pos >= length)
+            return -1;
+
+        int b = segments[(int)(pos >>> SEGMENT_BITS)].get(
+                (int)(pos & (SEGMENT_SIZE - 1))) & 0xFF;
+        ++pos;
+        return b;
+    }
+
+    /**
+     * Reads up to <code>len</code> bytes from the current position.
+     *
+     * @return      number of bytes read, or <code>-1</code> at the end
+     *              of the file
+     */
+    public synchronized int read(byte[] buf, int off, int len)
+            throws IOException {
+        int ret = read(pos, buf, off, len);
+        if (ret > 0)
+            pos += ret;
+
+        return ret;
+    }
+
+    /**
+     * Reads up to <code>len</code> bytes starting at the absolute position
+     * <code>filePos</code>. The stream position isn't used or changed.
+     * Unlike <code>read(byte[],int,int)</code>, this doesn't lock
+     * the stream.
+     *
+     * @param       filePos     position in the file to read from
+     *
+     * @param       buf         buffer to read into
+     *
+     * @param       off         start offset in <code>buf</code>
+     *
+     * @param       len         maximum number of bytes to read
+     *
+     * @return      number of bytes read, which is less than
+     *              <code>len</code> only at the end of the file,
+     *              or <code>-1</code> if <code>filePos</code> is at or
+     *              past the end of the file
+     *
+     * @throws      XZIOException
+     *                          the stream has been closed
+     *
+     * @throws      IOException if <code>filePos</code> is negative
+     */
+    public int read(long filePos, byte[] buf, int off, int len)
+            throws IOException {
+        if (off < 0 || len < 0 || off + len < 0 || off + len > buf.length)
+            throw new IndexOutOfBoundsException();
+
+        if (filePos < 0)
+            throw new IOException("Negative file position");
+
+        // Read the field only once so that a concurrent close()
+        // cannot cause a NullPointerException.
+        ByteBuffer[] segs = segments;
+        if (segs == null)
+            throw new XZIOException("Stream closed");
+
+        if (len == 0)
+            return 0;
+
+        if (filePos >= length)
+            return -1;
+
+        if (len > length - filePos)
+            len = (int)(length - filePos);
+
+        int size = 0;
+        while (size < len) {
+            int segPos = (int)(filePos & (SEGMENT_SIZE - 1));
+            ByteBuffer seg = segs[(int)(filePos >>> SEGMENT_BITS)].duplicate();
+            int copySize = Math.min(len - size, seg.limit() - segPos);
+
+            seg.position(segPos);
+            seg.get(buf, off + size, copySize);
+
+            size += copySize;
+            filePos += copySize;
+        }
+
+        return size;
+    }
+
+    /**
+     * Drops the references to the mapped segments. The memory is
+     * unmapped when the segments are garbage collected.
+     */
+    public synchronized void close() {
+        segments = null;
+    }
+
+    /**
+     * Gets the size of the file as it was when the file was mapped.
+     */
+    public long length() throws IOException {
+        if (segments == null)
+            throw new XZIOException("Stream closed");
+
+        return length;
+    }
+
+    /**
+     * Gets the current position in the stream.
+     */
+    public synchronized long position() throws IOException {
+        if (segments == null)
+            throw new XZIOException("Stream closed");
+
+        return pos;
+    }
+
+    /**
+     * Seeks to the specified absolute position in the stream.
+     * Seeking past the end of the file is allowed.
+     *
+     * @throws      IOException if <code>pos</code> is negative or
+     *                          the stream has been closed
+     */
+    public synchronized void seek(long pos) throws IOException {
+        if (segments == null)
+            throw new XZIOException("Stream closed");
+
+        if (pos < 0)
+            throw new IOException("Negative seek position");
+
+        this.pos = pos;
+    }
+}
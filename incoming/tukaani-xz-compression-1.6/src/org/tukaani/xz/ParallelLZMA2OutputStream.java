@@ -0,0 +1,378 @@
+/*
+ * ParallelLZMA2OutputStream
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+
+/**
+ * Compresses into a single raw LZMA2 stream using multiple threads.
+ * <p>
+ * The input is split into segments which are compressed by a pool of
+ * worker threads. Each worker uses the data preceding its segment, up to
+ * the dictionary size, as a preset dictionary. Its first LZMA2 chunk
+ * resets the state and sets the properties but doesn't reset
+ * the dictionary, so the segments can refer to the data of the earlier
+ * segments. The chunks of the segments are concatenated in the original
+ * order and followed by a single end marker, which gives one valid
+ * LZMA2 stream that can be stored in a single XZ Block.
+ * <p>
+ * This is used by {@link LZMA2Options} when the number of threads
+ * has been set to more than one.
+ */
+class ParallelLZMA2OutputStream extends FinishableOutputStream {
+    /**
+     * The minimum size of a segment
+     */
+    private static final int SEGMENT_SIZE_MIN = 1 << 20;
+
+    /**
+     * The maximum size of a segment. This keeps the size of the input
+     * buffers below 2&nbsp;GiB with the biggest dictionary.
+     */
+    private static final int SEGMENT_SIZE_MAX = 1 << 30;
+
+    private FinishableOutputStream out;
+    private final LZMA2Options options;
+    private final ArrayCache arrayCache;
+    private final int dictSize;
+    private final int segmentSize;
+
+    /**
+     * Maximum number of segments that may be queued or being compressed
+     * at the same time. This bounds the memory usage when the underlying
+     * output stream is slower than the worker threads.
+     */
+    private final int maxPending;
+
+    /**
+     * Segments that have been submitted but not written out yet,
+     * in the order they appear in the output.
+     */
+    private final LinkedList pending = new LinkedList();
+
+    /**
+     * Input buffers of segments that have been written out.
+     */
+    private final LinkedList freeBuffers = new LinkedList();
+
+    private final WorkerPool workers;
+
+    /**
+     * Input of the segment being collected. The first
+     * <code>histSize</code> bytes are the end of the data before
+     * the segment and are used as the preset dictionary.
+     */
+    private byte[] inBuf;
+    private int histSize;
+    private int inPos;
+
+    private boolean firstSegment = true;
+    private boolean finished = false;
+    private IOException exception = null;
+
+    private final byte[] tempBuf = new byte[1];
+
+    /**
+     * Gets the size of the segments. It is three times the dictionary
+     * size so that running the preset dictionary through the match finder
+     * doesn't take too big part of the time of each worker.
+     */
+    private static int getSegmentSize(int dictSize) {
+        return (int)Math.min(SEGMENT_SIZE_MAX,
+                             Math.max(SEGMENT_SIZE_MIN, 3L * dictSize));
+    }
+
+    private static int getMaxPending(int threads) {
+        return threads + 1;
+    }
+
+    static int getMemoryUsage(LZMA2Options options) {
+        // Each worker has its own encoder and compressed output. Every
+        // pending segment and the segment being collected have an input
+        // buffer of the dictionary size plus the segment size.
+        int threads = options.getThreads();
+        int dictSize = options.getDictSize();
+        long bufSize = ((long)dictSize + getSegmentSize(dictSize)) / 1024;
+        long usage = threads * ((long)LZMA2OutputStream.getMemoryUsage(
+                                        options)
+                                + getSegmentSize(dictSize) / 1024)
+                     + (getMaxPending(threads) + 1) * bufSize;
+        return (int)Math.min(Integer.MAX_VALUE, usage);
+    }
+
+    ParallelLZMA2OutputStream(FinishableOutputStream out,
+                              LZMA2Options options, ArrayCache arrayCache) {
+        if (out == null)
+            throw new NullPointerException();
+
+        this.out = out;
+        this.options = (LZMA2Options)options.clone();
+        this.arrayCache = arrayCache;
+        dictSize = options.getDictSize();
+        segmentSize = getSegmentSize(dictSize);
+        maxPending = getMaxPending(options.getThreads());
+        workers = new WorkerPool("LZMA2 encoder", options.getThreads());
+
+        // The preset dictionary is the history of the first segment.
+        inBuf = new byte[dictSize + segmentSize];
+        byte[] presetDict = options.getPresetDict();
+        if (presetDict != null) {
+            histSize = Math.min(presetDict.length, dictSize);
+            System.arraycopy(presetDict, presetDict.length - histSize,
+                             inBuf, 0, histSize);
+        }
+
+        inPos = histSize;
+    }
+
+    public void write(int b) throws IOException {
+        tempBuf[0] = (byte)b;
+        write(tempBuf, 0, 1);
+    }
+
+    public void write(byte[] buf, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len < 0 || off + len > buf.length)
+            throw new IndexOutOfBoundsException();
+
+        if (exception != null)
+            throw exception;
+
+        if (finished)
+            throw new XZIOException("Stream finished or closed");
+
+        try {
+            while (len > 0) {
+                int copySize = Math.min(histSize + segmentSize - inPos, len);
+                System.arraycopy(buf, off, inBuf, inPos, copySize);
+                inPos += copySize;
+                off += copySize;
+                len -= copySize;
+
+                if (inPos == histSize + segmentSize)
+                    submitSegment();
+            }
+
+            writeFinishedSegments(false);
+        } catch (IOException e) {
+            exception = e;
+            throw e;
+        }
+    }
+
+    /**
+     * Hands the current segment to the worker threads and starts
+     * a new segment with the end of the current one as its history.
+     * If too many segments are already pending, this first waits until
+     * the oldest one has been written out.
+     */
+    private void submitSegment() throws IOException {
+        while (pending.size() >= maxPending)
+            writeSegment((SegmentJob)pending.removeFirst());
+
+        SegmentJob job = new SegmentJob(inBuf, histSize, inPos,
+                                        firstSegment);
+        pending.addLast(job);
+        workers.submit(job);
+
+        firstSegment = false;
+
+        // Use as much history as fits into the dictionary. The decoder
+        // gets the lowest bits of the position from the amount of data
+        // decoded so far (including the preset dictionary), and LZMA uses
+        // them for the pb and lp bits. inPos is always equal to that
+        // amount modulo 16, so the size of the history has to be too.
+        int newHistSize = Math.min(inPos, dictSize);
+        newHistSize -= (newHistSize - inPos) & 15;
+
+        byte[] newBuf = freeBuffers.isEmpty()
+                        ? new byte[dictSize + segmentSize]
+                        : (byte[])freeBuffers.removeFirst();
+        System.arraycopy(inBuf, inPos - newHistSize, newBuf, 0, newHistSize);
+        inBuf = newBuf;
+        histSize = newHistSize;
+        inPos = newHistSize;
+    }
+
+    /**
+     * Writes the compressed segments from the beginning of the pending
+     * list. If <code>waitAll</code> is true, this waits until all pending
+     * segments have been written. Otherwise only those that have already
+     * been compressed are written.
+     */
+    private void writeFinishedSegments(boolean waitAll) throws IOException {
+        while (!pending.isEmpty()) {
+            SegmentJob job = (SegmentJob)pending.getFirst();
+
+            if (!waitAll && !workers.isDone(job))
+                return;
+
+            pending.removeFirst();
+            writeSegment(job);
+        }
+    }
+
+    private void writeSegment(SegmentJob job) throws IOException {
+        workers.waitFor(job);
+        out.write(job.compressed, 0, job.compressedSize);
+        freeBuffers.addLast(job.in);
+    }
+
+    /**
+     * Compresses the data written so far and writes it out as complete
+     * LZMA2 chunks. This ends the current segment early, so like
+     * flushing in the single-threaded encoder, calling this often
+     * makes the output bigger.
+     */
+    public void flush() throws IOException {
+        if (exception != null)
+            throw exception;
+
+        if (finished)
+            throw new XZIOException("Stream finished or closed");
+
+        try {
+            if (inPos > histSize)
+                submitSegment();
+
+            writeFinishedSegments(true);
+            out.flush();
+        } catch (IOException e) {
+            exception = e;
+            throw e;
+        }
+    }
+
+    private void writeEndMarker() throws IOException {
+        assert !finished;
+
+        if (exception != null)
+            throw exception;
+
+        try {
+            if (inPos > histSize)
+                submitSegment();
+
+            writeFinishedSegments(true);
+            out.write(0x00);
+        } catch (IOException e) {
+            exception = e;
+            throw e;
+        }
+
+        finished = true;
+        workers.stop();
+    }
+
+    public void finish() throws IOException {
+        if (!finished) {
+            writeEndMarker();
+
+            try {
+                out.finish();
+            } catch (IOException e) {
+                exception = e;
+                throw e;
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        if (out != null) {
+            if (!finished) {
+                try {
+                    writeEndMarker();
+                } catch (IOException e) {}
+            }
+
+            workers.stop();
+
+            try {
+                out.close();
+            } catch (IOException e) {
+                if (exception == null)
+                    exception = e;
+            }
+
+            out = null;
+        }
+
+        if (exception != null)
+            throw exception;
+    }
+
+    /**
+     * A single segment to be compressed by a worker thread.
+     * The results are read only after <code>WorkerPool.waitFor</code>
+     * has returned.
+     */
+    private class SegmentJob extends WorkerPool.Job {
+        final byte[] in;
+        final int histSize;
+        final int inSize;
+        final boolean first;
+
+        byte[] compressed = null;
+        int compressedSize = 0;
+
+        SegmentJob(byte[] in, int histSize, int inSize, boolean first) {
+            this.in = in;
+            this.histSize = histSize;
+            this.inSize = inSize;
+            this.first = first;
+        }
+
+        void run() throws IOException {
+            // The first segment uses the preset dictionary of the options
+            // as is, so a primed dictionary stays fast to set up.
+            LZMA2Options segmentOptions = options;
+            if (!first) {
+                byte[] presetDict = new byte[histSize];
+                System.arraycopy(in, 0, presetDict, 0, histSize);
+                segmentOptions = (LZMA2Options)options.clone();
+                segmentOptions.setPresetDict(presetDict);
+            }
+
+            SegmentBuffer buf = new SegmentBuffer(
+                    (inSize - histSize) / 2 + 1024);
+            LZMA2OutputStream encoder = new LZMA2OutputStream(
+                    new FinishableWrapperOutputStream(buf),
+                    segmentOptions, arrayCache);
+
+            // Flushing writes all data as complete chunks without
+            // the end marker. The arrays have to be put back to
+            // the cache explicitly since the encoder isn't finished.
+            try {
+                encoder.write(in, histSize, inSize - histSize);
+                encoder.flush();
+            } finally {
+                encoder.putArraysToCache();
+            }
+
+            compressed = buf.getBuffer();
+            compressedSize = buf.size();
+        }
+    }
+
+    /**
+     * Output buffer that allows access to its internal array so that
+     * the compressed segment doesn't need to be copied once more.
+     */
+    private static class SegmentBuffer extends ByteArrayOutputStream {
+        SegmentBuffer(int size) {
+            super(size);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
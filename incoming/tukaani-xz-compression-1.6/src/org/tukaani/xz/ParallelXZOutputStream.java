@@ -0,0 +1,531 @@
+/*
+ * ParallelXZOutputStream
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz;
+
+import java.io.OutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+import org.tukaani.xz.common.EncoderUtil;
+import org.tukaani.xz.common.StreamFlags;
+import org.tukaani.xz.check.Check;
+import org.tukaani.xz.index.IndexEncoder;
+
+/**
+ * Compresses into the .xz file format using multiple threads.
+ * <p>
+ * The input is split into XZ Blocks of a fixed uncompressed size.
+ * The Blocks are compressed independently of each other by a pool of
+ * worker threads and then written to the underlying output stream
+ * in the original order. The result is a normal single-Stream .xz file
+ * which can be decompressed with {@link XZInputStream} and, because
+ * every Block is listed in the Index, accessed randomly with
+ * {@link SeekableXZInputStream}.
+ * <p>
+ * Since the Blocks are independent, a dictionary bigger than the Block
+ * size would be useless. The dictionary size in {@link LZMA2Options}
+ * is thus reduced to the Block size (but not below
+ * <code>LZMA2Options.DICT_SIZE_MIN</code>) when needed.
+ *
+ * <h4>Memory usage</h4>
+ * <p>
+ * Each worker thread needs its own encoder, so the encoder memory usage
+ * is multiplied by the number of threads. In addition, up to two input
+ * buffers of <code>blockSize</code> bytes per thread and the compressed
+ * data of the Blocks that haven't been written out yet are kept in RAM.
+ *
+ * <h4>Examples</h4>
+ * <p>
+ * Compressing with the preset level <code>6</code> using four threads
+ * and 4&nbsp;MiB Blocks:
+ * <p><blockquote><pre>
+ * FileOutputStream outfile = new FileOutputStream("foo.xz");
+ * ParallelXZOutputStream outxz = new ParallelXZOutputStream(
+ *         outfile, new LZMA2Options(6), 4 &lt;&lt; 20, 4);
+ * </pre></blockquote>
+ *
+ * @see XZOutputStream
+ * @since 1.7
+ */
+public class ParallelXZOutputStream extends FinishableOutputStream {
+    private OutputStream out;
+    private final StreamFlags streamFlags = new StreamFlags();
+    private final IndexEncoder index = new IndexEncoder();
+    private final FilterEncoder[] filters;
+    private final int blockSize;
+
+    /**
+     * Cache for the big arrays of the Block encoders. The default cache
+     * is looked up once so that all Blocks use the same cache.
+     */
+    private final ArrayCache arrayCache = ArrayCache.getDefaultCache();
+
+    /**
+     * Maximum number of Blocks that may be queued or being compressed
+     * at the same time. This bounds the memory usage when the underlying
+     * output stream is slower than the worker threads.
+     */
+    private final int maxPending;
+
+    /**
+     * Blocks that have been submitted but not written out yet,
+     * in the order they appear in the output.
+     */
+    private final LinkedList pending = new LinkedList();
+
+    /**
+     * Input buffers of Blocks that have been written out. These are reused
+     * to avoid allocating a new <code>blockSize</code> array per Block.
+     */
+    private final LinkedList freeBuffers = new LinkedList();
+
+    private final WorkerPool workers;
+
+    private byte[] inBuf = null;
+    private int inPos = 0;
+
+    private IOException exception = null;
+    private boolean finished = false;
+
+    private final byte[] tempBuf = new byte[1];
+
+    /**
+     * Creates a new multithreaded XZ compressor using one filter and CRC64
+     * as the integrity check.
+     *
+     * @param       out         output stream to which the compressed data
+     *                          will be written
+     *
+     * @param       filterOptions
+     *                          filter options to use
+     *
+     * @param       blockSize   uncompressed size of each XZ Block
+     *
+     * @param       threads     number of worker threads
+     *
+     * @throws      UnsupportedOptionsException
+     *                          invalid filter chain
+     *
+     * @throws      IOException may be thrown from <code>out</code>
+     */
+    public ParallelXZOutputStream(OutputStream out,
+                                  FilterOptions filterOptions,
+                                  int blockSize, int threads)
+            throws IOException {
+        this(out, new FilterOptions[] { filterOptions }, XZ.CHECK_CRC64,
+             blockSize, threads);
+    }
+
+    /**
+     * Creates a new multithreaded XZ compressor using 1-4 filters and
+     * the specified integrity check type.
+     *
+     * @param       out         output stream to which the compressed data
+     *                          will be written
+     *
+     * @param       filterOptions
+     *                          array of filter options to use
+     *
+     * @param       checkType   type of the integrity check,
+     *                          for example XZ.CHECK_CRC32
+     *
+     * @param       blockSize   uncompressed size of each XZ Block
+     *
+     * @param       threads     number of worker threads
+     *
+     * @throws      UnsupportedOptionsException
+     *                          invalid filter chain
+     *
+     * @throws      IllegalArgumentException
+     *                          <code>blockSize</code> or
+     *                          <code>threads</code> is less than one
+     *
+     * @throws      IOException may be thrown from <code>out</code>
+     */
+    public ParallelXZOutputStream(OutputStream out,
+                                  FilterOptions[] filterOptions,
+                                  int checkType, int blockSize, int threads)
+            throws IOException {
+        if (blockSize < 1)
+            throw new IllegalArgumentException(
+                    "Block size must be positive: " + blockSize);
+
+        if (threads < 1)
+            throw new IllegalArgumentException(
+                    "Thread count must be positive: " + threads);
+
+        if (filterOptions.length < 1 || filterOptions.length > 4)
+            throw new UnsupportedOptionsException(
+                        "XZ filter chain must be 1-4 filters");
+
+        FilterEncoder[] newFilters = new FilterEncoder[filterOptions.length];
+        for (int i = 0; i < filterOptions.length; ++i)
+            newFilters[i] = LZMA2Options.capDictSize(
+                    filterOptions[i], blockSize).getFilterEncoder();
+
+        RawCoder.validate(newFilters);
+
+        // Check that the Check ID is supported before writing anything.
+        Check.getInstance(checkType);
+
+        this.out = out;
+        this.filters = newFilters;
+        this.blockSize = blockSize;
+        this.workers = new WorkerPool("XZ encoder", threads);
+        this.maxPending = 2 * threads;
+        streamFlags.checkType = checkType;
+
+        encodeStreamHeader();
+    }
+
+    /**
+     * Writes one byte to be compressed.
+     *
+     * @throws      XZIOException
+     *                          XZ Stream has grown too big
+     *
+     * @throws      XZIOException
+     *                          <code>finish()</code> or <code>close()</code>
+     *                          was already called
+     *
+     * @throws      IOException may be thrown by the underlying output stream
+     *                          or by a worker thread
+     */
+    public void write(int b) throws IOException {
+        // Store the byte directly if that doesn't fill the Block.
+        // Otherwise let write(byte[], int, int) submit the Block.
+        if (inBuf != null && inPos < blockSize - 1 && exception == null) {
+            inBuf[inPos++] = (byte)b;
+            return;
+        }
+
+        tempBuf[0] = (byte)b;
+        write(tempBuf, 0, 1);
+    }
+
+    /**
+     * Writes an array of bytes to be compressed.
+     * The data is copied into an internal buffer and compressed
+     * by a worker thread once a whole Block has been collected.
+     *
+     * @param       buf         buffer of bytes to be written
+     * @param       off         start offset in <code>buf</code>
+     * @param       len         number of bytes to write
+     *
+     * @throws      XZIOException
+     *                          XZ Stream has grown too big
+     *
+     * @throws      XZIOException
+     *                          <code>finish()</code> or <code>close()</code>
+     *                          was already called and len &gt; 0
+     *
+     * @throws      IOException may be thrown by the underlying output stream
+     *                          or by a worker thread
+     */
+    public void write(byte[] buf, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len < 0 || off + len > buf.length)
+            throw new IndexOutOfBoundsException();
+
+        if (exception != null)
+            throw exception;
+
+        if (finished)
+            throw new XZIOException("Stream finished or closed");
+
+        try {
+            while (len > 0) {
+                if (inBuf == null) {
+                    inBuf = freeBuffers.isEmpty()
+                            ? new byte[blockSize]
+                            : (byte[])freeBuffers.removeFirst();
+                    inPos = 0;
+                }
+
+                int copySize = Math.min(blockSize - inPos, len);
+                System.arraycopy(buf, off, inBuf, inPos, copySize);
+                inPos += copySize;
+                off += copySize;
+                len -= copySize;
+
+                if (inPos == blockSize)
+                    submitBlock();
+            }
+
+            // Write the Blocks that happen to be ready already so that
+            // the compressed data doesn't pile up in RAM unnecessarily.
+            writeFinishedBlocks(false);
+        } catch (IOException e) {
+            exception = e;
+            throw e;
+        }
+    }
+
+    /**
+     * Finishes the current XZ Block (but not the whole XZ Stream) even if
+     * it is smaller than the Block size. The Block is compressed
+     * in the background; this doesn't wait for it to be written out.
+     * <p>
+     * If there is no unfinished Block open, this function will do nothing.
+     * (No empty XZ Block will be created.)
+     *
+     * @throws      XZIOException
+     *                          XZ Stream has grown too big
+     *
+     * @throws      XZIOException
+     *                          stream finished or closed
+     *
+     * @throws      IOException may be thrown by the underlying output stream
+     *                          or by a worker thread
+     */
+    public void endBlock() throws IOException {
+        if (exception != null)
+            throw exception;
+
+        if (finished)
+            throw new XZIOException("Stream finished or closed");
+
+        try {
+            if (inPos > 0)
+                submitBlock();
+        } catch (IOException e) {
+            exception = e;
+            throw e;
+        }
+    }
+
+    /**
+     * Ends the current XZ Block, waits until all Blocks have been
+     * compressed and written out, and calls <code>out.flush()</code>.
+     * All data written so far will then be decompressible from
+     * the output stream.
+     * <p>
+     * Like <code>endBlock()</code>, calling this often will make
+     * the compressed file bigger.
+     *
+     * @throws      XZIOException
+     *                          XZ Stream has grown too big
+     *
+     * @throws      XZIOException
+     *                          stream finished or closed
+     *
+     * @throws      IOException may be thrown by the underlying output stream
+     *                          or by a worker thread
+     */
+    public void flush() throws IOException {
+        endBlock();
+
+        try {
+            writeFinishedBlocks(true);
+            out.flush();
+        } catch (IOException e) {
+            exception = e;
+            throw e;
+        }
+    }
+
+    /**
+     * Finishes compression without closing the underlying stream.
+     * This waits until all worker threads have finished, writes
+     * the Index and Stream Footer, and stops the worker threads.
+     * No more data can be written to this stream after finishing
+     * (calling <code>write</code> with an empty buffer is OK).
+     * <p>
+     * Repeated calls to <code>finish()</code> do nothing unless
+     * an exception was thrown by this stream earlier. In that case
+     * the same exception is thrown again.
+     *
+     * @throws      XZIOException
+     *                          XZ Stream has grown too big
+     *
+     * @throws      IOException may be thrown by the underlying output stream
+     *                          or by a worker thread
+     */
+    public void finish() throws IOException {
+        if (!finished) {
+            // This checks for pending exceptions so we don't need to
+            // worry about it here.
+            endBlock();
+
+            try {
+                writeFinishedBlocks(true);
+                index.encode(out);
+                encodeStreamFooter();
+            } catch (IOException e) {
+                exception = e;
+                throw e;
+            }
+
+            finished = true;
+            workers.stop();
+        }
+    }
+
+    /**
+     * Finishes compression and closes the underlying stream.
+     * The underlying stream <code>out</code> is closed and the worker
+     * threads are stopped even if finishing fails. If both finishing
+     * and closing fail, the exception thrown by <code>finish()</code>
+     * is thrown and the exception from the failed <code>out.close()</code>
+     * is lost.
+     *
+     * @throws      XZIOException
+     *                          XZ Stream has grown too big
+     *
+     * @throws      IOException may be thrown by the underlying output stream
+     *                          or by a worker thread
+     */
+    public void close() throws IOException {
+        if (out != null) {
+            try {
+                finish();
+            } catch (IOException e) {}
+
+            workers.stop();
+
+            try {
+                out.close();
+            } catch (IOException e) {
+                if (exception == null)
+                    exception = e;
+            }
+
+            out = null;
+        }
+
+        if (exception != null)
+            throw exception;
+    }
+
+    /**
+     * Hands the contents of <code>inBuf</code> to the worker threads.
+     * If too many Blocks are already pending, this first waits until
+     * the oldest one has been written out.
+     */
+    private void submitBlock() throws IOException {
+        while (pending.size() >= maxPending)
+            writeBlock((BlockJob)pending.removeFirst());
+
+        BlockJob job = new BlockJob(inBuf, inPos);
+        inBuf = null;
+        inPos = 0;
+
+        pending.addLast(job);
+        workers.submit(job);
+    }
+
+    /**
+     * Writes the compressed Blocks from the beginning of the pending list.
+     * If <code>waitAll</code> is true, this waits until all pending Blocks
+     * have been written. Otherwise only those that have already been
+     * compressed are written.
+     */
+    private void writeFinishedBlocks(boolean waitAll) throws IOException {
+        while (!pending.isEmpty()) {
+            BlockJob job = (BlockJob)pending.getFirst();
+
+            if (!waitAll && !workers.isDone(job))
+                return;
+
+            pending.removeFirst();
+            writeBlock(job);
+        }
+    }
+
+    /**
+     * Waits until the given Block has been compressed and then writes it
+     * to the underlying output stream and adds it to the Index.
+     */
+    private void writeBlock(BlockJob job) throws IOException {
+        workers.waitFor(job);
+
+        out.write(job.compressed, 0, job.compressedSize);
+        index.add(job.unpaddedSize, job.uncompressedSize);
+
+        freeBuffers.addLast(job.in);
+    }
+
+    private void encodeStreamFlags(byte[] buf, int off) {
+        buf[off] = 0x00;
+        buf[off + 1] = (byte)streamFlags.checkType;
+    }
+
+    private void encodeStreamHeader() throws IOException {
+        out.write(XZ.HEADER_MAGIC);
+
+        byte[] buf = new byte[2];
+        encodeStreamFlags(buf, 0);
+        out.write(buf);
+
+        EncoderUtil.writeCRC32(out, buf);
+    }
+
+    private void encodeStreamFooter() throws IOException {
+        byte[] buf = new byte[6];
+        long backwardSize = index.getIndexSize() / 4 - 1;
+        for (int i = 0; i < 4; ++i)
+            buf[i] = (byte)(backwardSize >>> (i * 8));
+
+        encodeStreamFlags(buf, 4);
+
+        EncoderUtil.writeCRC32(out, buf);
+        out.write(buf);
+        out.write(XZ.FOOTER_MAGIC);
+    }
+
+    /**
+     * A single XZ Block to be compressed by a worker thread.
+     * The results are read only after <code>WorkerPool.waitFor</code>
+     * has returned.
+     */
+    private class BlockJob extends WorkerPool.Job {
+        final byte[] in;
+        final int inSize;
+
+        byte[] compressed = null;
+        int compressedSize = 0;
+        long unpaddedSize = 0;
+        long uncompressedSize = 0;
+
+        BlockJob(byte[] in, int inSize) {
+            this.in = in;
+            this.inSize = inSize;
+        }
+
+        void run() throws IOException {
+            // Compressed size is usually smaller than the input
+            // but it's only an initial size; the buffer can grow.
+            BlockBuffer buf = new BlockBuffer(inSize / 2 + 1024);
+            BlockOutputStream blockEncoder = new BlockOutputStream(
+                    buf, filters, Check.getInstance(streamFlags.checkType),
+                    arrayCache);
+            blockEncoder.write(in, 0, inSize);
+            blockEncoder.finish();
+
+            compressed = buf.getBuffer();
+            compressedSize = buf.size();
+            unpaddedSize = blockEncoder.getUnpaddedSize();
+            uncompressedSize = blockEncoder.getUncompressedSize();
+        }
+    }
+
+    /**
+     * Output buffer that allows access to its internal array so that
+     * the compressed Block doesn't need to be copied once more.
+     */
+    private static class BlockBuffer extends ByteArrayOutputStream {
+        BlockBuffer(int size) {
+            super(size);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
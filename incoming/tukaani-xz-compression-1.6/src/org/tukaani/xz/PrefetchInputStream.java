@@ -0,0 +1,408 @@
+/*
+ * PrefetchInputStream
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+
+/**
+ * Reads ahead from another input stream in a background thread.
+ * <p>
+ * The decompressors read their input in small pieces when they need it,
+ * for example, one LZMA2 chunk of at most 64&nbsp;KiB at a time. If every
+ * read has a high latency, like on network file systems, decompression
+ * stalls on every chunk. Wrapping the compressed input into
+ * a <code>PrefetchInputStream</code> lets a background thread read
+ * the next pieces of the input while the current one is being
+ * decompressed:
+ * <p><blockquote><pre>
+ * InputStream infile = new FileInputStream("foo.xz");
+ * XZInputStream inxz = new XZInputStream(new PrefetchInputStream(infile));
+ * </pre></blockquote>
+ * <p>
+ * The background thread reads into a fixed number of buffers. It stops
+ * when all buffers are full. Since it reads ahead, it may consume data
+ * from the underlying stream that comes after the data that is actually
+ * needed, for example, after the end of an XZ Stream when using
+ * {@link SingleXZInputStream}. That data can still be read from
+ * the <code>PrefetchInputStream</code>.
+ * <p>
+ * The background thread is started by the first <code>read</code>.
+ * It exits when all buffers are full and is started again once
+ * the buffers have been read, so a stream that is abandoned without
+ * closing it doesn't keep a thread waiting forever.
+ * <p>
+ * An exception thrown by the underlying stream is thrown from
+ * <code>read</code> after the data read before it has been consumed.
+ * Like with the other streams, only one thread at a time may read from
+ * a <code>PrefetchInputStream</code>.
+ *
+ * @since 1.7
+ */
+public class PrefetchInputStream extends InputStream {
+    /**
+     * Default size of a read-ahead buffer.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64 << 10;
+
+    /**
+     * Default maximum number of read-ahead buffers.
+     */
+    public static final int DEFAULT_BUFFER_COUNT = 4;
+
+    private final InputStream in;
+    private final int bufferSize;
+    private final int bufferCount;
+
+    /**
+     * Buffers that have been filled by the background thread but not
+     * read yet. This is also used as the lock for all state shared with
+     * the background thread.
+     */
+    private final LinkedList queue = new LinkedList();
+
+    /**
+     * Buffers that can be filled again.
+     */
+    private final LinkedList freeBuffers = new LinkedList();
+
+    /**
+     * Number of buffers allocated so far.
+     */
+    private int allocatedBuffers = 0;
+
+    /**
+     * True when the background thread has reached the end of
+     * the underlying stream.
+     */
+    private boolean eof = false;
+
+    /**
+     * Exception thrown by the underlying stream. It is thrown from
+     * <code>read</code> once the queue is empty.
+     */
+    private IOException exception = null;
+    private Throwable error = null;
+
+    private boolean closed = false;
+
+    /**
+     * The background thread, or <code>null</code> if it isn't running.
+     */
+    private Prefetcher prefetcher = null;
+
+    /**
+     * Buffer being read by <code>read</code>.
+     */
+    private Chunk cur = null;
+    private int curPos = 0;
+
+    private final byte[] tempBuf = new byte[1];
+
+    /**
+     * A buffer and the number of bytes read into it.
+     */
+    private static class Chunk {
+        final byte[] buf;
+        final int size;
+
+        Chunk(byte[] buf, int size) {
+            this.buf = buf;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Creates a new read-ahead stream with the default buffer size
+     * and count. The background thread starts reading on the first
+     * call to <code>read</code>.
+     *
+     * @param       in          input stream to read from
+     */
+    public PrefetchInputStream(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * Creates a new read-ahead stream. The background thread starts
+     * reading on the first call to <code>read</code>.
+     *
+     * @param       in          input stream to read from
+     *
+     * @param       bufferSize  size of a read-ahead buffer, that is,
+     *                          the maximum size of a single read from
+     *                          <code>in</code>
+     *
+     * @param       bufferCount maximum number of read-ahead buffers
+     *
+     * @throws      IllegalArgumentException
+     *                          <code>bufferSize</code> or
+     *                          <code>bufferCount</code> isn't positive
+     */
+    public PrefetchInputStream(InputStream in, int bufferSize,
+                               int bufferCount) {
+        if (in == null)
+            throw new NullPointerException();
+
+        if (bufferSize <= 0 || bufferCount <= 0)
+            throw new IllegalArgumentException(
+                    "Buffer size and count must be positive");
+
+        this.in = in;
+        this.bufferSize = bufferSize;
+        this.bufferCount = bufferCount;
+    }
+
+    /**
+     * Reads one byte.
+     *
+     * @return      the next byte, or <code>-1</code> at the end of
+     *              the stream
+     *
+     * @throws      IOException may be thrown by the underlying stream
+     */
+    public int read() throws IOException {
+        return read(tempBuf, 0, 1) == -1 ? -1 : (tempBuf[0] & 0xFF);
+    }
+
+    /**
+     * Reads up to <code>len</code> bytes of the data that has been read
+     * ahead, waiting for the background thread only if no data is
+     * available.
+     *
+     * @return      number of bytes read, or <code>-1</code> at the end
+     *              of the stream
+     *
+     * @throws      XZIOException
+     *                          the stream has been closed or the thread
+     *                          was interrupted while waiting for data
+     *
+     * @throws      IOException may be thrown by the underlying stream
+     */
+    public int read(byte[] buf, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len < 0 || off + len > buf.length)
+            throw new IndexOutOfBoundsException();
+
+        if (closed)
+            throw new XZIOException("Stream closed");
+
+        if (len == 0)
+            return 0;
+
+        if (cur == null || curPos == cur.size)
+            if (!nextChunk())
+                return -1;
+
+        int copySize = Math.min(len, cur.size - curPos);
+        System.arraycopy(cur.buf, curPos, buf, off, copySize);
+        curPos += copySize;
+        return copySize;
+    }
+
+    /**
+     * Gives the current buffer back to the background thread and waits
+     * for the next filled buffer. The background thread is started
+     * if it isn't running and at most half of the buffers are full.
+     * Waiting until half of them are free avoids starting a new thread
+     * for every buffer when the input is read faster than it is consumed.
+     *
+     * @return      true if a new buffer is available, false at the end
+     *              of the stream
+     */
+    private boolean nextChunk() throws IOException {
+        synchronized (queue) {
+            if (cur != null) {
+                freeBuffers.addLast(cur.buf);
+                cur = null;
+            }
+
+            if (prefetcher == null && !eof && exception == null
+                    && error == null && queue.size() <= bufferCount / 2) {
+                prefetcher = new Prefetcher();
+                prefetcher.start();
+            }
+
+            while (queue.isEmpty() && !eof && exception == null
+                    && error == null) {
+                try {
+                    queue.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new XZIOException(
+                            "Interrupted while waiting for input");
+                }
+            }
+
+            if (!queue.isEmpty()) {
+                cur = (Chunk)queue.removeFirst();
+                curPos = 0;
+                return true;
+            }
+
+            if (exception != null)
+                throw exception;
+
+            if (error instanceof RuntimeException)
+                throw (RuntimeException)error;
+
+            if (error != null)
+                throw (Error)error;
+
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of bytes that have been read ahead and can be
+     * read without blocking.
+     */
+    public int available() throws IOException {
+        if (closed)
+            throw new XZIOException("Stream closed");
+
+        int size = cur == null ? 0 : cur.size - curPos;
+
+        synchronized (queue) {
+            for (int i = 0; i < queue.size(); ++i)
+                size += ((Chunk)queue.get(i)).size;
+        }
+
+        return size;
+    }
+
+    /**
+     * Stops the background thread and calls <code>in.close()</code>.
+     * If the background thread is reading from <code>in</code>, this
+     * waits until that read returns so that <code>in</code> isn't
+     * closed in the middle of it. If the stream was already closed,
+     * this does nothing.
+     *
+     * @throws      XZIOException
+     *                          the thread was interrupted while waiting
+     *                          for the background thread; <code>in</code>
+     *                          has been closed anyway
+     *
+     * @throws      IOException if thrown by <code>in.close()</code>
+     */
+    public void close() throws IOException {
+        if (!closed) {
+            boolean interrupted = false;
+
+            synchronized (queue) {
+                closed = true;
+                queue.clear();
+
+                while (prefetcher != null) {
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException e) {
+                        // Don't wait any longer. Closing the stream
+                        // usually makes the pending read fail and
+                        // the background thread ignores the exception.
+                        interrupted = true;
+                        break;
+                    }
+                }
+            }
+
+            cur = null;
+            in.close();
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+                throw new XZIOException(
+                        "Interrupted while waiting for the background thread");
+            }
+        }
+    }
+
+    private class Prefetcher extends Thread {
+        Prefetcher() {
+            super("XZ input prefetcher");
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (true) {
+                byte[] buf = null;
+
+                synchronized (queue) {
+                    // Exit when the stream has been closed or all buffers
+                    // are full. nextChunk starts a new thread once enough
+                    // buffers have been read.
+                    if (closed || (freeBuffers.isEmpty()
+                            && allocatedBuffers == bufferCount)) {
+                        exit();
+                        return;
+                    }
+
+                    if (freeBuffers.isEmpty())
+                        ++allocatedBuffers;
+                    else
+                        buf = (byte[])freeBuffers.removeFirst();
+                }
+
+                if (buf == null)
+                    buf = new byte[bufferSize];
+
+                int size = 0;
+                IOException newException = null;
+                Throwable newError = null;
+
+                // Errors are caught too. Otherwise the reading thread
+                // could wait forever.
+                try {
+                    size = in.read(buf, 0, buf.length);
+                } catch (IOException e) {
+                    newException = e;
+                } catch (RuntimeException e) {
+                    newError = e;
+                } catch (Error e) {
+                    newError = e;
+                }
+
+                synchronized (queue) {
+                    if (closed) {
+                        exit();
+                        return;
+                    }
+
+                    if (newException != null || newError != null) {
+                        exception = newException;
+                        error = newError;
+                    } else if (size == -1) {
+                        eof = true;
+                    } else if (size > 0) {
+                        queue.addLast(new Chunk(buf, size));
+                    } else {
+                        freeBuffers.addLast(buf);
+                    }
+
+                    queue.notifyAll();
+
+                    if (eof || exception != null || error != null) {
+                        exit();
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Marks the thread as stopped and wakes up <code>close</code>.
+         * This must be called with the lock held.
+         */
+        private void exit() {
+            prefetcher = null;
+            queue.notifyAll();
+        }
+    }
+}
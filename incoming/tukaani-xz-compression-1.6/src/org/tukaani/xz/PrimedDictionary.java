@@ -0,0 +1,110 @@
+/*
+ * PrimedDictionary
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz;
+
+import org.tukaani.xz.lz.PresetDictState;
+
+/**
+ * Preset dictionary that has been prepared for repeated use.
+ * <p>
+ * With {@link LZMA2Options#setPresetDict(byte[])}, every new encoder
+ * runs the whole preset dictionary through its match finder before
+ * it can compress anything. When compressing lots of small messages
+ * independently from each other, that can take more time than compressing
+ * the messages themselves. A <code>PrimedDictionary</code> runs the preset
+ * dictionary through the match finder once and saves the result.
+ * The encoders then only need to copy the saved state. The compressed
+ * output is identical to using the same bytes with
+ * <code>setPresetDict(byte[])</code>.
+ * <p>
+ * The saved state depends on the dictionary size, the match finder,
+ * the nice length, and the depth limit in the options given to
+ * the constructor. If the options used for compression differ in
+ * these settings, the encoders fall back to
+ * running the preset dictionary through the match finder like
+ * <code>setPresetDict(byte[])</code> does.
+ * <p>
+ * Copying the state takes time proportional to the dictionary size
+ * because the hash tables of the match finder grow with it. For small
+ * messages, use a dictionary size that is only a little bigger than
+ * the preset dictionary plus the biggest message.
+ * <p>
+ * Decompression needs only the bytes of the preset dictionary. Use the same
+ * options with {@link LZMA2Options#getInputStream(java.io.InputStream)},
+ * or pass {@link #getBytes()} to
+ * {@link LZMA2InputStream#LZMA2InputStream(java.io.InputStream, int,
+ * byte[])} or {@link LZMAInputStream}.
+ * <p>
+ * A <code>PrimedDictionary</code> cannot be modified after it has been
+ * created, so it can be shared by encoders in different threads.
+ * <p>
+ * Example:
+ * <p><blockquote><pre>
+ * LZMA2Options options = new LZMA2Options();
+ * options.setDictSize(256 &lt;&lt; 10);
+ * options.setPrimedDict(new PrimedDictionary(dict, options));
+ *
+ * for (int i = 0; i &lt; messages.length; ++i) {
+ *     ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+ *     FinishableOutputStream out = options.getOutputStream(
+ *             new FinishableWrapperOutputStream(compressed));
+ *     out.write(messages[i]);
+ *     out.finish();
+ *     ...
+ * }
+ * </pre></blockquote>
+ *
+ * @since 1.7
+ */
+public final class PrimedDictionary {
+    private final byte[] dict;
+    private final PresetDictState state;
+
+    /**
+     * Prepares a preset dictionary for encoders that use the dictionary
+     * size, match finder, nice length, and depth limit of
+     * <code>options</code>.
+     *
+     * @param       dict        preset dictionary; the array is copied
+     *
+     * @param       options     compression options that will be used
+     *                          with this dictionary
+     */
+    public PrimedDictionary(byte[] dict, LZMA2Options options) {
+        this.dict = (byte[])dict.clone();
+
+        if (dict.length == 0
+                || options.getMode() == LZMA2Options.MODE_UNCOMPRESSED)
+            state = null;
+        else
+            state = new PresetDictState(options.getDictSize(), this.dict,
+                                        options.getNiceLen(),
+                                        options.getMatchFinder(),
+                                        options.getDepthLimit());
+    }
+
+    /**
+     * Gets a copy of the preset dictionary.
+     */
+    public byte[] getBytes() {
+        return (byte[])dict.clone();
+    }
+
+    /**
+     * Gets the saved match finder state if it is compatible with
+     * the given options, or <code>null</code> if it isn't.
+     */
+    PresetDictState getState(int dictSize, int niceLen, int mf,
+                             int depthLimit) {
+        return state != null
+               && state.isCompatible(dictSize, niceLen, mf, depthLimit)
+               ? state : null;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * RecordDelimiter
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz;
+
+/**
+ * Finds the ends of records in uncompressed data so that XZ Blocks can
+ * end at record boundaries.
+ * <p>
+ * When a Block size has been set with
+ * {@link XZOutputStream#setBlockSize(long)} or
+ * {@link XZOutputStream#setCompressedBlockSize(long)}, a
+ * <code>RecordDelimiter</code> set with
+ * {@link XZOutputStream#setRecordDelimiter(RecordDelimiter)} makes
+ * the Block continue until the end of the current record. Then every
+ * Block starts at the beginning of a record, and reading a record with
+ * {@link SeekableXZInputStream} needs to decompress only one Block.
+ * <p>
+ * For records that end with a single byte, like lines of text ending with
+ * a newline, use {@link XZOutputStream#setRecordDelimiter(int)} instead
+ * of implementing this interface.
+ *
+ * @since 1.7
+ */
+public interface RecordDelimiter {
+    /**
+     * Finds the first record end in <code>buf[off]</code> to
+     * <code>buf[off + len - 1]</code>. The data is given in the same
+     * order as it is written to the <code>XZOutputStream</code>, but
+     * a record may be split between calls.
+     *
+     * @param       buf         uncompressed data
+     * @param       off         start offset in <code>buf</code>
+     * @param       len         number of bytes to search
+     *
+     * @return      offset in <code>buf</code> of the first byte after
+     *              the end of the record, in the range
+     *              <code>[off + 1, off + len]</code>, or <code>-1</code>
+     *              if the record doesn't end in the given data
+     */
+    int findRecordEnd(byte[] buf, int off, int len);
+}
@@ -0,0 +1,614 @@
+/*
+ * SeekableXZIndex
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz;
+
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.EOFException;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import org.tukaani.xz.common.DecoderUtil;
+import org.tukaani.xz.common.StreamFlags;
+import org.tukaani.xz.common.Util;
+import org.tukaani.xz.check.Check;
+import org.tukaani.xz.index.IndexDecoder;
+
+/**
+ * Parsed Indexes of a .xz file for {@link SeekableXZInputStream}.
+ * <p>
+ * To locate the XZ Blocks, <code>SeekableXZInputStream</code> needs to
+ * parse the Stream Footers and Indexes of all XZ Streams in the file.
+ * With big files this can take a lot of time and memory. When the same
+ * file is opened many times, the Indexes can be parsed only once into
+ * a <code>SeekableXZIndex</code>, and then the
+ * <code>SeekableXZInputStream</code>s can be created from it without
+ * reading anything from the file:
+ * <p><blockquote><pre>
+ * SeekableXZIndex index = new SeekableXZIndex(
+ *         new SeekableFileInputStream(file));
+ * ...
+ * SeekableXZInputStream in = new SeekableXZInputStream(
+ *         new SeekableFileInputStream(file), index);
+ * </pre></blockquote>
+ * <p>
+ * A <code>SeekableXZIndex</code> is immutable and thus can be shared
+ * between threads. It can also be saved to a file with
+ * {@link #writeTo(OutputStream)} and loaded with
+ * {@link #readFrom(InputStream, int)}, so that the .xz file doesn't need
+ * to be parsed again when the application is restarted. The saved format
+ * is specific to this library and isn't meant for interchange.
+ * <p>
+ * The only check that the Index matches the file is the size of the
+ * compressed file. If the file may be replaced with another file of the
+ * same size, the application has to detect that itself.
+ *
+ * @since 1.7
+ */
+public final class SeekableXZIndex {
+    /**
+     * Magic bytes and the format version in the beginning of
+     * the saved Index.
+     */
+    private static final byte[] MAGIC
+            = { 'X', 'Z', 'i', 'n', 'd', 'e', 'x', 0x01 };
+
+    /**
+     * Size of the compressed .xz file.
+     */
+    final long fileSize;
+
+    /**
+     * The IndexDecoders in the order of the Streams in the file, and
+     * the uncompressed offset and the number of the first Block of each
+     * Stream. These allow binary search over the Streams so that locating
+     * a Block is fast also with a huge number of concatenated Streams.
+     */
+    private final IndexDecoder[] streamsInFileOrder;
+    private final long[] streamUncompressedOffsets;
+    private final int[] streamBlockOffsets;
+
+    /**
+     * Memory usage of the IndexDecoders in kibibytes.
+     */
+    final int memoryUsage;
+
+    /**
+     * Bitmask of all Check IDs seen.
+     */
+    final int checkTypes;
+
+    /**
+     * Uncompressed size of the file (all Streams).
+     */
+    final long uncompressedSize;
+
+    /**
+     * Uncompressed size of the largest XZ Block in the file.
+     */
+    final long largestBlockSize;
+
+    /**
+     * Number of XZ Blocks in the file.
+     */
+    final int blockCount;
+
+    /**
+     * Parses the Indexes of a .xz file without a memory usage limit.
+     *
+     * @param       in          seekable input stream containing one or more
+     *                          XZ Streams; the whole input stream is used
+     *
+     * @throws      XZFormatException
+     *                          input is not in the XZ format
+     *
+     * @throws      CorruptedInputException
+     *                          XZ data is corrupt or truncated
+     *
+     * @throws      UnsupportedOptionsException
+     *                          XZ headers seem valid but they specify
+     *                          options not supported by this implementation
+     *
+     * @throws      EOFException
+     *                          less than 6 bytes of input was available
+     *                          from <code>in</code>, or (unlikely) the size
+     *                          of the underlying stream got smaller while
+     *                          this was reading from it
+     *
+     * @throws      IOException may be thrown by <code>in</code>
+     */
+    public SeekableXZIndex(SeekableInputStream in) throws IOException {
+        this(in, -1);
+    }
+
+    /**
+     * Parses the Indexes of a .xz file with an optional memory
+     * usage limit. The stream <code>in</code> isn't closed.
+     *
+     * @param       in          seekable input stream containing one or more
+     *                          XZ Streams; the whole input stream is used
+     *
+     * @param       memoryLimit memory usage limit in kibibytes (KiB)
+     *                          or <code>-1</code> to impose no
+     *                          memory usage limit
+     *
+     * @throws      XZFormatException
+     *                          input is not in the XZ format
+     *
+     * @throws      CorruptedInputException
+     *                          XZ data is corrupt or truncated
+     *
+     * @throws      UnsupportedOptionsException
+     *                          XZ headers seem valid but they specify
+     *                          options not supported by this implementation
+     *
+     * @throws      MemoryLimitException
+     *                          decoded XZ Indexes would need more memory
+     *                          than allowed by the memory usage limit
+     *
+     * @throws      EOFException
+     *                          less than 6 bytes of input was available
+     *                          from <code>in</code>, or (unlikely) the size
+     *                          of the underlying stream got smaller while
+     *                          this was reading from it
+     *
+     * @throws      IOException may be thrown by <code>in</code>
+     */
+    public SeekableXZIndex(SeekableInputStream in, int memoryLimit)
+            throws IOException {
+        this(in.length(), parseStreams(in, memoryLimit));
+    }
+
+    /**
+     * Calculates the summary information of the given Indexes.
+     * The list of IndexDecoders is in reverse order: The first element
+     * is the last Stream in the file.
+     */
+    private SeekableXZIndex(long fileSize, ArrayList streams)
+            throws IOException {
+        this.fileSize = fileSize;
+
+        int streamCount = streams.size();
+        streamsInFileOrder = new IndexDecoder[streamCount];
+        streamUncompressedOffsets = new long[streamCount];
+        streamBlockOffsets = new int[streamCount];
+
+        int memoryUsage = 0;
+        int checkTypes = 0;
+        long uncompressedSize = 0;
+        long largestBlockSize = 0;
+        int blockCount = 0;
+
+        for (int i = 0; i < streams.size(); ++i) {
+            IndexDecoder index = (IndexDecoder)streams.get(i);
+
+            memoryUsage += index.getMemoryUsage();
+            streamsInFileOrder[streamCount - 1 - i] = index;
+
+            // Check that the Check ID is supported.
+            int checkType = index.getStreamFlags().checkType;
+            Check.getInstance(checkType);
+            checkTypes |= 1 << checkType;
+
+            // Remember the uncompressed size of the largest Block.
+            if (largestBlockSize < index.getLargestBlockSize())
+                largestBlockSize = index.getLargestBlockSize();
+
+            // Update the total uncompressed size of the file and check that
+            // it doesn't overflow.
+            uncompressedSize += index.getUncompressedSize();
+            if (uncompressedSize < 0)
+                throw new UnsupportedOptionsException("XZ file is too big");
+
+            // Update the Block count and check that it fits into an int.
+            blockCount += index.getRecordCount();
+            if (blockCount < 0)
+                throw new UnsupportedOptionsException(
+                        "XZ file has over " + Integer.MAX_VALUE + " Blocks");
+        }
+
+        this.memoryUsage = memoryUsage;
+        this.checkTypes = checkTypes;
+        this.uncompressedSize = uncompressedSize;
+        this.largestBlockSize = largestBlockSize;
+        this.blockCount = blockCount;
+
+        // Store the relative offsets of the Streams. This way we don't
+        // need to recalculate them when seeking; the IndexDecoder
+        // instances will handle them.
+        for (int i = 1; i < streamCount; ++i)
+            streamsInFileOrder[i].setOffsets(streamsInFileOrder[i - 1]);
+
+        for (int i = 0; i < streamCount; ++i) {
+            streamUncompressedOffsets[i]
+                    = streamsInFileOrder[i].getUncompressedOffset();
+            streamBlockOffsets[i] = streamsInFileOrder[i].getRecordOffset();
+        }
+    }
+
+    /**
+     * Parses the Stream Headers, Stream Footers, and Indexes
+     * starting from the end of the file.
+     *
+     * @return      list of IndexDecoders in reverse order
+     */
+    private static ArrayList parseStreams(SeekableInputStream in,
+                                          int memoryLimit)
+            throws IOException {
+        ArrayList streams = new ArrayList();
+        int indexMemoryUsage = 0;
+        DataInputStream inData = new DataInputStream(in);
+
+        // Check the magic bytes in the beginning of the file.
+        {
+            in.seek(0);
+            byte[] buf = new byte[XZ.HEADER_MAGIC.length];
+            inData.readFully(buf);
+            if (!Arrays.equals(buf, XZ.HEADER_MAGIC))
+                throw new XZFormatException();
+        }
+
+        // Get the file size and verify that it is a multiple of 4 bytes.
+        long pos = in.length();
+        if ((pos & 3) != 0)
+            throw new CorruptedInputException(
+                    "XZ file size is not a multiple of 4 bytes");
+
+        // Parse the headers starting from the end of the file.
+        byte[] buf = new byte[DecoderUtil.STREAM_HEADER_SIZE];
+        long streamPadding = 0;
+
+        while (pos > 0) {
+            if (pos < DecoderUtil.STREAM_HEADER_SIZE)
+                throw new CorruptedInputException();
+
+            // Read the potential Stream Footer.
+            in.seek(pos - DecoderUtil.STREAM_HEADER_SIZE);
+            inData.readFully(buf);
+
+            // Skip Stream Padding four bytes at a time.
+            // Skipping more at once would be faster,
+            // but usually there isn't much Stream Padding.
+            if (buf[8] == 0x00 && buf[9] == 0x00 && buf[10] == 0x00
+                    && buf[11] == 0x00) {
+                streamPadding += 4;
+                pos -= 4;
+                continue;
+            }
+
+            // It's not Stream Padding. Update pos.
+            pos -= DecoderUtil.STREAM_HEADER_SIZE;
+
+            // Decode the Stream Footer and check if Backward Size
+            // looks reasonable.
+            StreamFlags streamFooter = DecoderUtil.decodeStreamFooter(buf);
+            if (streamFooter.backwardSize >= pos)
+                throw new CorruptedInputException(
+                        "Backward Size in XZ Stream Footer is too big");
+
+            // Check that the Check ID is supported.
+            Check.getInstance(streamFooter.checkType);
+
+            // Seek to the beginning of the Index.
+            in.seek(pos - streamFooter.backwardSize);
+
+            // Decode the Index field.
+            IndexDecoder index;
+            try {
+                index = new IndexDecoder(in, streamFooter, streamPadding,
+                                         memoryLimit);
+            } catch (MemoryLimitException e) {
+                // IndexDecoder doesn't know how much memory we had
+                // already needed so we need to recreate the exception.
+                assert memoryLimit >= 0;
+                throw new MemoryLimitException(
+                        e.getMemoryNeeded() + indexMemoryUsage,
+                        memoryLimit + indexMemoryUsage);
+            }
+
+            // Update the memory usage and limit counters.
+            indexMemoryUsage += index.getMemoryUsage();
+            if (memoryLimit >= 0) {
+                memoryLimit -= index.getMemoryUsage();
+                assert memoryLimit >= 0;
+            }
+
+            // Calculate the offset to the beginning of this XZ Stream and
+            // check that it looks sane.
+            long off = index.getStreamSize() - DecoderUtil.STREAM_HEADER_SIZE;
+            if (pos < off)
+                throw new CorruptedInputException("XZ Index indicates "
+                        + "too big compressed size for the XZ Stream");
+
+            // Seek to the beginning of this Stream.
+            pos -= off;
+            in.seek(pos);
+
+            // Decode the Stream Header.
+            inData.readFully(buf);
+            StreamFlags streamHeader = DecoderUtil.decodeStreamHeader(buf);
+
+            // Verify that the Stream Header matches the Stream Footer.
+            if (!DecoderUtil.areStreamFlagsEqual(streamHeader, streamFooter))
+                throw new CorruptedInputException(
+                        "XZ Stream Footer does not match Stream Header");
+
+            // Add this Stream to the list of Streams.
+            streams.add(index);
+
+            // Reset to be ready to parse the next Stream.
+            streamPadding = 0;
+        }
+
+        assert pos == 0;
+        return streams;
+    }
+
+    /**
+     * Gets the size of the .xz file whose Indexes this object contains.
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Gets the amount of memory in kibibytes (KiB) used by
+     * the parsed Indexes.
+     */
+    public int getMemoryUsage() {
+        return memoryUsage;
+    }
+
+    /**
+     * Gets the uncompressed size of the file.
+     */
+    public long getUncompressedSize() {
+        return uncompressedSize;
+    }
+
+    /**
+     * Gets the number of Streams in the .xz file.
+     */
+    public int getStreamCount() {
+        return streamsInFileOrder.length;
+    }
+
+    /**
+     * Gets the number of Blocks in the .xz file.
+     */
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * Gets the IndexDecoder of the first Stream in the file.
+     */
+    IndexDecoder getFirstStream() {
+        return streamsInFileOrder[0];
+    }
+
+    /**
+     * Gets the IndexDecoder of the Stream that contains the given
+     * uncompressed position. The caller must have checked that
+     * <code>pos</code> is inside the file.
+     */
+    IndexDecoder getStreamByPos(long pos) {
+        // Find the last Stream that starts at or before pos. Empty
+        // Streams have the same offset as the next Stream, so a Stream
+        // found this way is never empty.
+        int left = 0;
+        int right = streamUncompressedOffsets.length - 1;
+
+        while (left < right) {
+            int i = right - (right - left) / 2;
+
+            if (streamUncompressedOffsets[i] <= pos)
+                left = i;
+            else
+                right = i - 1;
+        }
+
+        assert streamsInFileOrder[left].hasUncompressedOffset(pos);
+        return streamsInFileOrder[left];
+    }
+
+    /**
+     * Gets the IndexDecoder of the Stream that contains the given Block.
+     * The caller must have checked that the Block number is valid.
+     */
+    IndexDecoder getStreamByBlockNumber(int blockNumber) {
+        int left = 0;
+        int right = streamBlockOffsets.length - 1;
+
+        while (left < right) {
+            int i = right - (right - left) / 2;
+
+            if (streamBlockOffsets[i] <= blockNumber)
+                left = i;
+            else
+                right = i - 1;
+        }
+
+        assert streamsInFileOrder[left].hasRecord(blockNumber);
+        return streamsInFileOrder[left];
+    }
+
+    /**
+     * Saves the parsed Indexes to <code>out</code> so that they can be
+     * loaded later with <code>readFrom</code>. The stream
+     * <code>out</code> isn't closed.
+     *
+     * @throws      IOException may be thrown by <code>out</code>
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        java.util.zip.CRC32 crc32 = new java.util.zip.CRC32();
+        DataOutputStream outData = new DataOutputStream(
+                new CheckedOutputStream(out, crc32));
+
+        outData.write(MAGIC);
+        outData.writeLong(fileSize);
+        outData.writeInt(streamsInFileOrder.length);
+
+        // For each Stream, starting from the last one, store the information
+        // from the Stream Footer and the Index field itself. The Index field
+        // has its own CRC32 and is validated by IndexDecoder when loading.
+        for (int i = streamsInFileOrder.length - 1; i >= 0; --i) {
+            IndexDecoder index = streamsInFileOrder[i];
+            outData.writeByte(index.getStreamFlags().checkType);
+            outData.writeLong(index.getIndexSize());
+            outData.writeLong(index.getStreamPadding());
+            index.encode(outData);
+        }
+
+        outData.flush();
+        outData.writeInt((int)crc32.getValue());
+        outData.flush();
+    }
+
+    /**
+     * Loads Indexes that have been saved with <code>writeTo</code>.
+     * Exactly as many bytes are read from <code>in</code> as
+     * <code>writeTo</code> wrote.
+     *
+     * @param       in          input stream to read the saved Indexes from
+     *
+     * @param       memoryLimit memory usage limit in kibibytes (KiB)
+     *                          or <code>-1</code> to impose no
+     *                          memory usage limit
+     *
+     * @throws      CorruptedInputException
+     *                          the saved data is corrupt or isn't
+     *                          a saved <code>SeekableXZIndex</code>
+     *
+     * @throws      UnsupportedOptionsException
+     *                          the Indexes specify options not
+     *                          supported by this implementation
+     *
+     * @throws      MemoryLimitException
+     *                          the Indexes would need more memory
+     *                          than allowed by the memory usage limit
+     *
+     * @throws      IOException may be thrown by <code>in</code>
+     */
+    public static SeekableXZIndex readFrom(InputStream in, int memoryLimit)
+            throws IOException {
+        java.util.zip.CRC32 crc32 = new java.util.zip.CRC32();
+        CountingSeekableInputStream inCounting
+                = new CountingSeekableInputStream(
+                        new CheckedInputStream(in, crc32));
+        DataInputStream inData = new DataInputStream(inCounting);
+
+        try {
+            byte[] buf = new byte[MAGIC.length];
+            inData.readFully(buf);
+            if (!Arrays.equals(buf, MAGIC))
+                throw new CorruptedInputException(
+                        "Not a saved SeekableXZIndex");
+
+            long fileSize = inData.readLong();
+            int streamCount = inData.readInt();
+            if (fileSize < 0 || (fileSize & 3) != 0 || streamCount <= 0)
+                throw new CorruptedInputException(
+                        "Saved SeekableXZIndex is corrupt");
+
+            ArrayList streams = new ArrayList();
+            int indexMemoryUsage = 0;
+
+            for (int i = 0; i < streamCount; ++i) {
+                StreamFlags streamFlags = new StreamFlags();
+                streamFlags.checkType = inData.readUnsignedByte();
+                streamFlags.backwardSize = inData.readLong();
+                long streamPadding = inData.readLong();
+
+                if (streamFlags.backwardSize < 4
+                        || streamFlags.backwardSize > Util.BACKWARD_SIZE_MAX
+                        || streamPadding < 0 || (streamPadding & 3) != 0)
+                    throw new CorruptedInputException(
+                            "Saved SeekableXZIndex is corrupt");
+
+                IndexDecoder index;
+                try {
+                    index = new IndexDecoder(inCounting, streamFlags,
+                                             streamPadding, memoryLimit);
+                } catch (MemoryLimitException e) {
+                    assert memoryLimit >= 0;
+                    throw new MemoryLimitException(
+                            e.getMemoryNeeded() + indexMemoryUsage,
+                            memoryLimit + indexMemoryUsage);
+                }
+
+                indexMemoryUsage += index.getMemoryUsage();
+                if (memoryLimit >= 0) {
+                    memoryLimit -= index.getMemoryUsage();
+                    assert memoryLimit >= 0;
+                }
+
+                streams.add(index);
+            }
+
+            long value = crc32.getValue();
+            if (inData.readInt() != (int)value)
+                throw new CorruptedInputException(
+                        "Saved SeekableXZIndex is corrupt");
+
+            return new SeekableXZIndex(fileSize, streams);
+        } catch (EOFException e) {
+            throw new CorruptedInputException(
+                    "Saved SeekableXZIndex is truncated");
+        }
+    }
+
+    /**
+     * Wraps an <code>InputStream</code> so that it can be given to
+     * <code>IndexDecoder</code>, which only needs to know the current
+     * position. Seeking isn't supported.
+     */
+    private static class CountingSeekableInputStream
+            extends SeekableInputStream {
+        private final InputStream in;
+        private long pos = 0;
+
+        CountingSeekableInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        public int read() throws IOException {
+            int ret = in.read();
+            if (ret != -1)
+                ++pos;
+
+            return ret;
+        }
+
+        public int read(byte[] buf, int off, int len) throws IOException {
+            int ret = in.read(buf, off, len);
+            if (ret > 0)
+                pos += ret;
+
+            return ret;
+        }
+
+        public long length() {
+            return -1;
+        }
+
+        public long position() {
+            return pos;
+        }
+
+        public void seek(long pos) throws IOException {
+            throw new XZIOException("Seeking is not supported");
+        }
+    }
+}
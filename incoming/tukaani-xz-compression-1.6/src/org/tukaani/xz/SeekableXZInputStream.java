@@ -9,13 +9,13 @@
 
 package org.tukaani.xz;
 
-import java.util.Arrays;
-import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.io.InputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.EOFException;
-import org.tukaani.xz.common.DecoderUtil;
-import org.tukaani.xz.common.StreamFlags;
 import org.tukaani.xz.check.Check;
 import org.tukaani.xz.index.IndexDecoder;
 import org.tukaani.xz.index.BlockInfo;
@@ -28,7 +28,9 @@ import org.tukaani.xz.index.BlockInfo;
  * or more Blocks. Each Stream contains an Index of Streams' Blocks.
  * The Indexes from all Streams are loaded in RAM by a constructor of this
  * class. A typical .xz file has only one Stream, and parsing its Index will
- * need only three or four seeks.
+ * need only three or four seeks. If the same file is opened many times,
+ * the Indexes can be parsed once into a {@link SeekableXZIndex} which
+ * can then be shared by many <code>SeekableXZInputStream</code>s.
  * <p>
  * To make random access possible, the data in a .xz file must be splitted
  * into multiple Blocks of reasonable size. Decompression can only start at
@@ -39,11 +41,10 @@ import org.tukaani.xz.index.BlockInfo;
  * smaller Blocks mean worse compression. So one has to make a compromise
  * between random access speed and compression ratio.
  * <p>
- * Implementation note: This class uses linear search to locate the correct
- * Stream from the data structures in RAM. It was the simplest to implement
- * and should be fine as long as there aren't too many Streams. The correct
- * Block inside a Stream is located using binary search and thus is fast
- * even with a huge number of Blocks.
+ * Implementation note: This class uses binary search to locate the correct
+ * Stream from the data structures in RAM, and then another binary search
+ * to locate the correct Block inside the Stream. Thus seeking is fast even
+ * with a huge number of Streams and Blocks.
  *
  * <h4>Memory usage</h4>
  * <p>
@@ -69,6 +70,22 @@ import org.tukaani.xz.index.BlockInfo;
  * <code>--block-list=SIZES</code> which allows specifying sizes of
  * individual Blocks.
  *
+ * <h4>Multithreaded decompression</h4>
+ * <p>
+ * Since the compressed position and size of every Block are known from
+ * the Indexes, multiple Blocks can be decompressed at the same time.
+ * This is enabled with {@link #setDecoderThreads(int) setDecoderThreads}.
+ * The compressed data of the next few Blocks is then read from the
+ * underlying stream and decompressed ahead of the current read position
+ * by worker threads. The decompressed data is kept in RAM until it
+ * has been read, so this needs a lot more memory than sequential
+ * decompression: each thread needs a decoder whose memory usage is
+ * limited by the memory usage limit, plus the compressed and
+ * uncompressed data of one Block. The Blocks being decompressed ahead
+ * of time are counted against the memory usage limit too. A Block that
+ * doesn't fit within the limit by itself is decompressed in the calling
+ * thread the same way as without worker threads.
+ *
  * @see SeekableFileInputStream
  * @see XZInputStream
  * @see XZOutputStream
@@ -90,34 +107,33 @@ public class SeekableXZInputStream extends SeekableInputStream {
      * <code>memoryLimit + indexMemoryUsage</code> equals the original
      * memory usage limit that was passed to the constructor.
      */
-    private int indexMemoryUsage = 0;
+    private final int indexMemoryUsage;
 
     /**
-     * List of IndexDecoders, one for each Stream in the file.
-     * The list is in reverse order: The first element is
-     * the last Stream in the file.
+     * The parsed Indexes of all Streams in the file. This may be shared
+     * with other instances.
      */
-    private final ArrayList streams = new ArrayList();
+    private final SeekableXZIndex xzIndex;
 
     /**
      * Bitmask of all Check IDs seen.
      */
-    private int checkTypes = 0;
+    private final int checkTypes;
 
     /**
      * Uncompressed size of the file (all Streams).
      */
-    private long uncompressedSize = 0;
+    private final long uncompressedSize;
 
     /**
      * Uncompressed size of the largest XZ Block in the file.
      */
-    private long largestBlockSize = 0;
+    private final long largestBlockSize;
 
     /**
      * Number of XZ Blocks in the file.
      */
-    private int blockCount = 0;
+    private final int blockCount;
 
     /**
      * Size and position information about the current Block.
@@ -143,9 +159,67 @@ public class SeekableXZInputStream extends SeekableInputStream {
     private final boolean verifyCheck;
 
     /**
-     * Decoder of the current XZ Block, if any.
+     * Cache for the big arrays of the Block decoders.
+     */
+    private final ArrayCache arrayCache;
+
+    /**
+     * Decoder of the current XZ Block, if any. When the Block has been
+     * decompressed by a worker thread, this reads the decompressed
+     * data from RAM.
+     */
+    private InputStream blockDecoder = null;
+
+    /**
+     * Cache of decompressed Blocks, or <code>null</code> if Blocks
+     * aren't cached.
+     */
+    private BlockCache blockCache = null;
+
+    /**
+     * Receives statistics about the decompressed Blocks, or
+     * <code>null</code> if statistics aren't collected.
+     */
+    private XZStatsListener statsListener = null;
+
+    /**
+     * How many bytes a worker thread decompresses at a time. It checks
+     * between the pieces whether its Block has been thrown away.
+     */
+    private static final int DECODE_CHUNK_SIZE = 64 << 10;
+
+    /**
+     * Worker threads decompressing Blocks ahead of the current position,
+     * or <code>null</code> if multithreaded decompression is disabled.
+     */
+    private WorkerPool decoderThreads = null;
+
+    /**
+     * Maximum number of Blocks to decompress ahead of time. This equals
+     * the number of worker threads.
+     */
+    private int readAheadLimit = 0;
+
+    /**
+     * Blocks that have been given to the worker threads in the order
+     * of their Block numbers.
+     */
+    private final LinkedList readAhead = new LinkedList();
+
+    /**
+     * Jobs that were thrown away after seeking but may still be running.
+     * Their memory usage is counted against the limit until they have
+     * finished.
+     */
+    private final LinkedList cancelledJobs = new LinkedList();
+
+    /**
+     * False if the position of <code>in</code> isn't at the beginning of
+     * the next Block, for example, after seeking or after reading
+     * compressed data for the worker threads. A sequential Block decoder
+     * then needs to seek before it can start.
      */
-    private BlockInputStream blockDecoder = null;
+    private boolean inPosValid = false;
 
     /**
      * Current uncompressed position.
@@ -175,10 +249,21 @@ public class SeekableXZInputStream extends SeekableInputStream {
     private IOException exception = null;
 
     /**
-     * Temporary buffer for read(). This avoids reallocating memory
-     * on every read() call.
+     * How many bytes <code>read()</code> decompresses at a time.
+     * Decompressing one byte per call would go through the Block decoder
+     * and the filter chain for every byte. The buffer is small enough
+     * that decompressing ahead doesn't waste much time if the application
+     * seeks soon after reading a few bytes.
      */
-    private final byte[] tempBuf = new byte[1];
+    private static final int LOOKAHEAD_SIZE = 8 << 10;
+
+    /**
+     * Data decompressed ahead by <code>read()</code>. The buffer is
+     * allocated on the first call to <code>read()</code>.
+     */
+    private byte[] lookBuf = null;
+    private int lookPos = 0;
+    private int lookSize = 0;
 
     /**
      * Creates a new seekable XZ decompressor without a memory usage limit.
@@ -305,151 +390,163 @@ public class SeekableXZInputStream extends SeekableInputStream {
     public SeekableXZInputStream(SeekableInputStream in, int memoryLimit,
                                  boolean verifyCheck)
             throws IOException {
-        this.verifyCheck = verifyCheck;
-        this.in = in;
-        DataInputStream inData = new DataInputStream(in);
-
-        // Check the magic bytes in the beginning of the file.
-        {
-            in.seek(0);
-            byte[] buf = new byte[XZ.HEADER_MAGIC.length];
-            inData.readFully(buf);
-            if (!Arrays.equals(buf, XZ.HEADER_MAGIC))
-                throw new XZFormatException();
-        }
-
-        // Get the file size and verify that it is a multiple of 4 bytes.
-        long pos = in.length();
-        if ((pos & 3) != 0)
-            throw new CorruptedInputException(
-                    "XZ file size is not a multiple of 4 bytes");
-
-        // Parse the headers starting from the end of the file.
-        byte[] buf = new byte[DecoderUtil.STREAM_HEADER_SIZE];
-        long streamPadding = 0;
-
-        while (pos > 0) {
-            if (pos < DecoderUtil.STREAM_HEADER_SIZE)
-                throw new CorruptedInputException();
-
-            // Read the potential Stream Footer.
-            in.seek(pos - DecoderUtil.STREAM_HEADER_SIZE);
-            inData.readFully(buf);
-
-            // Skip Stream Padding four bytes at a time.
-            // Skipping more at once would be faster,
-            // but usually there isn't much Stream Padding.
-            if (buf[8] == 0x00 && buf[9] == 0x00 && buf[10] == 0x00
-                    && buf[11] == 0x00) {
-                streamPadding += 4;
-                pos -= 4;
-                continue;
-            }
-
-            // It's not Stream Padding. Update pos.
-            pos -= DecoderUtil.STREAM_HEADER_SIZE;
-
-            // Decode the Stream Footer and check if Backward Size
-            // looks reasonable.
-            StreamFlags streamFooter = DecoderUtil.decodeStreamFooter(buf);
-            if (streamFooter.backwardSize >= pos)
-                throw new CorruptedInputException(
-                        "Backward Size in XZ Stream Footer is too big");
-
-            // Check that the Check ID is supported. Store it in case this
-            // is the first Stream in the file.
-            check = Check.getInstance(streamFooter.checkType);
+        this(in, memoryLimit, verifyCheck, ArrayCache.getDefaultCache());
+    }
 
-            // Remember which Check IDs have been seen.
-            checkTypes |= 1 << streamFooter.checkType;
+    /**
+     * Creates a new seekable XZ decomporessor with an optional
+     * memory usage limit, ability to disable verification
+     * of integrity checks, and a custom array cache.
+     * <p>
+     * This is identical to
+     * <code>SeekableXZInputStream(SeekableInputStream,int,boolean)</code>
+     * except that this takes also the <code>arrayCache</code> argument.
+     * The array cache is also used by the worker threads enabled with
+     * {@link #setDecoderThreads(int)}, so it must be thread safe if
+     * multithreaded decompression is used.
+     *
+     * @param       in          seekable input stream containing one or more
+     *                          XZ Streams; the whole input stream is used
+     *
+     * @param       memoryLimit memory usage limit in kibibytes (KiB)
+     *                          or <code>-1</code> to impose no
+     *                          memory usage limit
+     *
+     * @param       verifyCheck if <code>true</code>, the integrity checks
+     *                          will be verified; this should almost never
+     *                          be set to <code>false</code>
+     *
+     * @param       arrayCache  cache to be used for allocating large arrays
+     *
+     * @throws      XZFormatException
+     *                          input is not in the XZ format
+     *
+     * @throws      CorruptedInputException
+     *                          XZ data is corrupt or truncated
+     *
+     * @throws      UnsupportedOptionsException
+     *                          XZ headers seem valid but they specify
+     *                          options not supported by this implementation
+     *
+     * @throws      MemoryLimitException
+     *                          decoded XZ Indexes would need more memory
+     *                          than allowed by the memory usage limit
+     *
+     * @throws      EOFException
+     *                          less than 6 bytes of input was available
+     *                          from <code>in</code>, or (unlikely) the size
+     *                          of the underlying stream got smaller while
+     *                          this was reading from it
+     *
+     * @throws      IOException may be thrown by <code>in</code>
+     *
+     * @since 1.7
+     */
+    public SeekableXZInputStream(SeekableInputStream in, int memoryLimit,
+                                 boolean verifyCheck, ArrayCache arrayCache)
+            throws IOException {
+        this(in, new SeekableXZIndex(in, memoryLimit), memoryLimit,
+             verifyCheck, arrayCache);
+    }
 
-            // Seek to the beginning of the Index.
-            in.seek(pos - streamFooter.backwardSize);
+    /**
+     * Creates a new seekable XZ decompressor using Indexes that have
+     * already been parsed. Nothing is read from <code>in</code> until
+     * decompression is started, so this is very fast.
+     *
+     * @param       in          seekable input stream containing the same
+     *                          .xz file that was used to create
+     *                          <code>index</code>
+     *
+     * @param       index       parsed Indexes of the file
+     *
+     * @throws      XZIOException
+     *                          the size of <code>in</code> doesn't match
+     *                          <code>index</code>
+     *
+     * @throws      IOException may be thrown by <code>in</code>
+     *
+     * @since 1.7
+     */
+    public SeekableXZInputStream(SeekableInputStream in,
+                                 SeekableXZIndex index)
+            throws IOException {
+        this(in, index, -1, true, ArrayCache.getDefaultCache());
+    }
 
-            // Decode the Index field.
-            IndexDecoder index;
-            try {
-                index = new IndexDecoder(in, streamFooter, streamPadding,
-                                         memoryLimit);
-            } catch (MemoryLimitException e) {
-                // IndexDecoder doesn't know how much memory we had
-                // already needed so we need to recreate the exception.
-                assert memoryLimit >= 0;
-                throw new MemoryLimitException(
-                        e.getMemoryNeeded() + indexMemoryUsage,
-                        memoryLimit + indexMemoryUsage);
-            }
+    /**
+     * Creates a new seekable XZ decompressor using Indexes that have
+     * already been parsed, with an optional memory usage limit,
+     * optional integrity check verification, and a custom array cache.
+     * <p>
+     * The memory usage of <code>index</code> is included in
+     * the memory usage limit like with the other constructors,
+     * even though <code>index</code> may be shared.
+     *
+     * @param       in          seekable input stream containing the same
+     *                          .xz file that was used to create
+     *                          <code>index</code>
+     *
+     * @param       index       parsed Indexes of the file
+     *
+     * @param       memoryLimit memory usage limit in kibibytes (KiB)
+     *                          or <code>-1</code> to impose no
+     *                          memory usage limit
+     *
+     * @param       verifyCheck if <code>true</code>, the integrity checks
+     *                          will be verified; this should almost never
+     *                          be set to <code>false</code>
+     *
+     * @param       arrayCache  cache to be used for allocating large arrays
+     *
+     * @throws      MemoryLimitException
+     *                          <code>index</code> needs more memory
+     *                          than allowed by the memory usage limit
+     *
+     * @throws      XZIOException
+     *                          the size of <code>in</code> doesn't match
+     *                          <code>index</code>
+     *
+     * @throws      IOException may be thrown by <code>in</code>
+     *
+     * @since 1.7
+     */
+    public SeekableXZInputStream(SeekableInputStream in,
+                                 SeekableXZIndex index, int memoryLimit,
+                                 boolean verifyCheck, ArrayCache arrayCache)
+            throws IOException {
+        if (in.length() != index.fileSize)
+            throw new XZIOException(
+                    "SeekableXZIndex doesn't match the input file size");
 
-            // Update the memory usage and limit counters.
-            indexMemoryUsage += index.getMemoryUsage();
-            if (memoryLimit >= 0) {
-                memoryLimit -= index.getMemoryUsage();
-                assert memoryLimit >= 0;
-            }
+        indexMemoryUsage = index.memoryUsage;
+        if (memoryLimit >= 0) {
+            if (indexMemoryUsage > memoryLimit)
+                throw new MemoryLimitException(indexMemoryUsage,
+                                               memoryLimit);
 
-            // Remember the uncompressed size of the largest Block.
-            if (largestBlockSize < index.getLargestBlockSize())
-                largestBlockSize = index.getLargestBlockSize();
-
-            // Calculate the offset to the beginning of this XZ Stream and
-            // check that it looks sane.
-            long off = index.getStreamSize() - DecoderUtil.STREAM_HEADER_SIZE;
-            if (pos < off)
-                throw new CorruptedInputException("XZ Index indicates "
-                        + "too big compressed size for the XZ Stream");
-
-            // Seek to the beginning of this Stream.
-            pos -= off;
-            in.seek(pos);
-
-            // Decode the Stream Header.
-            inData.readFully(buf);
-            StreamFlags streamHeader = DecoderUtil.decodeStreamHeader(buf);
-
-            // Verify that the Stream Header matches the Stream Footer.
-            if (!DecoderUtil.areStreamFlagsEqual(streamHeader, streamFooter))
-                throw new CorruptedInputException(
-                        "XZ Stream Footer does not match Stream Header");
-
-            // Update the total uncompressed size of the file and check that
-            // it doesn't overflow.
-            uncompressedSize += index.getUncompressedSize();
-            if (uncompressedSize < 0)
-                throw new UnsupportedOptionsException("XZ file is too big");
-
-            // Update the Block count and check that it fits into an int.
-            blockCount += index.getRecordCount();
-            if (blockCount < 0)
-                throw new UnsupportedOptionsException(
-                        "XZ file has over " + Integer.MAX_VALUE + " Blocks");
-
-            // Add this Stream to the list of Streams.
-            streams.add(index);
-
-            // Reset to be ready to parse the next Stream.
-            streamPadding = 0;
+            memoryLimit -= indexMemoryUsage;
         }
 
-        assert pos == 0;
-
-        // Save it now that indexMemoryUsage has been substracted from it.
+        this.in = in;
         this.memoryLimit = memoryLimit;
+        this.verifyCheck = verifyCheck;
+        this.arrayCache = arrayCache;
 
-        // Store the relative offsets of the Streams. This way we don't
-        // need to recalculate them in this class when seeking; the
-        // IndexDecoder instances will handle them.
-        IndexDecoder prev = (IndexDecoder)streams.get(streams.size() - 1);
-        for (int i = streams.size() - 2; i >= 0; --i) {
-            IndexDecoder cur = (IndexDecoder)streams.get(i);
-            cur.setOffsets(prev);
-            prev = cur;
-        }
+        xzIndex = index;
+        checkTypes = index.checkTypes;
+        uncompressedSize = index.uncompressedSize;
+        largestBlockSize = index.largestBlockSize;
+        blockCount = index.blockCount;
+
+        // Start with the Check of the first Stream.
+        IndexDecoder first = index.getFirstStream();
+        check = Check.getInstance(first.getStreamFlags().checkType);
 
         // Initialize curBlockInfo to point to the first Stream.
         // The blockNumber will be left to -1 so that .hasNext()
         // and .setNext() work to get the first Block when starting
         // to decompress from the beginning of the file.
-        IndexDecoder first = (IndexDecoder)streams.get(streams.size() - 1);
         curBlockInfo = new BlockInfo(first);
 
         // queriedBlockInfo needs to be allocated too. The Stream used for
@@ -499,7 +596,7 @@ public class SeekableXZInputStream extends SeekableInputStream {
      * @since 1.3
      */
     public int getStreamCount() {
-        return streams.size();
+        return xzIndex.getStreamCount();
     }
 
     /**
@@ -602,6 +699,111 @@ public class SeekableXZInputStream extends SeekableInputStream {
         return queriedBlockInfo.blockNumber;
     }
 
+    /**
+     * Sets the number of threads to use for decompressing Blocks ahead of
+     * the current read position. Zero disables multithreaded decompression,
+     * which is the default.
+     * <p>
+     * With <code>n</code> threads, up to <code>n</code> Blocks are
+     * decompressed in the background. Seeking to a position outside those
+     * Blocks throws away the data decompressed ahead of time. Blocks whose
+     * compressed or uncompressed size doesn't fit into a Java array are
+     * always decompressed in the calling thread.
+     * <p>
+     * The compressed and uncompressed data and the decoders of the Blocks
+     * that are being decompressed ahead of time are counted against
+     * the memory usage limit that was given to the constructor, together
+     * with the memory usage of the Indexes. A Block that is thrown away
+     * by seeking stays counted until its worker thread has stopped
+     * decompressing it. Fewer Blocks are decompressed ahead of time
+     * if they wouldn't fit within the limit. A Block that doesn't fit
+     * by itself is decompressed in the calling thread without keeping
+     * it in RAM, like it would be without worker threads.
+     *
+     * @param       threads     number of worker threads, or zero to
+     *                          decompress in the calling thread only
+     *
+     * @throws      IllegalArgumentException
+     *                          <code>threads</code> is negative
+     *
+     * @throws      XZIOException if the stream has been closed
+     *
+     * @since 1.7
+     */
+    public void setDecoderThreads(int threads) throws XZIOException {
+        if (in == null)
+            throw new XZIOException("Stream closed");
+
+        if (threads < 0)
+            throw new IllegalArgumentException(
+                    "Thread count must not be negative: " + threads);
+
+        stopDecoderThreads();
+
+        if (threads > 0)
+            decoderThreads = new WorkerPool("XZ decoder", threads);
+
+        readAheadLimit = threads;
+    }
+
+    /**
+     * Sets the cache to use for decompressed Blocks. Once a Block has been
+     * decompressed, reading or seeking within it again is served from
+     * the cache without decompressing the Block again. With a cache, a
+     * Block is always decompressed completely even if only a part of it
+     * is read. Passing <code>null</code> disables caching, which is
+     * the default.
+     * <p>
+     * A Block is decompressed completely only if its compressed and
+     * uncompressed data, its decoder, and the Indexes fit within
+     * the memory usage limit that was given to the constructor. Bigger
+     * Blocks are decompressed without caching them. The memory used by
+     * the cache itself isn't counted against the limit; it is controlled
+     * by the cache.
+     * <p>
+     * The same cache may be used by other <code>SeekableXZInputStream</code>s
+     * that read the same file.
+     *
+     * @param       blockCache  cache for decompressed Blocks,
+     *                          or <code>null</code>
+     *
+     * @throws      IllegalArgumentException
+     *                          <code>blockCache</code> has already been used
+     *                          with a different file
+     *
+     * @throws      XZIOException if the stream has been closed
+     *
+     * @since 1.7
+     */
+    public void setBlockCache(BlockCache blockCache) throws XZIOException {
+        if (in == null)
+            throw new XZIOException("Stream closed");
+
+        if (blockCache != null)
+            blockCache.attach(uncompressedSize, blockCount);
+
+        this.blockCache = blockCache;
+    }
+
+    /**
+     * Sets a listener that receives statistics about the decompressed
+     * XZ Blocks. Passing <code>null</code> disables collecting
+     * statistics, which is the default.
+     * <p>
+     * If this is called in the middle of a Block, that Block isn't
+     * reported. Blocks that are read from a {@link BlockCache} aren't
+     * reported either because they aren't decompressed again.
+     *
+     * @param       statsListener
+     *                          listener to receive the statistics,
+     *                          or <code>null</code>
+     *
+     * @since 1.7
+     */
+    public void setStatsListener(XZStatsListener statsListener) {
+        this.statsListener = statsListener;
+    }
+
     /**
      * Decompresses the next byte from this input stream.
      *
@@ -617,7 +819,19 @@ public class SeekableXZInputStream extends SeekableInputStream {
      * @throws      IOException may be thrown by <code>in</code>
      */
     public int read() throws IOException {
-        return read(tempBuf, 0, 1) == -1 ? -1 : (tempBuf[0] & 0xFF);
+        if (lookPos == lookSize) {
+            if (lookBuf == null)
+                lookBuf = new byte[LOOKAHEAD_SIZE];
+
+            int ret = decompress(lookBuf, 0, LOOKAHEAD_SIZE);
+            if (ret == -1)
+                return -1;
+
+            lookPos = 0;
+            lookSize = ret;
+        }
+
+        return lookBuf[lookPos++] & 0xFF;
     }
 
     /**
@@ -658,12 +872,45 @@ public class SeekableXZInputStream extends SeekableInputStream {
         if (len == 0)
             return 0;
 
+        if (lookPos == lookSize)
+            return decompress(buf, off, len);
+
+        // Use the data decompressed ahead by read() first.
+        int size = Math.min(len, lookSize - lookPos);
+        System.arraycopy(lookBuf, lookPos, buf, off, size);
+        lookPos += size;
+
+        if (size < len) {
+            try {
+                int ret = decompress(buf, off + size, len - size);
+                if (ret > 0)
+                    size += ret;
+            } catch (IOException e) {
+                // The exception has been stored and it will be thrown
+                // by the next call.
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Decompresses into an array of bytes without looking at the data
+     * decompressed ahead by <code>read()</code>.
+     */
+    private int decompress(byte[] buf, int off, int len) throws IOException {
         if (in == null)
             throw new XZIOException("Stream closed");
 
         if (exception != null)
             throw exception;
 
+        // The lookahead buffer is empty when this is called. Forget its
+        // old contents so that seek(long) won't think they still end
+        // at curPos.
+        lookPos = 0;
+        lookSize = 0;
+
         int size = 0;
 
         try {
@@ -677,7 +924,7 @@ public class SeekableXZInputStream extends SeekableInputStream {
                 if (blockDecoder == null) {
                     seek();
                     if (endReached)
-                        break;
+                        return size == 0 ? -1 : size;
                 }
 
                 int ret = blockDecoder.read(buf, off, len);
@@ -724,10 +971,15 @@ public class SeekableXZInputStream extends SeekableInputStream {
         if (exception != null)
             throw exception;
 
-        if (endReached || seekNeeded || blockDecoder == null)
+        if (seekNeeded)
             return 0;
 
-        return blockDecoder.available();
+        int size = lookSize - lookPos;
+
+        if (!endReached && blockDecoder != null)
+            size += blockDecoder.available();
+
+        return size;
     }
 
     /**
@@ -738,6 +990,13 @@ public class SeekableXZInputStream extends SeekableInputStream {
      */
     public void close() throws IOException {
         if (in != null) {
+            lookBuf = null;
+            lookPos = 0;
+            lookSize = 0;
+
+            stopDecoderThreads();
+            closeBlockDecoder();
+
             try {
                 in.close();
             } finally {
@@ -763,7 +1022,7 @@ public class SeekableXZInputStream extends SeekableInputStream {
         if (in == null)
             throw new XZIOException("Stream closed");
 
-        return seekNeeded ? seekPos : curPos;
+        return seekNeeded ? seekPos : curPos - (lookSize - lookPos);
     }
 
     /**
@@ -789,8 +1048,18 @@ public class SeekableXZInputStream extends SeekableInputStream {
         if (pos < 0)
             throw new XZIOException("Negative seek position: " + pos);
 
+        // Seeking within the data decompressed ahead by read() only
+        // needs to move the position in the lookahead buffer.
+        long lookStart = curPos - lookSize;
+        if (!seekNeeded && lookSize > 0 && pos >= lookStart && pos <= curPos) {
+            lookPos = (int)(pos - lookStart);
+            return;
+        }
+
         seekPos = pos;
         seekNeeded = true;
+        lookPos = 0;
+        lookSize = 0;
     }
 
     /**
@@ -815,6 +1084,8 @@ public class SeekableXZInputStream extends SeekableInputStream {
         // seek(), we need to find the Block number based on seekPos.
         seekPos = getBlockPos(blockNumber);
         seekNeeded = true;
+        lookPos = 0;
+        lookSize = 0;
     }
 
     /**
@@ -840,7 +1111,7 @@ public class SeekableXZInputStream extends SeekableInputStream {
         // Check if we are seeking to or past the end of the file.
         if (seekPos >= uncompressedSize) {
             curPos = seekPos;
-            blockDecoder = null;
+            closeBlockDecoder();
             endReached = true;
             return;
         }
@@ -861,8 +1132,9 @@ public class SeekableXZInputStream extends SeekableInputStream {
         // yet. (Decoding of a Block won't be started until at least one
         // byte will also be read from it.)
         if (!(curPos > curBlockInfo.uncompressedOffset && curPos <= seekPos)) {
-            // Seek to the beginning of the Block.
-            in.seek(curBlockInfo.compressedOffset);
+            // Seek to the beginning of the Block when the Block really
+            // needs to be decompressed from the underlying stream.
+            inPosValid = false;
 
             // Since it is possible that this Block is from a different
             // Stream than the previous Block, initialize a new Check.
@@ -896,12 +1168,7 @@ public class SeekableXZInputStream extends SeekableInputStream {
                     "Invalid uncompressed position: " + pos);
 
         // Locate the Stream that contains the target position.
-        IndexDecoder index;
-        for (int i = 0; ; ++i) {
-            index = (IndexDecoder)streams.get(i);
-            if (index.hasUncompressedOffset(pos))
-                break;
-        }
+        IndexDecoder index = xzIndex.getStreamByPos(pos);
 
         // Locate the Block from the Stream that contains the target position.
         index.locateBlock(info, pos);
@@ -928,27 +1195,61 @@ public class SeekableXZInputStream extends SeekableInputStream {
 
         // Search the Stream that contains the given Block and then
         // search the Block from that Stream.
-        for (int i = 0; ; ++i) {
-            IndexDecoder index = (IndexDecoder)streams.get(i);
-            if (index.hasRecord(blockNumber)) {
-                index.setBlockInfo(info, blockNumber);
-                return;
-            }
-        }
+        xzIndex.getStreamByBlockNumber(blockNumber).setBlockInfo(
+                info, blockNumber);
     }
 
     /**
-     * Initializes a new BlockInputStream. This is a helper function for
+     * Initializes a new Block decoder. This is a helper function for
      * <code>seek()</code>.
      */
     private void initBlockDecoder() throws IOException {
         try {
-            // Set it to null first so that GC can collect it if memory
-            // runs tight when initializing a new BlockInputStream.
-            blockDecoder = null;
-            blockDecoder = new BlockInputStream(
+            // Close it first so that its arrays can be reused (or
+            // collected by GC) when initializing a new BlockInputStream.
+            closeBlockDecoder();
+
+            if (canReadAhead(curBlockInfo)) {
+                if (blockCache != null) {
+                    byte[] cached = blockCache.get(curBlockInfo.blockNumber);
+                    if (cached != null) {
+                        // The next Block has to be located again in
+                        // the underlying stream.
+                        inPosValid = false;
+                        blockDecoder = new ByteArrayInputStream(cached);
+                        return;
+                    }
+                }
+
+                if (decoderThreads != null) {
+                    blockDecoder = getDecodedBlock(curBlockInfo.blockNumber);
+                    if (blockDecoder != null)
+                        return;
+                } else if (blockCache != null) {
+                    // Decompress the whole Block in this thread
+                    // so that it can be cached.
+                    BlockDecoderJob job = createJob(curBlockInfo, 0);
+                    if (job != null) {
+                        job.run();
+                        blockCache.put(job.blockNumber, job.uncompressed);
+                        blockDecoder = new ByteArrayInputStream(
+                                job.uncompressed);
+                        return;
+                    }
+                }
+            }
+
+            if (!inPosValid) {
+                in.seek(curBlockInfo.compressedOffset);
+                inPosValid = true;
+            }
+
+            BlockInputStream blockIn = new BlockInputStream(
                     in, check, verifyCheck, memoryLimit,
-                    curBlockInfo.unpaddedSize, curBlockInfo.uncompressedSize);
+                    curBlockInfo.unpaddedSize, curBlockInfo.uncompressedSize,
+                    arrayCache);
+            blockIn.setStatsListener(statsListener);
+            blockDecoder = blockIn;
         } catch (MemoryLimitException e) {
             // BlockInputStream doesn't know how much memory we had
             // already needed so we need to recreate the exception.
@@ -961,4 +1262,310 @@ public class SeekableXZInputStream extends SeekableInputStream {
             throw new CorruptedInputException();
         }
     }
+
+    /**
+     * Closes the current Block decoder, if any, so that it gives its
+     * arrays back to the array cache. This doesn't close <code>in</code>.
+     */
+    private void closeBlockDecoder() throws IOException {
+        if (blockDecoder != null) {
+            blockDecoder.close();
+            blockDecoder = null;
+        }
+    }
+
+    /**
+     * Checks if the given Block can be decompressed into a byte array.
+     * Both the array and the compressed data of the Block must fit within
+     * the memory usage limit because they are kept in RAM at the same time.
+     * The decoder is checked by <code>createJob</code> once the Block
+     * Header has been read.
+     */
+    private boolean canReadAhead(BlockInfo info) {
+        if (info.uncompressedSize > Integer.MAX_VALUE
+                || info.unpaddedSize + 3 > Integer.MAX_VALUE)
+            return false;
+
+        return memoryLimit < 0 || getMemoryUsage(info) <= memoryLimit;
+    }
+
+    /**
+     * Gets approximate memory usage of the compressed and uncompressed
+     * data of the given Block as kibibytes. The memory usage of
+     * the decoder isn't known before the Block Header has been read.
+     */
+    private static int getMemoryUsage(BlockInfo info) {
+        return (int)((info.uncompressedSize + info.unpaddedSize + 3
+                      + 1023) / 1024);
+    }
+
+    /**
+     * Creates a job to decompress the given Block into a byte array if
+     * the job fits within the memory usage limit together with
+     * <code>memoryUsage</code> kibibytes used by other jobs. This reads
+     * the Block Header to find out the memory usage of the decoder.
+     *
+     * @return      the new job, or <code>null</code> if it doesn't fit
+     */
+    private BlockDecoderJob createJob(BlockInfo info, int memoryUsage)
+            throws IOException {
+        int decoderLimit = -1;
+        if (memoryLimit >= 0) {
+            decoderLimit = memoryLimit - memoryUsage - getMemoryUsage(info);
+            if (decoderLimit < 0)
+                return null;
+        }
+
+        try {
+            return new BlockDecoderJob(info, decoderLimit);
+        } catch (MemoryLimitException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns an input stream that reads the decompressed data of
+     * the given Block. Blocks following it are given to the worker
+     * threads so that they are hopefully ready when they are needed.
+     *
+     * @return      the decompressed data, or <code>null</code> if
+     *              the Block doesn't fit within the memory usage limit
+     *              together with its decoder
+     */
+    private InputStream getDecodedBlock(int blockNumber)
+            throws IOException {
+        // Throw away the Blocks that were decompressed ahead of time but
+        // aren't needed anymore. After a seek, usually none of them
+        // will be needed.
+        while (!readAhead.isEmpty()) {
+            BlockDecoderJob job = (BlockDecoderJob)readAhead.getFirst();
+            if (job.blockNumber == blockNumber)
+                break;
+
+            job.cancelled = true;
+            readAhead.removeFirst();
+            cancelledJobs.addLast(job);
+        }
+
+        // Forget the cancelled jobs that have finished. If the requested
+        // Block has to be started, wait for the rest so that the whole
+        // limit is available for it. The worker threads notice
+        // the cancellation after decompressing at most DECODE_CHUNK_SIZE
+        // bytes.
+        for (Iterator i = cancelledJobs.iterator(); i.hasNext(); ) {
+            BlockDecoderJob job = (BlockDecoderJob)i.next();
+            if (readAhead.isEmpty() && memoryLimit >= 0)
+                decoderThreads.waitUntilDone(job);
+
+            if (decoderThreads.isDone(job))
+                i.remove();
+        }
+
+        int next = readAhead.isEmpty()
+                   ? blockNumber
+                   : ((BlockDecoderJob)readAhead.getLast()).blockNumber + 1;
+
+        // The Blocks decompressed ahead of time are all in RAM at
+        // the same time, so together they must fit within the limit.
+        int memoryUsage = 0;
+        for (Iterator i = readAhead.iterator(); i.hasNext(); )
+            memoryUsage += ((BlockDecoderJob)i.next()).memoryUsage;
+
+        for (Iterator i = cancelledJobs.iterator(); i.hasNext(); )
+            memoryUsage += ((BlockDecoderJob)i.next()).memoryUsage;
+
+        while (readAhead.size() < readAheadLimit && next < blockCount) {
+            BlockInfo info = new BlockInfo(xzIndex.getFirstStream());
+            locateBlockByNumber(info, next);
+            if (!canReadAhead(info))
+                break;
+
+            BlockDecoderJob job;
+            try {
+                job = createJob(info, memoryUsage);
+            } catch (IOException e) {
+                // A Block after the requested one is corrupt. Let
+                // the error be thrown when that Block is read.
+                if (readAhead.isEmpty())
+                    throw e;
+
+                break;
+            }
+
+            if (job == null)
+                break;
+
+            memoryUsage += job.memoryUsage;
+            readAhead.addLast(job);
+            decoderThreads.submit(job);
+            ++next;
+        }
+
+        if (readAhead.isEmpty())
+            return null;
+
+        BlockDecoderJob job = (BlockDecoderJob)readAhead.removeFirst();
+        assert job.blockNumber == blockNumber;
+
+        decoderThreads.waitFor(job);
+
+        if (blockCache != null)
+            blockCache.put(job.blockNumber, job.uncompressed);
+
+        return new ByteArrayInputStream(job.uncompressed);
+    }
+
+    private void stopDecoderThreads() {
+        if (decoderThreads != null) {
+            decoderThreads.stop();
+            decoderThreads = null;
+        }
+
+        // The jobs that are running stop soon. The new worker threads
+        // won't wait for them.
+        for (Iterator i = readAhead.iterator(); i.hasNext(); )
+            ((BlockDecoderJob)i.next()).cancelled = true;
+
+        for (Iterator i = cancelledJobs.iterator(); i.hasNext(); )
+            ((BlockDecoderJob)i.next()).cancelled = true;
+
+        readAhead.clear();
+        cancelledJobs.clear();
+
+        // The current Block may have been decompressed by a worker thread.
+        // It can still be read normally, but the next Block has to be
+        // located in the underlying stream again.
+        inPosValid = false;
+    }
+
+    /**
+     * A Block to be decompressed by a worker thread. The Block Header
+     * and the compressed data are read from <code>in</code> by the thread
+     * that creates the job so that the worker threads don't need to
+     * access <code>in</code> at all. As an exception, the compressed data
+     * of a memory-mapped file is read by the worker thread because it
+     * supports reading from an absolute position without locking.
+     */
+    private class BlockDecoderJob extends WorkerPool.Job {
+        final int blockNumber;
+
+        /**
+         * Memory usage of the compressed and uncompressed data and
+         * the decoder as kibibytes.
+         */
+        final int memoryUsage;
+
+        private final long uncompressedSize;
+        private final long compressedOffset;
+        private final MappedSeekableInputStream mapped;
+        private final byte[] compressed;
+        private final int headerSize;
+        private final BlockInputStream blockIn;
+        byte[] uncompressed = null;
+        volatile boolean cancelled = false;
+
+        /**
+         * Reads the Block Header and checks that the decoder fits within
+         * <code>decoderLimit</code> kibibytes. The big arrays of
+         * the decoder aren't allocated until the job is run.
+         *
+         * @throws      MemoryLimitException
+         *                          the decoder doesn't fit
+         *                          within <code>decoderLimit</code>
+         */
+        BlockDecoderJob(BlockInfo info, int decoderLimit) throws IOException {
+            blockNumber = info.blockNumber;
+            uncompressedSize = info.uncompressedSize;
+            compressedOffset = info.compressedOffset;
+            compressed = new byte[(int)((info.unpaddedSize + 3) & ~3)];
+
+            DataInputStream inData = null;
+            if (in instanceof MappedSeekableInputStream) {
+                mapped = (MappedSeekableInputStream)in;
+            } else {
+                mapped = null;
+                inPosValid = false;
+                in.seek(compressedOffset);
+                inData = new DataInputStream(in);
+            }
+
+            readCompressed(inData, 0, 1);
+            headerSize = 4 * ((compressed[0] & 0xFF) + 1);
+            if (headerSize > compressed.length)
+                throw new CorruptedInputException();
+
+            readCompressed(inData, 1, headerSize - 1);
+
+            // The decoder reads the rest of the array only when
+            // the job is run, so with a memory-mapped file it can be
+            // filled by the worker thread.
+            try {
+                blockIn = new BlockInputStream(
+                        new ByteArrayInputStream(compressed),
+                        Check.getInstance(info.getCheckType()), verifyCheck,
+                        decoderLimit, info.unpaddedSize, uncompressedSize,
+                        arrayCache);
+            } catch (IndexIndicatorException e) {
+                throw new CorruptedInputException();
+            }
+
+            // The listener field of the outer class may be changed while
+            // this job is running in another thread.
+            blockIn.setStatsListener(
+                    SeekableXZInputStream.this.statsListener);
+
+            memoryUsage = getMemoryUsage(info) + blockIn.getMemoryUsage();
+
+            if (mapped == null)
+                readCompressed(inData, headerSize,
+                               compressed.length - headerSize);
+        }
+
+        /**
+         * Reads compressed data into <code>compressed</code> from
+         * <code>inData</code> or from the memory-mapped file.
+         */
+        private void readCompressed(DataInputStream inData, int off, int len)
+                throws IOException {
+            if (mapped == null)
+                inData.readFully(compressed, off, len);
+            else if (mapped.read(compressedOffset + off, compressed, off, len)
+                    != len)
+                throw new EOFException();
+        }
+
+        void run() throws IOException {
+            if (cancelled)
+                return;
+
+            if (mapped != null)
+                readCompressed(null, headerSize,
+                               compressed.length - headerSize);
+
+            byte[] buf = new byte[(int)uncompressedSize];
+
+            try {
+                int pos = 0;
+                while (pos < buf.length) {
+                    if (cancelled)
+                        return;
+
+                    int ret = blockIn.read(buf, pos, Math.min(
+                            buf.length - pos, DECODE_CHUNK_SIZE));
+                    if (ret == -1)
+                        throw new CorruptedInputException();
+
+                    pos += ret;
+                }
+
+                // Let BlockInputStream validate the end of the Block.
+                if (blockIn.read() != -1)
+                    throw new CorruptedInputException();
+            } finally {
+                blockIn.close();
+            }
+
+            uncompressed = buf;
+        }
+    }
 }
@@ -45,12 +45,23 @@ public class SingleXZInputStream extends InputStream {
     private final StreamFlags streamHeaderFlags;
     private final Check check;
     private final boolean verifyCheck;
+    private final ArrayCache arrayCache;
     private BlockInputStream blockDecoder = null;
     private final IndexHash indexHash = new IndexHash();
     private boolean endReached = false;
     private IOException exception = null;
+    private XZStatsListener statsListener = null;
 
-    private final byte[] tempBuf = new byte[1];
+    private static final int LOOKAHEAD_SIZE = 8 << 10;
+
+    /**
+     * Data decompressed ahead by <code>read()</code> or left over from
+     * <code>skip</code>. The buffer is allocated on the first call to
+     * either of them.
+     */
+    private byte[] lookBuf = null;
+    private int lookPos = 0;
+    private int lookSize = 0;
 
     /**
      * Reads the Stream Header into a buffer.
@@ -125,7 +136,7 @@ public class SingleXZInputStream extends InputStream {
      */
     public SingleXZInputStream(InputStream in, int memoryLimit)
             throws IOException {
-        this(in, memoryLimit, true, readStreamHeader(in));
+        this(in, memoryLimit, true);
     }
 
     /**
@@ -182,14 +193,63 @@ public class SingleXZInputStream extends InputStream {
      */
     public SingleXZInputStream(InputStream in, int memoryLimit,
                                boolean verifyCheck) throws IOException {
-        this(in, memoryLimit, verifyCheck, readStreamHeader(in));
+        this(in, memoryLimit, verifyCheck, ArrayCache.getDefaultCache());
+    }
+
+    /**
+     * Creates a new XZ decompressor that decompresses exactly one
+     * XZ Stream from <code>in</code> with an optional memory usage limit,
+     * ability to disable verification of integrity checks, and a custom
+     * array cache.
+     * <p>
+     * This is identical to
+     * <code>SingleXZInputStream(InputStream,int,boolean)</code>
+     * except that this takes also the <code>arrayCache</code> argument.
+     *
+     * @param       in          input stream from which XZ-compressed
+     *                          data is read
+     *
+     * @param       memoryLimit memory usage limit in kibibytes (KiB)
+     *                          or <code>-1</code> to impose no
+     *                          memory usage limit
+     *
+     * @param       verifyCheck if <code>true</code>, the integrity checks
+     *                          will be verified; this should almost never
+     *                          be set to <code>false</code>
+     *
+     * @param       arrayCache  cache to be used for allocating large arrays
+     *
+     * @throws      XZFormatException
+     *                          input is not in the XZ format
+     *
+     * @throws      CorruptedInputException
+     *                          XZ header CRC32 doesn't match
+     *
+     * @throws      UnsupportedOptionsException
+     *                          XZ header is valid but specifies options
+     *                          not supported by this implementation
+     *
+     * @throws      EOFException
+     *                          less than 12 bytes of input was available
+     *                          from <code>in</code>
+     *
+     * @throws      IOException may be thrown by <code>in</code>
+     *
+     * @since 1.7
+     */
+    public SingleXZInputStream(InputStream in, int memoryLimit,
+                               boolean verifyCheck, ArrayCache arrayCache)
+            throws IOException {
+        this(in, memoryLimit, verifyCheck, readStreamHeader(in), arrayCache);
     }
 
     SingleXZInputStream(InputStream in, int memoryLimit, boolean verifyCheck,
-                        byte[] streamHeader) throws IOException {
+                        byte[] streamHeader, ArrayCache arrayCache)
+            throws IOException {
         this.in = in;
         this.memoryLimit = memoryLimit;
         this.verifyCheck = verifyCheck;
+        this.arrayCache = arrayCache;
         streamHeaderFlags = DecoderUtil.decodeStreamHeader(streamHeader);
         check = Check.getInstance(streamHeaderFlags.checkType);
     }
@@ -212,12 +272,29 @@ public class SingleXZInputStream extends InputStream {
         return check.getName();
     }
 
+    /**
+     * Sets a listener that receives statistics about the decompressed
+     * XZ Blocks. Passing <code>null</code> disables collecting
+     * statistics, which is the default.
+     * <p>
+     * If this is called in the middle of a Block, that Block isn't
+     * reported.
+     *
+     * @param       statsListener
+     *                          listener to receive the statistics,
+     *                          or <code>null</code>
+     *
+     * @since 1.7
+     */
+    public void setStatsListener(XZStatsListener statsListener) {
+        this.statsListener = statsListener;
+    }
+
     /**
      * Decompresses the next byte from this input stream.
      * <p>
-     * Reading lots of data with <code>read()</code> from this input stream
-     * may be inefficient. Wrap it in {@link java.io.BufferedInputStream}
-     * if you need to read lots of data one byte at a time.
+     * This decompresses a bigger piece of data at a time into an internal
+     * buffer, so reading lots of data one byte at a time is efficient.
      *
      * @return      the next decompressed byte, or <code>-1</code>
      *              to indicate the end of the compressed stream
@@ -234,7 +311,19 @@ public class SingleXZInputStream extends InputStream {
      * @throws      IOException may be thrown by <code>in</code>
      */
     public int read() throws IOException {
-        return read(tempBuf, 0, 1) == -1 ? -1 : (tempBuf[0] & 0xFF);
+        if (lookPos == lookSize) {
+            if (lookBuf == null)
+                lookBuf = new byte[LOOKAHEAD_SIZE];
+
+            int ret = decompress(lookBuf, 0, LOOKAHEAD_SIZE);
+            if (ret == -1)
+                return -1;
+
+            lookPos = 0;
+            lookSize = ret;
+        }
+
+        return lookBuf[lookPos++] & 0xFF;
     }
 
     /**
@@ -278,6 +367,33 @@ public class SingleXZInputStream extends InputStream {
         if (len == 0)
             return 0;
 
+        if (lookPos == lookSize)
+            return decompress(buf, off, len);
+
+        // Use the data decompressed ahead by read() first.
+        int size = Math.min(len, lookSize - lookPos);
+        System.arraycopy(lookBuf, lookPos, buf, off, size);
+        lookPos += size;
+
+        if (size < len) {
+            try {
+                int ret = decompress(buf, off + size, len - size);
+                if (ret > 0)
+                    size += ret;
+            } catch (IOException e) {
+                // The exception has been stored and it will be thrown
+                // by the next call.
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Decompresses into an array of bytes without looking at the data
+     * decompressed ahead by <code>read()</code>.
+     */
+    private int decompress(byte[] buf, int off, int len) throws IOException {
         if (in == null)
             throw new XZIOException("Stream closed");
 
@@ -291,17 +407,8 @@ public class SingleXZInputStream extends InputStream {
 
         try {
             while (len > 0) {
-                if (blockDecoder == null) {
-                    try {
-                        blockDecoder = new BlockInputStream(
-                                in, check, verifyCheck, memoryLimit, -1, -1);
-                    } catch (IndexIndicatorException e) {
-                        indexHash.validate(in);
-                        validateStreamFooter();
-                        endReached = true;
-                        return size > 0 ? size : -1;
-                    }
-                }
+                if (blockDecoder == null && !nextBlock())
+                    return size > 0 ? size : -1;
 
                 int ret = blockDecoder.read(buf, off, len);
 
@@ -324,6 +431,124 @@ public class SingleXZInputStream extends InputStream {
         return size;
     }
 
+    /**
+     * Skips <code>n</code> bytes of uncompressed data.
+     * <p>
+     * If the integrity check isn't verified, whole Blocks whose
+     * compressed and uncompressed sizes are stored in the Block Header
+     * are skipped without decompressing them. Such Blocks are created,
+     * for example, by the multithreaded compressor in XZ Utils.
+     * Other data is decompressed and thrown away.
+     *
+     * @param       n           number of bytes to skip
+     *
+     * @return      number of bytes skipped, which is less than
+     *              <code>n</code> only if the end of the stream
+     *              was reached or an error was detected after
+     *              skipping some data
+     *
+     * @throws      CorruptedInputException
+     * @throws      UnsupportedOptionsException
+     * @throws      MemoryLimitException
+     *
+     * @throws      XZIOException if the stream has been closed
+     *
+     * @throws      EOFException
+     *                          compressed input is truncated or corrupt
+     *
+     * @throws      IOException may be thrown by <code>in</code>
+     *
+     * @since 1.7
+     */
+    public long skip(long n) throws IOException {
+        if (n <= 0)
+            return 0;
+
+        if (in == null)
+            throw new XZIOException("Stream closed");
+
+        // Skip the data decompressed ahead by read() first.
+        long skipped = Math.min(n, lookSize - lookPos);
+        lookPos += (int)skipped;
+
+        try {
+            if (exception != null)
+                throw exception;
+
+            while (skipped < n && !endReached) {
+                if (blockDecoder == null && !nextBlock())
+                    break;
+
+                if (!verifyCheck) {
+                    long size = blockDecoder.getSkippableSize();
+                    if (size != -1 && size <= n - skipped) {
+                        blockDecoder.skipBlock();
+                        indexHash.add(blockDecoder.getUnpaddedSize(),
+                                      blockDecoder.getUncompressedSize());
+                        blockDecoder = null;
+                        skipped += size;
+                        continue;
+                    }
+                }
+
+                // Decompress only from the current Block so that the next
+                // Block can still be skipped without decompressing it.
+                // What isn't skipped is left in the lookahead buffer.
+                if (lookBuf == null)
+                    lookBuf = new byte[LOOKAHEAD_SIZE];
+
+                int ret = blockDecoder.read(lookBuf, 0, LOOKAHEAD_SIZE);
+
+                if (ret > 0) {
+                    int size = (int)Math.min(ret, n - skipped);
+                    lookPos = size;
+                    lookSize = ret;
+                    skipped += size;
+                } else if (ret == -1) {
+                    indexHash.add(blockDecoder.getUnpaddedSize(),
+                                  blockDecoder.getUncompressedSize());
+                    blockDecoder = null;
+                }
+            }
+        } catch (IOException e) {
+            exception = e;
+            if (skipped == 0)
+                throw e;
+        }
+
+        return skipped;
+    }
+
+    /**
+     * Returns true if the end of the Stream has been reached and
+     * validated, and all data has been read.
+     */
+    boolean isEndReached() {
+        return endReached && lookPos == lookSize;
+    }
+
+    /**
+     * Starts decoding the next Block. If the Index field comes instead,
+     * the Index and the Stream Footer are validated.
+     *
+     * @return      false if the end of the Stream was reached
+     */
+    private boolean nextBlock() throws IOException {
+        try {
+            blockDecoder = new BlockInputStream(in, check, verifyCheck,
+                                                memoryLimit, -1, -1,
+                                                arrayCache);
+        } catch (IndexIndicatorException e) {
+            indexHash.validate(in);
+            validateStreamFooter();
+            endReached = true;
+            return false;
+        }
+
+        blockDecoder.setStatsListener(statsListener);
+        return true;
+    }
+
     private void validateStreamFooter() throws IOException {
         byte[] buf = new byte[DecoderUtil.STREAM_HEADER_SIZE];
         new DataInputStream(in).readFully(buf);
@@ -354,7 +579,8 @@ public class SingleXZInputStream extends InputStream {
         if (exception != null)
             throw exception;
 
-        return blockDecoder == null ? 0 : blockDecoder.available();
+        return lookSize - lookPos
+               + (blockDecoder == null ? 0 : blockDecoder.available());
     }
 
     /**
@@ -365,6 +591,16 @@ public class SingleXZInputStream extends InputStream {
      */
     public void close() throws IOException {
         if (in != null) {
+            lookBuf = null;
+            lookPos = 0;
+            lookSize = 0;
+
+            // Give the arrays of an unfinished Block back to the cache.
+            if (blockDecoder != null) {
+                blockDecoder.close();
+                blockDecoder = null;
+            }
+
             try {
                 in.close();
             } finally {
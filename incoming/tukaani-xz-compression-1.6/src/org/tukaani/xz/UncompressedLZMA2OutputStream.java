@@ -13,11 +13,12 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 
 class UncompressedLZMA2OutputStream extends FinishableOutputStream {
+    private final ArrayCache arrayCache;
+
     private FinishableOutputStream out;
     private final DataOutputStream outData;
 
-    private final byte[] uncompBuf
-            = new byte[LZMA2OutputStream.COMPRESSED_SIZE_MAX];
+    private byte[] uncompBuf;
     private int uncompPos = 0;
     private boolean dictResetNeeded = true;
 
@@ -31,12 +32,17 @@ class UncompressedLZMA2OutputStream extends FinishableOutputStream {
         return 70;
     }
 
-    UncompressedLZMA2OutputStream(FinishableOutputStream out) {
+    UncompressedLZMA2OutputStream(FinishableOutputStream out,
+                                  ArrayCache arrayCache) {
         if (out == null)
             throw new NullPointerException();
 
         this.out = out;
         outData = new DataOutputStream(out);
+
+        this.arrayCache = arrayCache;
+        uncompBuf = arrayCache.getByteArray(
+                LZMA2OutputStream.COMPRESSED_SIZE_MAX, false);
     }
 
     public void write(int b) throws IOException {
@@ -58,6 +64,7 @@ class UncompressedLZMA2OutputStream extends FinishableOutputStream {
             while (len > 0) {
                 int copySize = Math.min(uncompBuf.length - uncompPos, len);
                 System.arraycopy(buf, off, uncompBuf, uncompPos, copySize);
+                off += copySize;
                 len -= copySize;
                 uncompPos += copySize;
 
@@ -94,6 +101,16 @@ class UncompressedLZMA2OutputStream extends FinishableOutputStream {
             exception = e;
             throw e;
         }
+
+        // Everything has been written; the buffer isn't needed anymore.
+        putArraysToCache();
+    }
+
+    private void putArraysToCache() {
+        if (uncompBuf != null) {
+            arrayCache.putArray(uncompBuf);
+            uncompBuf = null;
+        }
     }
 
     public void flush() throws IOException {
@@ -137,6 +154,8 @@ class UncompressedLZMA2OutputStream extends FinishableOutputStream {
                 } catch (IOException e) {}
             }
 
+            putArraysToCache();
+
             try {
                 out.close();
             } catch (IOException e) {
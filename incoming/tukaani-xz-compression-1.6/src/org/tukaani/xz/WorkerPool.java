@@ -0,0 +1,184 @@
+/*
+ * WorkerPool
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+/**
+ * A fixed-size pool of daemon threads that run jobs in FIFO order.
+ * The threads are started when the first job is submitted.
+ * <p>
+ * The pool itself is meant to be used from a single thread. Exceptions
+ * thrown by a job are stored in the job and thrown again from
+ * <code>waitFor</code> in the thread that submitted the job.
+ */
+class WorkerPool {
+    private final String name;
+    private final Worker[] workers;
+
+    /**
+     * Jobs that are waiting for a worker thread. This is also used as
+     * the lock for all state shared with the worker threads.
+     */
+    private final LinkedList queue = new LinkedList();
+
+    private boolean stopped = false;
+
+    WorkerPool(String name, int threads) {
+        this.name = name;
+        workers = new Worker[threads];
+    }
+
+    /**
+     * Queues a job to be run by one of the worker threads.
+     */
+    public void submit(Job job) {
+        synchronized (queue) {
+            if (stopped)
+                throw new IllegalStateException("Worker pool stopped");
+
+            if (workers[0] == null) {
+                for (int i = 0; i < workers.length; ++i) {
+                    workers[i] = new Worker();
+                    workers[i].start();
+                }
+            }
+
+            queue.addLast(job);
+            queue.notify();
+        }
+    }
+
+    /**
+     * Returns true if the given job has finished, successfully or not.
+     */
+    public boolean isDone(Job job) {
+        synchronized (queue) {
+            return job.done;
+        }
+    }
+
+    /**
+     * Waits until the given job has finished. If the job threw
+     * an exception, it is thrown again here.
+     *
+     * @throws      XZIOException
+     *                          the waiting thread was interrupted
+     *
+     * @throws      IOException may be thrown by the job
+     */
+    public void waitFor(Job job) throws IOException {
+        waitUntilDone(job);
+
+        if (job.exception != null)
+            throw job.exception;
+
+        if (job.error instanceof RuntimeException)
+            throw (RuntimeException)job.error;
+
+        if (job.error != null)
+            throw (Error)job.error;
+    }
+
+    /**
+     * Waits until the given job has finished without throwing
+     * the exception of the job.
+     *
+     * @throws      XZIOException
+     *                          the waiting thread was interrupted
+     */
+    public void waitUntilDone(Job job) throws XZIOException {
+        synchronized (queue) {
+            while (!job.done) {
+                try {
+                    queue.wait();
+                } catch (InterruptedException e) {
+                    throw new XZIOException(
+                            "Interrupted while waiting for a worker thread");
+                }
+            }
+        }
+    }
+
+    /**
+     * Discards the jobs that haven't been started yet and lets
+     * the worker threads exit once they have finished their current jobs.
+     * The discarded jobs will never be marked as done.
+     */
+    public void stop() {
+        synchronized (queue) {
+            stopped = true;
+            queue.clear();
+            queue.notifyAll();
+        }
+    }
+
+    /**
+     * Base class for the jobs run by the worker threads.
+     */
+    abstract static class Job {
+        private IOException exception = null;
+        private Throwable error = null;
+        private boolean done = false;
+
+        abstract void run() throws IOException;
+    }
+
+    private class Worker extends Thread {
+        Worker() {
+            super(name);
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (true) {
+                Job job;
+
+                synchronized (queue) {
+                    while (queue.isEmpty() && !stopped) {
+                        try {
+                            queue.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+
+                    if (stopped)
+                        return;
+
+                    job = (Job)queue.removeFirst();
+                }
+
+                IOException exception = null;
+                Throwable error = null;
+
+                // Errors are caught too. Otherwise the thread waiting
+                // for this job would never wake up.
+                try {
+                    job.run();
+                } catch (IOException e) {
+                    exception = e;
+                } catch (RuntimeException e) {
+                    error = e;
+                } catch (Error e) {
+                    error = e;
+                }
+
+                synchronized (queue) {
+                    job.exception = exception;
+                    job.error = error;
+                    job.done = true;
+                    queue.notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * XZEncoder
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz;
+
+import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses into the .xz file format using <code>ByteBuffer</code>s.
+ * <p>
+ * This is a non-blocking alternative to {@link XZOutputStream} for
+ * applications that keep their data in <code>ByteBuffer</code>s, for
+ * example, when using non-blocking channels. Each call consumes as much
+ * input as possible and writes the compressed data directly to
+ * the destination buffer. Output that doesn't fit into the destination
+ * buffer is kept in an internal buffer and written out by the next call.
+ * The encoder never blocks waiting for input or output.
+ * <p>
+ * Heap buffers are read without copying the input. The contents of
+ * direct and read-only buffers have to be copied into the LZ dictionary
+ * buffer of the encoder in any case, so they are copied in small pieces.
+ *
+ * <h4>Typical use with a <code>WritableByteChannel</code></h4>
+ * <p><blockquote><pre>
+ * XZEncoder enc = new XZEncoder(new LZMA2Options());
+ * ByteBuffer src = ByteBuffer.allocateDirect(64 * 1024);
+ * ByteBuffer dst = ByteBuffer.allocateDirect(64 * 1024);
+ *
+ * while (inChannel.read(src) != -1) {
+ *     src.flip();
+ *     enc.encode(src, dst);
+ *     src.compact();
+ *
+ *     dst.flip();
+ *     outChannel.write(dst);
+ *     dst.compact();
+ * }
+ *
+ * // encode stops consuming input when output is pending,
+ * // so the rest of the input may need more than one call.
+ * src.flip();
+ * while (src.hasRemaining()) {
+ *     enc.encode(src, dst);
+ *
+ *     dst.flip();
+ *     outChannel.write(dst);
+ *     dst.compact();
+ * }
+ *
+ * while (true) {
+ *     boolean done = enc.finish(dst);
+ *
+ *     dst.flip();
+ *     outChannel.write(dst);
+ *     dst.compact();
+ *
+ *     if (done)
+ *         break;
+ * }
+ *
+ * enc.close();
+ * </pre></blockquote>
+ *
+ * @since 1.7
+ */
+public class XZEncoder {
+    /**
+     * How much input is given to the compressor at once. The input is
+     * given in pieces so that the amount of pending output stays small
+     * when the destination buffer gets full.
+     */
+    private static final int INPUT_CHUNK_SIZE = 8192;
+
+    private final Sink sink = new Sink();
+    private final XZOutputStream xz;
+
+    /**
+     * Temporary buffer for input from buffers that don't have
+     * an accessible backing array.
+     */
+    private byte[] inBuf = null;
+
+    private long totalIn = 0;
+    private boolean finished = false;
+
+    /**
+     * Receives the compressed data from <code>XZOutputStream</code> and
+     * writes it to the current destination buffer. Whatever doesn't fit
+     * into the destination buffer is stored in a pending buffer.
+     */
+    private static class Sink extends OutputStream {
+        private ByteBuffer dst = null;
+
+        private byte[] pending = new byte[INPUT_CHUNK_SIZE];
+        private int pendingPos = 0;
+        private int pendingSize = 0;
+
+        private long totalOut = 0;
+
+        /**
+         * Copies as much pending data to <code>dst</code> as possible
+         * and sets <code>dst</code> as the destination of the following
+         * writes.
+         */
+        void setDestination(ByteBuffer dst) {
+            this.dst = dst;
+
+            int copySize = Math.min(pendingSize - pendingPos, dst.remaining());
+            dst.put(pending, pendingPos, copySize);
+            pendingPos += copySize;
+            totalOut += copySize;
+
+            if (pendingPos == pendingSize) {
+                pendingPos = 0;
+                pendingSize = 0;
+            }
+        }
+
+        void clearDestination() {
+            dst = null;
+        }
+
+        boolean hasPending() {
+            return pendingSize > 0;
+        }
+
+        void discardPending() {
+            pendingPos = 0;
+            pendingSize = 0;
+        }
+
+        public void write(int b) {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        public void write(byte[] buf, int off, int len) {
+            if (pendingSize == 0 && dst != null) {
+                int copySize = Math.min(len, dst.remaining());
+                dst.put(buf, off, copySize);
+                off += copySize;
+                len -= copySize;
+                totalOut += copySize;
+            }
+
+            if (len > 0) {
+                if (pendingSize + len > pending.length) {
+                    byte[] newPending = new byte[Math.max(
+                            pending.length * 2, pendingSize + len)];
+                    System.arraycopy(pending, 0, newPending, 0, pendingSize);
+                    pending = newPending;
+                }
+
+                System.arraycopy(buf, off, pending, pendingSize, len);
+                pendingSize += len;
+            }
+        }
+    }
+
+    /**
+     * Creates a new XZ encoder using one filter and CRC64 as
+     * the integrity check.
+     *
+     * @param       filterOptions
+     *                          filter options to use
+     *
+     * @throws      UnsupportedOptionsException
+     *                          invalid filter chain
+     */
+    public XZEncoder(FilterOptions filterOptions)
+            throws UnsupportedOptionsException {
+        this(new FilterOptions[] { filterOptions }, XZ.CHECK_CRC64,
+             ArrayCache.getDefaultCache());
+    }
+
+    /**
+     * Creates a new XZ encoder using 1-4 filters, the specified
+     * integrity check type, and a custom array cache.
+     *
+     * @param       filterOptions
+     *                          array of filter options to use
+     *
+     * @param       checkType   type of the integrity check,
+     *                          for example XZ.CHECK_CRC32
+     *
+     * @param       arrayCache  cache to be used for allocating large arrays
+     *
+     * @throws      UnsupportedOptionsException
+     *                          invalid filter chain
+     */
+    public XZEncoder(FilterOptions[] filterOptions, int checkType,
+                     ArrayCache arrayCache)
+            throws UnsupportedOptionsException {
+        try {
+            xz = new XZOutputStream(sink, filterOptions, checkType,
+                                    arrayCache);
+        } catch (UnsupportedOptionsException e) {
+            throw e;
+        } catch (IOException e) {
+            // Sink doesn't throw IOExceptions.
+            throw new Error();
+        }
+    }
+
+    /**
+     * Compresses data from <code>src</code> and writes the compressed
+     * data to <code>dst</code>.
+     * <p>
+     * Input is consumed until <code>src</code> has no bytes remaining
+     * or <code>dst</code> becomes full. Compressors buffer a lot of data
+     * internally, so often nothing is written to <code>dst</code> even if
+     * all input was consumed.
+     *
+     * @param       src         uncompressed input
+     *
+     * @param       dst         buffer to hold the compressed output
+     *
+     * @return      number of bytes written to <code>dst</code>
+     *
+     * @throws      XZIOException
+     *                          the encoder has been finished or closed
+     *
+     * @throws      IOException compression failed
+     */
+    public int encode(ByteBuffer src, ByteBuffer dst) throws IOException {
+        int dstStart = dst.position();
+        sink.setDestination(dst);
+
+        try {
+            while (src.hasRemaining() && !sink.hasPending()) {
+                int len = Math.min(src.remaining(), INPUT_CHUNK_SIZE);
+
+                if (src.hasArray()) {
+                    xz.write(src.array(), src.arrayOffset() + src.position(),
+                             len);
+                    src.position(src.position() + len);
+                } else {
+                    if (inBuf == null)
+                        inBuf = new byte[INPUT_CHUNK_SIZE];
+
+                    src.get(inBuf, 0, len);
+                    xz.write(inBuf, 0, len);
+                }
+
+                totalIn += len;
+            }
+        } finally {
+            sink.clearDestination();
+        }
+
+        return dst.position() - dstStart;
+    }
+
+    /**
+     * Flushes the encoder so that all input given so far can be
+     * decompressed from the output. The output is written to
+     * <code>dst</code>. If it doesn't fit, the rest is written by
+     * the following calls to <code>encode</code>, <code>flush</code>,
+     * or <code>finish</code>.
+     * <p>
+     * Flushing has the same cost as with
+     * {@link XZOutputStream#flush()}; it shouldn't be done often.
+     *
+     * @param       dst         buffer to hold the compressed output
+     *
+     * @return      true if all flushed data has been written to
+     *              <code>dst</code>, false if more output is pending
+     *
+     * @throws      XZIOException
+     *                          the encoder has been finished or closed
+     *
+     * @throws      IOException compression failed
+     */
+    public boolean flush(ByteBuffer dst) throws IOException {
+        sink.setDestination(dst);
+
+        try {
+            xz.flush();
+        } finally {
+            sink.clearDestination();
+        }
+
+        return !sink.hasPending();
+    }
+
+    /**
+     * Finishes the XZ Stream and writes the compressed data to
+     * <code>dst</code>. If <code>dst</code> gets full, call this again
+     * with more space until <code>true</code> is returned.
+     * Further calls to <code>encode</code> and <code>flush</code> throw
+     * an exception.
+     * <p>
+     * Only the input already consumed by <code>encode</code> is included
+     * in the XZ Stream. Since <code>encode</code> doesn't consume input
+     * while output is pending, call it until the source buffer has no
+     * bytes remaining before calling this.
+     *
+     * @param       dst         buffer to hold the compressed output
+     *
+     * @return      true if the whole XZ Stream has been written,
+     *              false if more output is pending
+     *
+     * @throws      IOException compression failed
+     */
+    public boolean finish(ByteBuffer dst) throws IOException {
+        sink.setDestination(dst);
+
+        try {
+            if (!finished) {
+                // Keep the encoder for reset(); close() releases it.
+                xz.finishStream();
+                finished = true;
+            }
+        } finally {
+            sink.clearDestination();
+        }
+
+        return !sink.hasPending();
+    }
+
+    /**
+     * Returns true if <code>finish</code> has been called and all
+     * compressed data has been written to the destination buffers.
+     */
+    public boolean finished() {
+        return finished && !sink.hasPending();
+    }
+
+    /**
+     * Returns true if there is compressed data that didn't fit into
+     * the destination buffer. More input won't be consumed until
+     * the pending output has been written by the next call.
+     */
+    public boolean hasPendingOutput() {
+        return sink.hasPending();
+    }
+
+    /**
+     * Gets the number of uncompressed bytes consumed so far.
+     */
+    public long getTotalIn() {
+        return totalIn;
+    }
+
+    /**
+     * Gets the number of compressed bytes written to the destination
+     * buffers so far.
+     */
+    public long getTotalOut() {
+        return sink.totalOut;
+    }
+
+    /**
+     * Discards the pending output and starts a new XZ Stream with
+     * the same settings. The big arrays of the encoder are reused
+     * (see {@link XZOutputStream#reset(OutputStream)}).
+     *
+     * @throws      XZIOException
+     *                          the encoder has been closed
+     *
+     * @throws      IOException compression failed
+     */
+    public void reset() throws IOException {
+        // The rest of an unfinished XZ Stream isn't wanted. If finishing
+        // fails, XZOutputStream.reset discards the broken state.
+        if (!finished) {
+            try {
+                xz.finishStream();
+            } catch (IOException e) {}
+        }
+
+        sink.discardPending();
+        xz.reset(sink);
+
+        totalIn = 0;
+        sink.totalOut = 0;
+        finished = false;
+    }
+
+    /**
+     * Releases the resources of the encoder and gives its big arrays back
+     * to the array cache. Pending output is discarded. This should be
+     * called also after a successful <code>finish</code> once
+     * the encoder is no longer needed.
+     */
+    public void close() {
+        try {
+            xz.close();
+        } catch (IOException e) {
+            // Sink doesn't throw IOExceptions and the pending output
+            // is discarded anyway.
+        }
+
+        sink.discardPending();
+    }
+}
@@ -46,6 +46,14 @@ import org.tukaani.xz.common.DecoderUtil;
  * InputStream infile = new FileInputStream("foo.xz");
  * XZInputStream inxz = new XZInputStream(infile, 100 * 1024);
  * </pre></blockquote>
+ * <p>
+ * If reading the input has a high latency, for example, on a network
+ * file system, {@link PrefetchInputStream} can read the compressed data
+ * ahead in a background thread while the decompressor is working:
+ * <p><blockquote><pre>
+ * InputStream infile = new FileInputStream("foo.xz");
+ * XZInputStream inxz = new XZInputStream(new PrefetchInputStream(infile));
+ * </pre></blockquote>
  *
  * <h4>When uncompressed size is known beforehand</h4>
  * <p>
@@ -65,10 +73,20 @@ public class XZInputStream extends InputStream {
     private InputStream in;
     private SingleXZInputStream xzIn;
     private final boolean verifyCheck;
+    private final ArrayCache arrayCache;
     private boolean endReached = false;
     private IOException exception = null;
+    private XZStatsListener statsListener = null;
 
-    private final byte[] tempBuf = new byte[1];
+    private static final int LOOKAHEAD_SIZE = 8 << 10;
+
+    /**
+     * Data decompressed ahead by <code>read()</code>. The buffer is
+     * allocated on the first call to <code>read()</code>.
+     */
+    private byte[] lookBuf = null;
+    private int lookPos = 0;
+    private int lookSize = 0;
 
     /**
      * Creates a new XZ decompressor without a memory usage limit.
@@ -186,18 +204,84 @@ public class XZInputStream extends InputStream {
      */
     public XZInputStream(InputStream in, int memoryLimit, boolean verifyCheck)
             throws IOException {
+        this(in, memoryLimit, verifyCheck, ArrayCache.getDefaultCache());
+    }
+
+    /**
+     * Creates a new XZ decompressor with an optional memory usage limit,
+     * ability to disable verification of integrity checks, and a custom
+     * array cache.
+     * <p>
+     * This is identical to <code>XZInputStream(InputStream,int,boolean)</code>
+     * except that this takes also the <code>arrayCache</code> argument.
+     *
+     * @param       in          input stream from which XZ-compressed
+     *                          data is read
+     *
+     * @param       memoryLimit memory usage limit in kibibytes (KiB)
+     *                          or <code>-1</code> to impose no
+     *                          memory usage limit
+     *
+     * @param       verifyCheck if <code>true</code>, the integrity checks
+     *                          will be verified; this should almost never
+     *                          be set to <code>false</code>
+     *
+     * @param       arrayCache  cache to be used for allocating large arrays
+     *
+     * @throws      XZFormatException
+     *                          input is not in the XZ format
+     *
+     * @throws      CorruptedInputException
+     *                          XZ header CRC32 doesn't match
+     *
+     * @throws      UnsupportedOptionsException
+     *                          XZ header is valid but specifies options
+     *                          not supported by this implementation
+     *
+     * @throws      EOFException
+     *                          less than 12 bytes of input was available
+     *                          from <code>in</code>
+     *
+     * @throws      IOException may be thrown by <code>in</code>
+     *
+     * @since 1.7
+     */
+    public XZInputStream(InputStream in, int memoryLimit, boolean verifyCheck,
+                         ArrayCache arrayCache) throws IOException {
         this.in = in;
         this.memoryLimit = memoryLimit;
         this.verifyCheck = verifyCheck;
-        this.xzIn = new SingleXZInputStream(in, memoryLimit, verifyCheck);
+        this.arrayCache = arrayCache;
+        this.xzIn = new SingleXZInputStream(in, memoryLimit, verifyCheck,
+                                            arrayCache);
+    }
+
+    /**
+     * Sets a listener that receives statistics about the decompressed
+     * XZ Blocks. Passing <code>null</code> disables collecting
+     * statistics, which is the default.
+     * <p>
+     * If this is called in the middle of a Block, that Block isn't
+     * reported.
+     *
+     * @param       statsListener
+     *                          listener to receive the statistics,
+     *                          or <code>null</code>
+     *
+     * @since 1.7
+     */
+    public void setStatsListener(XZStatsListener statsListener) {
+        this.statsListener = statsListener;
+
+        if (xzIn != null)
+            xzIn.setStatsListener(statsListener);
     }
 
     /**
      * Decompresses the next byte from this input stream.
      * <p>
-     * Reading lots of data with <code>read()</code> from this input stream
-     * may be inefficient. Wrap it in {@link java.io.BufferedInputStream}
-     * if you need to read lots of data one byte at a time.
+     * This decompresses a bigger piece of data at a time into an internal
+     * buffer, so reading lots of data one byte at a time is efficient.
      *
      * @return      the next decompressed byte, or <code>-1</code>
      *              to indicate the end of the compressed stream
@@ -214,7 +298,19 @@ public class XZInputStream extends InputStream {
      * @throws      IOException may be thrown by <code>in</code>
      */
     public int read() throws IOException {
-        return read(tempBuf, 0, 1) == -1 ? -1 : (tempBuf[0] & 0xFF);
+        if (lookPos == lookSize) {
+            if (lookBuf == null)
+                lookBuf = new byte[LOOKAHEAD_SIZE];
+
+            int ret = decompress(lookBuf, 0, LOOKAHEAD_SIZE);
+            if (ret == -1)
+                return -1;
+
+            lookPos = 0;
+            lookSize = ret;
+        }
+
+        return lookBuf[lookPos++] & 0xFF;
     }
 
     /**
@@ -258,6 +354,33 @@ public class XZInputStream extends InputStream {
         if (len == 0)
             return 0;
 
+        if (lookPos == lookSize)
+            return decompress(buf, off, len);
+
+        // Use the data decompressed ahead by read() first.
+        int size = Math.min(len, lookSize - lookPos);
+        System.arraycopy(lookBuf, lookPos, buf, off, size);
+        lookPos += size;
+
+        if (size < len) {
+            try {
+                int ret = decompress(buf, off + size, len - size);
+                if (ret > 0)
+                    size += ret;
+            } catch (IOException e) {
+                // The exception has been stored and it will be thrown
+                // by the next call.
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Decompresses into an array of bytes without looking at the data
+     * decompressed ahead by <code>read()</code>.
+     */
+    private int decompress(byte[] buf, int off, int len) throws IOException {
         if (in == null)
             throw new XZIOException("Stream closed");
 
@@ -296,6 +419,78 @@ public class XZInputStream extends InputStream {
         return size;
     }
 
+    /**
+     * Skips <code>n</code> bytes of uncompressed data.
+     * <p>
+     * If the integrity check isn't verified, whole Blocks whose
+     * compressed and uncompressed sizes are stored in the Block Header
+     * are skipped without decompressing them. Such Blocks are created,
+     * for example, by the multithreaded compressor in XZ Utils.
+     * Other data is decompressed and thrown away.
+     *
+     * @param       n           number of bytes to skip
+     *
+     * @return      number of bytes skipped, which is less than
+     *              <code>n</code> only if the end of the stream
+     *              was reached or an error was detected after
+     *              skipping some data
+     *
+     * @throws      CorruptedInputException
+     * @throws      UnsupportedOptionsException
+     * @throws      MemoryLimitException
+     *
+     * @throws      XZIOException if the stream has been closed
+     *
+     * @throws      EOFException
+     *                          compressed input is truncated or corrupt
+     *
+     * @throws      IOException may be thrown by <code>in</code>
+     *
+     * @since 1.7
+     */
+    public long skip(long n) throws IOException {
+        if (n <= 0)
+            return 0;
+
+        if (in == null)
+            throw new XZIOException("Stream closed");
+
+        // Skip the data decompressed ahead by read() first.
+        long skipped = Math.min(n, lookSize - lookPos);
+        lookPos += (int)skipped;
+
+        try {
+            if (exception != null)
+                throw exception;
+
+            while (skipped < n && !endReached) {
+                if (xzIn == null) {
+                    prepareNextStream();
+                    if (endReached)
+                        break;
+                }
+
+                skipped += xzIn.skip(n - skipped);
+
+                // If less than requested was skipped, either the end of
+                // the XZ Stream was reached or xzIn has an exception
+                // pending. In the latter case, the next read will throw it.
+                if (skipped < n) {
+                    if (!xzIn.isEndReached())
+                        break;
+
+                    xzIn = null;
+                }
+            }
+        } catch (IOException e) {
+            exception = e;
+            if (skipped == 0)
+                throw e;
+        }
+
+        return skipped;
+    }
+
     private void prepareNextStream() throws IOException {
         DataInputStream inData = new DataInputStream(in);
         byte[] buf = new byte[DecoderUtil.STREAM_HEADER_SIZE];
@@ -323,7 +518,9 @@ public class XZInputStream extends InputStream {
         inData.readFully(buf, 4, DecoderUtil.STREAM_HEADER_SIZE - 4);
 
         try {
-            xzIn = new SingleXZInputStream(in, memoryLimit, verifyCheck, buf);
+            xzIn = new SingleXZInputStream(in, memoryLimit, verifyCheck, buf,
+                                           arrayCache);
+            xzIn.setStatsListener(statsListener);
         } catch (XZFormatException e) {
             // Since this isn't the first .xz Stream, it is more
             // logical to tell that the data is corrupt.
@@ -350,7 +547,8 @@ public class XZInputStream extends InputStream {
         if (exception != null)
             throw exception;
 
-        return xzIn == null ? 0 : xzIn.available();
+        return lookSize - lookPos
+               + (xzIn == null ? 0 : xzIn.available());
     }
 
     /**
@@ -361,9 +559,19 @@ public class XZInputStream extends InputStream {
      */
     public void close() throws IOException {
         if (in != null) {
+            lookBuf = null;
+            lookPos = 0;
+            lookSize = 0;
+
             try {
-                in.close();
+                // SingleXZInputStream.close() gives its arrays back
+                // to the cache and closes the same input stream.
+                if (xzIn != null)
+                    xzIn.close();
+                else
+                    in.close();
             } finally {
+                xzIn = null;
                 in = null;
             }
         }
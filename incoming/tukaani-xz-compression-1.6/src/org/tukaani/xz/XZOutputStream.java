@@ -50,16 +50,73 @@ import org.tukaani.xz.index.IndexEncoder;
  *                    + " KiB");
  * XZOutputStream outxz = new XZOutputStream(outfile, options);
  * </pre></blockquote>
+ * <p>
+ * Compressing many small independent files with the same settings
+ * by reusing one XZOutputStream:
+ * <p><blockquote><pre>
+ * XZOutputStream outxz = new XZOutputStream(out1, new LZMA2Options());
+ * outxz.write(data1);
+ * outxz.reset(out2);
+ * outxz.write(data2);
+ * outxz.finish();
+ * </pre></blockquote>
+ * <p>
+ * Creating a random-accessible .xz file of text lines where each XZ Block
+ * has about 1&nbsp;MiB of uncompressed data and ends at the end of a line:
+ * <p><blockquote><pre>
+ * XZOutputStream outxz = new XZOutputStream(outfile, new LZMA2Options());
+ * outxz.setBlockSize(1 &lt;&lt; 20);
+ * outxz.setRecordDelimiter('\n');
+ * </pre></blockquote>
  */
 public class XZOutputStream extends FinishableOutputStream {
     private OutputStream out;
     private final StreamFlags streamFlags = new StreamFlags();
-    private final Check check;
-    private final IndexEncoder index = new IndexEncoder();
+    private Check check;
+    private IndexEncoder index = new IndexEncoder();
+    private final ArrayCache arrayCache;
 
     private BlockOutputStream blockEncoder = null;
     private FilterEncoder[] filters;
 
+    /**
+     * The filter options given to <code>updateFilters</code>. They are
+     * needed to recreate the filters when the Block size changes.
+     */
+    private FilterOptions[] filterOptions;
+
+    /**
+     * Uncompressed and compressed sizes after which the current Block
+     * is ended automatically, or 0 if not set
+     */
+    private long blockSize = 0;
+    private long compressedBlockSize = 0;
+
+    /**
+     * If not null, a Block that has reached its size is continued until
+     * the end of the current record.
+     */
+    private RecordDelimiter recordDelimiter = null;
+
+    /**
+     * True when the current Block has reached its size and only
+     * the end of the current record is needed to end it.
+     */
+    private boolean blockSizeReached = false;
+
+    /**
+     * With <code>setCompressedBlockSize</code>, the compressed size is
+     * checked after at most this many bytes of uncompressed input.
+     */
+    private static final int COMPRESSED_SIZE_CHECK_INTERVAL = 16 << 10;
+
+    /**
+     * Sizes of the previous Block for estimating the compressed size
+     * of the current Block
+     */
+    private long prevUncompressedSize = 0;
+    private long prevUnpaddedSize = 0;
+
     /**
      * True if the current filter chain supports flushing.
      * If it doesn't support flushing, <code>flush()</code>
@@ -67,10 +124,32 @@ public class XZOutputStream extends FinishableOutputStream {
      */
     private boolean filtersSupportFlushing;
 
+    /**
+     * Encoder memory usage of the current filter chain in KiB.
+     * This is reported to the statistics listener.
+     */
+    private int memoryUsage;
+
+    private XZStatsListener statsListener = null;
+
+    /**
+     * Stored size of the earlier filter chains
+     */
+    private long storedSize = 0;
+
     private IOException exception = null;
     private boolean finished = false;
 
-    private final byte[] tempBuf = new byte[1];
+    private static final int BYTE_BUF_SIZE = 8 << 10;
+
+    /**
+     * Bytes written with <code>write(int)</code> are collected here and
+     * compressed in bulk. The buffer is allocated on the first call to
+     * <code>write(int)</code>. It is never non-empty when the stream
+     * has been finished or an exception has been thrown.
+     */
+    private byte[] byteBuf = null;
+    private int byteBufSize = 0;
 
     /**
      * Creates a new XZ compressor using one filter and CRC64 as
@@ -119,6 +198,38 @@ public class XZOutputStream extends FinishableOutputStream {
         this(out, new FilterOptions[] { filterOptions }, checkType);
     }
 
+    /**
+     * Creates a new XZ compressor using one filter, the specified
+     * integrity check type, and a custom array cache. This constructor
+     * is equivalent to passing a single-member FilterOptions array to
+     * <code>XZOutputStream(OutputStream, FilterOptions[], int,
+     * ArrayCache)</code>.
+     *
+     * @param       out         output stream to which the compressed data
+     *                          will be written
+     *
+     * @param       filterOptions
+     *                          filter options to use
+     *
+     * @param       checkType   type of the integrity check,
+     *                          for example XZ.CHECK_CRC32
+     *
+     * @param       arrayCache  cache to be used for allocating large arrays
+     *
+     * @throws      UnsupportedOptionsException
+     *                          invalid filter chain
+     *
+     * @throws      IOException may be thrown from <code>out</code>
+     *
+     * @since 1.7
+     */
+    public XZOutputStream(OutputStream out, FilterOptions filterOptions,
+                          int checkType, ArrayCache arrayCache)
+            throws IOException {
+        this(out, new FilterOptions[] { filterOptions }, checkType,
+             arrayCache);
+    }
+
     /**
      * Creates a new XZ compressor using 1-4 filters and CRC64 as
      * the integrity check. This constructor is equivalent
@@ -160,6 +271,37 @@ public class XZOutputStream extends FinishableOutputStream {
      */
     public XZOutputStream(OutputStream out, FilterOptions[] filterOptions,
                           int checkType) throws IOException {
+        this(out, filterOptions, checkType, ArrayCache.getDefaultCache());
+    }
+
+    /**
+     * Creates a new XZ compressor using 1-4 filters, the specified
+     * integrity check type, and a custom array cache. The big arrays
+     * of the encoder are given back to the cache at the end of
+     * each XZ Block.
+     *
+     * @param       out         output stream to which the compressed data
+     *                          will be written
+     *
+     * @param       filterOptions
+     *                          array of filter options to use
+     *
+     * @param       checkType   type of the integrity check,
+     *                          for example XZ.CHECK_CRC32
+     *
+     * @param       arrayCache  cache to be used for allocating large arrays
+     *
+     * @throws      UnsupportedOptionsException
+     *                          invalid filter chain
+     *
+     * @throws      IOException may be thrown from <code>out</code>
+     *
+     * @since 1.7
+     */
+    public XZOutputStream(OutputStream out, FilterOptions[] filterOptions,
+                          int checkType, ArrayCache arrayCache)
+            throws IOException {
+        this.arrayCache = arrayCache;
         this.out = out;
         updateFilters(filterOptions);
 
@@ -205,7 +347,7 @@ public class XZOutputStream extends FinishableOutputStream {
      */
     public void updateFilters(FilterOptions[] filterOptions)
             throws XZIOException {
-        if (blockEncoder != null)
+        if (blockEncoder != null || byteBufSize > 0)
             throw new UnsupportedOptionsException("Changing filter options "
                     + "in the middle of a XZ Block not implemented");
 
@@ -214,14 +356,231 @@ public class XZOutputStream extends FinishableOutputStream {
                         "XZ filter chain must be 1-4 filters");
 
         filtersSupportFlushing = true;
+        FilterOptions[] cappedOptions = new FilterOptions[filterOptions.length];
         FilterEncoder[] newFilters = new FilterEncoder[filterOptions.length];
         for (int i = 0; i < filterOptions.length; ++i) {
-            newFilters[i] = filterOptions[i].getFilterEncoder();
+            // A dictionary bigger than the Block size would only
+            // waste memory.
+            cappedOptions[i] = blockSize == 0
+                    ? filterOptions[i]
+                    : LZMA2Options.capDictSize(filterOptions[i], blockSize);
+            newFilters[i] = cappedOptions[i].getFilterEncoder();
             filtersSupportFlushing &= newFilters[i].supportsFlushing();
+
+            // Only one Block is encoded at a time so the LZMA2 encoder
+            // can be kept from one Block to the next.
+            if (newFilters[i] instanceof LZMA2Encoder) {
+                ((LZMA2Encoder)newFilters[i]).setReuseEncoder();
+                ((LZMA2Encoder)newFilters[i]).setStatsListener(
+                        statsListener);
+            }
         }
 
         RawCoder.validate(newFilters);
+        putArraysToCache();
+        storedSize = getStoredSize();
         filters = newFilters;
+        this.filterOptions = (FilterOptions[])filterOptions.clone();
+        memoryUsage = FilterOptions.getEncoderMemoryUsage(cappedOptions);
+    }
+
+    /**
+     * Sets the uncompressed size of XZ Blocks. When the current Block has
+     * this much uncompressed data, it is ended automatically like
+     * <code>endBlock()</code> does. This makes the file
+     * random-accessible with {@link SeekableXZInputStream} without
+     * counting the bytes and calling <code>endBlock()</code> in
+     * the application. Smaller Blocks make seeking faster but
+     * the compression ratio worse.
+     * <p>
+     * The LZMA2 dictionary size is reduced to the Block size (but not
+     * below <code>LZMA2Options.DICT_SIZE_MIN</code>) because a bigger
+     * dictionary would only waste memory.
+     * <p>
+     * If a record delimiter has been set, the Blocks continue until
+     * the end of the current record and thus are a little bigger.
+     * <code>endBlock()</code> can still be called to end Blocks earlier.
+     *
+     * @param       blockSize   uncompressed size of a Block, or
+     *                          <code>0</code> to not end Blocks
+     *                          automatically, which is the default
+     *
+     * @throws      IllegalArgumentException
+     *                          <code>blockSize</code> is negative
+     *
+     * @throws      UnsupportedOptionsException
+     *                          trying to change the Block size in
+     *                          the middle of a Block
+     *
+     * @since 1.7
+     */
+    public void setBlockSize(long blockSize) throws XZIOException {
+        if (blockSize < 0)
+            throw new IllegalArgumentException(
+                    "Block size must not be negative: " + blockSize);
+
+        if (blockEncoder != null || byteBufSize > 0)
+            throw new UnsupportedOptionsException("Changing the Block size "
+                    + "in the middle of a XZ Block not implemented");
+
+        long oldBlockSize = this.blockSize;
+        this.blockSize = blockSize;
+
+        try {
+            updateFilters(filterOptions);
+        } catch (XZIOException e) {
+            this.blockSize = oldBlockSize;
+            throw e;
+        }
+    }
+
+    /**
+     * Sets the approximate compressed size of XZ Blocks. When the current
+     * Block has grown to this size, it is ended automatically like
+     * <code>endBlock()</code> does. This keeps the amount of compressed
+     * data that has to be read to decompress a Block about the same
+     * even if the compression ratio varies.
+     * <p>
+     * The encoders keep some data buffered, so the compressed size of
+     * the current Block isn't known exactly until the Block is finished.
+     * It is estimated using the compression ratio of the previous Block.
+     * The first Block and Blocks whose data compresses worse than
+     * the previous one may be bigger than the target, with LZMA2 by up to
+     * about 100&nbsp;KiB. Use targets of at least a few hundred KiB.
+     * <p>
+     * This can be used together with <code>setBlockSize</code>. Then
+     * a Block is ended when it reaches either of the sizes.
+     *
+     * @param       compressedBlockSize
+     *                          approximate compressed size of a Block,
+     *                          or <code>0</code> to not end Blocks based
+     *                          on the compressed size, which is the default
+     *
+     * @throws      IllegalArgumentException
+     *                          <code>compressedBlockSize</code> is negative
+     *
+     * @since 1.7
+     */
+    public void setCompressedBlockSize(long compressedBlockSize) {
+        if (compressedBlockSize < 0)
+            throw new IllegalArgumentException(
+                    "Block size must not be negative: "
+                    + compressedBlockSize);
+
+        this.compressedBlockSize = compressedBlockSize;
+    }
+
+    /**
+     * Makes Blocks that have reached the size set with
+     * <code>setBlockSize</code> or <code>setCompressedBlockSize</code>
+     * continue until the next occurrence of the given byte, which is
+     * included in the Block. For example, with <code>'\n'</code> every
+     * Block ends at the end of a line.
+     *
+     * @param       delimiter   the byte that ends a record
+     *
+     * @since 1.7
+     */
+    public void setRecordDelimiter(int delimiter) {
+        setRecordDelimiter(new ByteDelimiter((byte)delimiter));
+    }
+
+    /**
+     * Makes Blocks that have reached the size set with
+     * <code>setBlockSize</code> or <code>setCompressedBlockSize</code>
+     * continue until the end of the current record as found by
+     * <code>recordDelimiter</code>.
+     * <p>
+     * If no record end is found, the Block keeps growing until one is
+     * found, <code>endBlock()</code> is called, or the stream is finished.
+     *
+     * @param       recordDelimiter
+     *                          finds the ends of records, or
+     *                          <code>null</code> to end Blocks as soon as
+     *                          they have reached their size, which is
+     *                          the default
+     *
+     * @since 1.7
+     */
+    public void setRecordDelimiter(RecordDelimiter recordDelimiter) {
+        this.recordDelimiter = recordDelimiter;
+    }
+
+    private static class ByteDelimiter implements RecordDelimiter {
+        private final byte delimiter;
+
+        ByteDelimiter(byte delimiter) {
+            this.delimiter = delimiter;
+        }
+
+        public int findRecordEnd(byte[] buf, int off, int len) {
+            int end = off + len;
+            for (int i = off; i < end; ++i)
+                if (buf[i] == delimiter)
+                    return i + 1;
+
+            return -1;
+        }
+    }
+
+    /**
+     * Sets a listener that receives statistics about the compressed
+     * XZ Blocks and LZMA2 chunks. Passing <code>null</code> disables
+     * collecting statistics, which is the default.
+     * <p>
+     * If this is called in the middle of a Block, the LZMA2 chunks are
+     * reported starting from the next Block.
+     *
+     * @param       statsListener
+     *                          listener to receive the statistics,
+     *                          or <code>null</code>
+     *
+     * @since 1.7
+     */
+    public void setStatsListener(XZStatsListener statsListener) {
+        this.statsListener = statsListener;
+
+        for (int i = 0; i < filters.length; ++i)
+            if (filters[i] instanceof LZMA2Encoder)
+                ((LZMA2Encoder)filters[i]).setStatsListener(statsListener);
+    }
+
+    /**
+     * Gets the amount of uncompressed data that the LZMA2 encoder has
+     * stored without compression so far. LZMA2 stores data uncompressed
+     * when it doesn't compress, for example, when it has been compressed
+     * or encrypted already. The encoder compresses the beginning of each
+     * chunk as a trial and skips compressing the rest of the chunk if
+     * the trial doesn't save space, so storing is much faster than
+     * compressing.
+     * <p>
+     * The data written with <code>LZMA2Options.setThreads</code> set to
+     * more than one isn't included.
+     *
+     * @return      uncompressed size of the stored LZMA2 chunks since
+     *              this stream was created
+     *
+     * @since 1.7
+     */
+    public long getStoredSize() {
+        long size = storedSize;
+
+        if (filters != null)
+            for (int i = 0; i < filters.length; ++i)
+                if (filters[i] instanceof LZMA2Encoder)
+                    size += ((LZMA2Encoder)filters[i]).getStoredSize();
+
+        return size;
+    }
+
+    /**
+     * Gives the arrays of the reused encoders back to the array cache.
+     */
+    private void putArraysToCache() {
+        if (filters != null)
+            for (int i = 0; i < filters.length; ++i)
+                if (filters[i] instanceof LZMA2Encoder)
+                    ((LZMA2Encoder)filters[i]).putArraysToCache();
     }
 
     /**
@@ -237,8 +596,20 @@ public class XZOutputStream extends FinishableOutputStream {
      * @throws      IOException may be thrown by the underlying output stream
      */
     public void write(int b) throws IOException {
-        tempBuf[0] = (byte)b;
-        write(tempBuf, 0, 1);
+        if (byteBufSize == 0 || byteBufSize == BYTE_BUF_SIZE) {
+            writeByteBuf();
+
+            if (exception != null)
+                throw exception;
+
+            if (finished)
+                throw new XZIOException("Stream finished or closed");
+
+            if (byteBuf == null)
+                byteBuf = new byte[BYTE_BUF_SIZE];
+        }
+
+        byteBuf[byteBufSize++] = (byte)b;
     }
 
     /**
@@ -269,6 +640,22 @@ public class XZOutputStream extends FinishableOutputStream {
         if (off < 0 || len < 0 || off + len < 0 || off + len > buf.length)
             throw new IndexOutOfBoundsException();
 
+        writeByteBuf();
+        encode(buf, off, len);
+    }
+
+    /**
+     * Compresses the bytes collected by <code>write(int)</code>.
+     */
+    private void writeByteBuf() throws IOException {
+        if (byteBufSize > 0) {
+            int size = byteBufSize;
+            byteBufSize = 0;
+            encode(byteBuf, 0, size);
+        }
+    }
+
+    private void encode(byte[] buf, int off, int len) throws IOException {
         if (exception != null)
             throw exception;
 
@@ -276,10 +663,58 @@ public class XZOutputStream extends FinishableOutputStream {
             throw new XZIOException("Stream finished or closed");
 
         try {
-            if (blockEncoder == null)
-                blockEncoder = new BlockOutputStream(out, filters, check);
+            if (blockSize == 0 && compressedBlockSize == 0) {
+                if (blockEncoder == null)
+                    blockEncoder = new BlockOutputStream(out, filters, check,
+                                                         arrayCache);
+
+                blockEncoder.write(buf, off, len);
+                return;
+            }
+
+            while (len > 0) {
+                if (blockEncoder == null)
+                    blockEncoder = new BlockOutputStream(out, filters, check,
+                                                         arrayCache);
 
-            blockEncoder.write(buf, off, len);
+                if (!blockSizeReached) {
+                    int size = len;
+
+                    if (blockSize > 0)
+                        size = (int)Math.min(size, blockSize
+                                - blockEncoder.getUncompressedSize());
+
+                    if (compressedBlockSize > 0)
+                        size = Math.min(size,
+                                        COMPRESSED_SIZE_CHECK_INTERVAL);
+
+                    blockEncoder.write(buf, off, size);
+                    off += size;
+                    len -= size;
+
+                    blockSizeReached = (blockSize > 0
+                            && blockEncoder.getUncompressedSize()
+                               >= blockSize)
+                        || (compressedBlockSize > 0
+                            && estimateCompressedSize()
+                               >= compressedBlockSize);
+
+                    if (blockSizeReached && recordDelimiter == null)
+                        finishBlock();
+                } else {
+                    // Continue the Block until the end of the record.
+                    int end = recordDelimiter == null ? off
+                            : recordDelimiter.findRecordEnd(buf, off, len);
+                    int size = end == -1 ? len : end - off;
+
+                    blockEncoder.write(buf, off, size);
+                    off += size;
+                    len -= size;
+
+                    if (end != -1)
+                        finishBlock();
+                }
+            }
         } catch (IOException e) {
             exception = e;
             throw e;
@@ -318,15 +753,14 @@ public class XZOutputStream extends FinishableOutputStream {
         if (finished)
             throw new XZIOException("Stream finished or closed");
 
+        writeByteBuf();
+
         // NOTE: Once there is threading with multiple Blocks, it's possible
         // that this function will be more like a barrier that returns
         // before the last Block has been finished.
         if (blockEncoder != null) {
             try {
-                blockEncoder.finish();
-                index.add(blockEncoder.getUnpaddedSize(),
-                          blockEncoder.getUncompressedSize());
-                blockEncoder = null;
+                finishBlock();
             } catch (IOException e) {
                 exception = e;
                 throw e;
@@ -334,6 +768,42 @@ public class XZOutputStream extends FinishableOutputStream {
         }
     }
 
+    /**
+     * Estimates the compressed size of the current Block. The encoders
+     * keep data buffered, so the size written so far lags behind.
+     * The compression ratio of the previous Block is used to estimate
+     * the size including the buffered data.
+     */
+    private long estimateCompressedSize() {
+        long size = blockEncoder.getUnpaddedSize();
+
+        if (prevUncompressedSize > 0)
+            size = Math.max(size, (long)((double)prevUnpaddedSize
+                    / prevUncompressedSize
+                    * blockEncoder.getUncompressedSize()));
+
+        return size;
+    }
+
+    /**
+     * Finishes the current Block and adds it to the Index.
+     */
+    private void finishBlock() throws IOException {
+        blockEncoder.finish();
+        index.add(blockEncoder.getUnpaddedSize(),
+                  blockEncoder.getUncompressedSize());
+
+        if (statsListener != null)
+            statsListener.blockEncoded(blockEncoder.getUncompressedSize(),
+                                       blockEncoder.getUnpaddedSize(),
+                                       memoryUsage);
+
+        prevUncompressedSize = blockEncoder.getUncompressedSize();
+        prevUnpaddedSize = blockEncoder.getUnpaddedSize();
+        blockEncoder = null;
+        blockSizeReached = false;
+    }
+
     /**
      * Flushes the encoder and calls <code>out.flush()</code>.
      * All buffered pending data will then be decompressible from
@@ -363,6 +833,8 @@ public class XZOutputStream extends FinishableOutputStream {
         if (finished)
             throw new XZIOException("Stream finished or closed");
 
+        writeByteBuf();
+
         try {
             if (blockEncoder != null) {
                 if (filtersSupportFlushing) {
@@ -401,6 +873,78 @@ public class XZOutputStream extends FinishableOutputStream {
      * @throws      IOException may be thrown by the underlying output stream
      */
     public void finish() throws IOException {
+        if (!finished) {
+            finishStream();
+            putArraysToCache();
+        }
+    }
+
+    /**
+     * Finishes the current XZ Stream and starts a new one that is
+     * written to <code>out</code>. The filter chain and the integrity
+     * check type stay the same.
+     * <p>
+     * This is meant for compressing many small independent files.
+     * Compared to creating a new <code>XZOutputStream</code> for each
+     * file, the LZMA2 encoder and its big arrays are reused, and usually
+     * the match finder hash tables don't need to be cleared. For the most
+     * benefit, call <code>reset</code> directly instead of calling
+     * <code>finish()</code> first because <code>finish()</code> gives
+     * the arrays back to the array cache.
+     * <p>
+     * The old underlying output stream is not closed. If an exception
+     * was thrown earlier, the unfinished XZ Stream is discarded and
+     * a new one is started.
+     *
+     * @param       out         output stream to which the next XZ Stream
+     *                          will be written
+     *
+     * @throws      XZIOException
+     *                          the stream has been closed
+     *
+     * @throws      IOException may be thrown by the underlying output
+     *                          streams
+     *
+     * @since 1.7
+     */
+    public void reset(OutputStream out) throws IOException {
+        if (out == null)
+            throw new NullPointerException();
+
+        if (this.out == null)
+            throw new XZIOException("Stream closed");
+
+        if (exception == null) {
+            if (!finished)
+                finishStream();
+        } else {
+            // The Block encoder and the Check may be in the middle of
+            // something. The LZMA2 encoder is fully reset when it is
+            // used for the next Block so it can still be reused.
+            blockEncoder = null;
+            blockSizeReached = false;
+            byteBufSize = 0;
+            check = Check.getInstance(streamFlags.checkType);
+            exception = null;
+        }
+
+        this.out = out;
+        index = new IndexEncoder();
+        finished = false;
+
+        try {
+            encodeStreamHeader();
+        } catch (IOException e) {
+            exception = e;
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the Index and the Stream Footer without putting
+     * the arrays back to the cache.
+     */
+    void finishStream() throws IOException {
         if (!finished) {
             // This checks for pending exceptions so we don't need to
             // worry about it here.
@@ -442,6 +986,9 @@ public class XZOutputStream extends FinishableOutputStream {
                 finish();
             } catch (IOException e) {}
 
+            // finish() puts the arrays back to the cache only on success.
+            putArraysToCache();
+
             try {
                 out.close();
             } catch (IOException e) {
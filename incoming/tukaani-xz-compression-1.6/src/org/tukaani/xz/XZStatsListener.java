@@ -0,0 +1,112 @@
+/*
+ * XZStatsListener
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz;
+
+/**
+ * Receives statistics about compressed and decompressed XZ Blocks and
+ * LZMA2 chunks.
+ * <p>
+ * Set a listener with {@link XZOutputStream#setStatsListener},
+ * {@link XZInputStream#setStatsListener},
+ * {@link SingleXZInputStream#setStatsListener}, or
+ * {@link SeekableXZInputStream#setStatsListener}. The methods of this
+ * class do nothing; override the ones you need. When no listener has been
+ * set, no statistics are collected and the only cost is checking for
+ * <code>null</code> at Block and chunk boundaries.
+ * <p>
+ * The methods are called from the thread that does the compression or
+ * decompression. With {@link SeekableXZInputStream#setDecoderThreads}
+ * <code>blockDecoded</code> may be called from several worker threads
+ * at the same time, so the listener must be thread safe.
+ * The methods must not throw exceptions.
+ * <p>
+ * Times are measured with <code>System.nanoTime()</code>, which requires
+ * Java 5 or later. The time spent in the match finder is estimated by
+ * timing only a small fraction of the match finder calls so that
+ * measuring doesn't slow down the encoder much.
+ *
+ * @since 1.7
+ */
+public abstract class XZStatsListener {
+    /**
+     * Called after the LZMA2 encoder has written a chunk.
+     * <p>
+     * The encoder compresses the first 4 KiB of every chunk as a trial.
+     * If the trial doesn't shrink the data to less than 31/32 of its
+     * size, the rest of the chunk is only run through the match finder
+     * and the chunk is stored uncompressed. Then
+     * <code>coderNanos</code> includes only the time spent on the trial.
+     * Otherwise the whole chunk is compressed, and if the compressed data
+     * would still be bigger than the uncompressed data, the chunk is
+     * stored uncompressed anyway and the time spent compressing it
+     * is wasted.
+     *
+     * @param       uncompressedSize
+     *                          uncompressed size of the chunk
+     *
+     * @param       compressedSize
+     *                          number of bytes written for the chunk,
+     *                          including the chunk headers
+     *
+     * @param       stored      true if the chunk was stored uncompressed,
+     *                          false if it was compressed with LZMA
+     *
+     * @param       matchFinderNanos
+     *                          estimated time spent in the match finder,
+     *                          in nanoseconds
+     *
+     * @param       coderNanos  time spent in the rest of the LZMA encoder
+     *                          (choosing the symbols to encode and
+     *                          range coding them), in nanoseconds
+     */
+    public void chunkEncoded(int uncompressedSize, int compressedSize,
+                             boolean stored, long matchFinderNanos,
+                             long coderNanos) {}
+
+    /**
+     * Called after <code>XZOutputStream</code> has finished a Block.
+     *
+     * @param       uncompressedSize
+     *                          uncompressed size of the Block
+     *
+     * @param       unpaddedSize
+     *                          compressed size of the Block including
+     *                          the Block Header and the Check field,
+     *                          but without the Block Padding
+     *
+     * @param       memoryUsage approximate memory usage of the filter chain,
+     *                          including the LZMA2 dictionary, in KiB
+     */
+    public void blockEncoded(long uncompressedSize, long unpaddedSize,
+                             int memoryUsage) {}
+
+    /**
+     * Called after a Block has been decompressed and validated
+     * completely. Blocks that are only partially read or that are skipped
+     * without decompressing them aren't reported.
+     *
+     * @param       uncompressedSize
+     *                          uncompressed size of the Block
+     *
+     * @param       unpaddedSize
+     *                          compressed size of the Block including
+     *                          the Block Header and the Check field,
+     *                          but without the Block Padding
+     *
+     * @param       memoryUsage approximate memory usage of the filter chain,
+     *                          including the LZMA2 dictionary, in KiB
+     *
+     * @param       checkNanos  time spent calculating the integrity check,
+     *                          in nanoseconds, or zero if the check
+     *                          wasn't verified
+     */
+    public void blockDecoded(long uncompressedSize, long unpaddedSize,
+                             int memoryUsage, long checkNanos) {}
+}
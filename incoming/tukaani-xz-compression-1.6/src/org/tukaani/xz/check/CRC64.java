@@ -11,22 +11,34 @@ package org.tukaani.xz.check;
 
 public class CRC64 extends Check {
     private static final long poly = 0xC96C5795D7870F42L;
-    private static final long[] crcTable = new long[256];
+
+    /**
+     * Lookup tables for the slicing-by-8 method. <code>crcTable[0]</code>
+     * is the usual byte-at-a-time table. <code>crcTable[n]</code> gives
+     * the CRC of a byte followed by <code>n</code> zero bytes, which
+     * allows processing eight input bytes with eight independent lookups.
+     */
+    private static final long[][] crcTable = new long[8][256];
 
     private long crc = -1;
 
     static {
-        for (int b = 0; b < crcTable.length; ++b) {
-                long r = b;
-                for (int i = 0; i < 8; ++i) {
-                        if ((r & 1) == 1)
-                                r = (r >>> 1) ^ poly;
-                        else
-                                r >>>= 1;
-                }
-
-                crcTable[b] = r;
+        for (int b = 0; b < 256; ++b) {
+            long r = b;
+            for (int i = 0; i < 8; ++i) {
+                if ((r & 1) == 1)
+                    r = (r >>> 1) ^ poly;
+                else
+                    r >>>= 1;
+            }
+
+            crcTable[0][b] = r;
         }
+
+        for (int t = 1; t < 8; ++t)
+            for (int b = 0; b < 256; ++b)
+                crcTable[t][b] = crcTable[0][(int)crcTable[t - 1][b] & 0xFF]
+                                 ^ (crcTable[t - 1][b] >>> 8);
     }
 
     public CRC64() {
@@ -36,9 +48,51 @@ public class CRC64 extends Check {
 
     public void update(byte[] buf, int off, int len) {
         int end = off + len;
+        long crc = this.crc;
+
+        // Process eight bytes at a time. The table references are copied
+        // to local variables so that the loop doesn't need to fetch them
+        // from the two-dimensional array on every iteration.
+        if (len >= 8) {
+            final long[] t0 = crcTable[0];
+            final long[] t1 = crcTable[1];
+            final long[] t2 = crcTable[2];
+            final long[] t3 = crcTable[3];
+            final long[] t4 = crcTable[4];
+            final long[] t5 = crcTable[5];
+            final long[] t6 = crcTable[6];
+            final long[] t7 = crcTable[7];
+            int end8 = end - 7;
 
+            while (off < end8) {
+                int lo = (int)crc
+                         ^ ((buf[off] & 0xFF)
+                            | ((buf[off + 1] & 0xFF) << 8)
+                            | ((buf[off + 2] & 0xFF) << 16)
+                            | (buf[off + 3] << 24));
+                int hi = (int)(crc >>> 32)
+                         ^ ((buf[off + 4] & 0xFF)
+                            | ((buf[off + 5] & 0xFF) << 8)
+                            | ((buf[off + 6] & 0xFF) << 16)
+                            | (buf[off + 7] << 24));
+                off += 8;
+
+                crc = t7[lo & 0xFF]
+                      ^ t6[(lo >>> 8) & 0xFF]
+                      ^ t5[(lo >>> 16) & 0xFF]
+                      ^ t4[lo >>> 24]
+                      ^ t3[hi & 0xFF]
+                      ^ t2[(hi >>> 8) & 0xFF]
+                      ^ t1[(hi >>> 16) & 0xFF]
+                      ^ t0[hi >>> 24];
+            }
+        }
+
+        final long[] t0 = crcTable[0];
         while (off < end)
-            crc = crcTable[(buf[off++] ^ (int)crc) & 0xFF] ^ (crc >>> 8);
+            crc = t0[(buf[off++] ^ (int)crc) & 0xFF] ^ (crc >>> 8);
+
+        this.crc = crc;
     }
 
     public byte[] finish() {
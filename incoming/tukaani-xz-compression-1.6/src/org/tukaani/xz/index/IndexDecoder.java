@@ -9,6 +9,7 @@
 
 package org.tukaani.xz.index;
 
+import java.io.OutputStream;
 import java.io.IOException;
 import java.io.EOFException;
 import java.util.zip.CheckedInputStream;
@@ -142,6 +143,14 @@ public class IndexDecoder extends IndexBase {
         uncompressedOffset = prev.uncompressedOffset + prev.uncompressedSum;
     }
 
+    public int getRecordOffset() {
+        return recordOffset;
+    }
+
+    public long getUncompressedOffset() {
+        return uncompressedOffset;
+    }
+
     public int getMemoryUsage() {
         return memoryUsage;
     }
@@ -150,6 +159,10 @@ public class IndexDecoder extends IndexBase {
         return streamFlags;
     }
 
+    public long getStreamPadding() {
+        return streamPadding;
+    }
+
     public int getRecordCount() {
         // It was already checked in the constructor that it fits into an int.
         // Otherwise we couldn't have allocated the arrays.
@@ -164,6 +177,25 @@ public class IndexDecoder extends IndexBase {
         return largestBlockSize;
     }
 
+    /**
+     * Encodes the Index field again. The output is identical to
+     * the Index field that was decoded.
+     */
+    public void encode(OutputStream out) throws IOException {
+        IndexEncoder encoder = new IndexEncoder();
+        long prevUnpadded = 0;
+        long prevUncompressed = 0;
+
+        for (int i = 0; i < unpadded.length; ++i) {
+            encoder.add(unpadded[i] - prevUnpadded,
+                        uncompressed[i] - prevUncompressed);
+            prevUnpadded = (unpadded[i] + 3) & ~3;
+            prevUncompressed = uncompressed[i];
+        }
+
+        encoder.encode(out);
+    }
+
     public boolean hasUncompressedOffset(long pos) {
         return pos >= uncompressedOffset
                && pos < uncompressedOffset + uncompressedSum;
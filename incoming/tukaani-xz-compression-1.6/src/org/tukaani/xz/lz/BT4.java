@@ -10,6 +10,8 @@
 
 package org.tukaani.xz.lz;
 
+import org.tukaani.xz.ArrayCache;
+
 final class BT4 extends LZEncoder {
     private final Hash234 hash;
     private final int[] tree;
@@ -25,14 +27,18 @@ final class BT4 extends LZEncoder {
     }
 
     BT4(int dictSize, int beforeSizeMin, int readAheadMax,
-            int niceLen, int matchLenMax, int depthLimit) {
-        super(dictSize, beforeSizeMin, readAheadMax, niceLen, matchLenMax);
+            int niceLen, int matchLenMax, int depthLimit,
+            ArrayCache arrayCache) {
+        super(dictSize, beforeSizeMin, readAheadMax, niceLen, matchLenMax,
+              arrayCache);
 
         cyclicSize = dictSize + 1;
         lzPos = cyclicSize;
 
-        hash = new Hash234(dictSize);
-        tree = new int[cyclicSize * 2];
+        // Like the hash chain in HC4, the tree elements are always
+        // written before they are read, so no need to clear them.
+        hash = new Hash234(dictSize, arrayCache);
+        tree = arrayCache.getIntArray(cyclicSize * 2, false);
 
         // Substracting 1 because the shortest match that this match
         // finder can find is 2 bytes, so there's no need to reserve
@@ -42,6 +48,45 @@ final class BT4 extends LZEncoder {
         this.depthLimit = depthLimit > 0 ? depthLimit : 16 + niceLen / 2;
     }
 
+    public void reset() {
+        super.reset();
+
+        // Positions that are cyclicSize or more bytes behind lzPos are
+        // treated like empty hash table slots. Moving lzPos forward by
+        // cyclicSize thus makes all old positions unreachable without
+        // clearing the hash tables, and the binary tree is only reached via
+        // the hash tables. Clear the tables only if lzPos would overflow.
+        if (lzPos >= Integer.MAX_VALUE - cyclicSize) {
+            hash.reset();
+            lzPos = cyclicSize;
+        } else {
+            lzPos += cyclicSize;
+        }
+    }
+
+    void saveMatchFinderState(PresetDictState state) {
+        state.hashTables = hash.copyTables();
+        state.positions = new int[(cyclicPos + 1) * 2];
+        System.arraycopy(tree, 0, state.positions, 0,
+                         state.positions.length);
+        state.lzPos = lzPos;
+        state.cyclicPos = cyclicPos;
+    }
+
+    void loadMatchFinderState(PresetDictState state) {
+        hash.setTables(state.hashTables);
+        System.arraycopy(state.positions, 0, tree, 0,
+                         state.positions.length);
+        lzPos = state.lzPos;
+        cyclicPos = state.cyclicPos;
+    }
+
+    public void putArraysToCache(ArrayCache arrayCache) {
+        arrayCache.putArray(tree);
+        hash.putArraysToCache(arrayCache);
+        super.putArraysToCache(arrayCache);
+    }
+
     private int movePos() {
         int avail = movePos(niceLen, 4);
 
@@ -0,0 +1,224 @@
+/*
+ * Hash Bucket match finder with 4-byte hashing
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz.lz;
+
+import java.util.Arrays;
+import org.tukaani.xz.ArrayCache;
+
+/**
+ * A faster alternative to <code>HC4</code>. Instead of a hash chain,
+ * each hash value has a bucket of a fixed number of the most recent
+ * positions, newest first. All candidates of a search are next to each
+ * other in memory, so there is no pointer chasing through a big chain
+ * array, and there are no separate tables for two- and three-byte hashes
+ * to update. The search depth is limited by the bucket size.
+ */
+final class HB4 extends LZEncoder {
+    /**
+     * Base-two logarithm of the number of positions in a bucket.
+     * A bucket of eight positions fills half of a typical cache line.
+     */
+    private static final int BUCKET_SIZE_SHIFT = 3;
+    private static final int BUCKET_SIZE = 1 << BUCKET_SIZE_SHIFT;
+
+    private final int[] table;
+    private final int bucketMask;
+    private final Matches matches;
+    private final int depthLimit;
+
+    /**
+     * Positions that are this many bytes or more behind lzPos are
+     * treated like empty slots.
+     */
+    private final int cyclicSize;
+    private int lzPos;
+
+    /**
+     * Gets the number of elements in the bucket table. It has two times
+     * the number of elements of the four-byte hash table of
+     * <code>HC4</code> and <code>BT4</code>.
+     */
+    private static int getTableSize(int dictSize) {
+        return Hash234.getHash4Size(dictSize) * 2;
+    }
+
+    /**
+     * Gets approximate memory usage of the match finder as kibibytes.
+     */
+    static int getMemoryUsage(int dictSize) {
+        return getTableSize(dictSize) / (1024 / 4) + 10;
+    }
+
+    /**
+     * Creates a new LZEncoder with the HB4 match finder.
+     * See <code>LZEncoder.getInstance</code> for parameter descriptions.
+     */
+    HB4(int dictSize, int beforeSizeMin, int readAheadMax,
+            int niceLen, int matchLenMax, int depthLimit,
+            ArrayCache arrayCache) {
+        super(dictSize, beforeSizeMin, readAheadMax, niceLen, matchLenMax,
+              arrayCache);
+
+        table = arrayCache.getIntArray(getTableSize(dictSize), true);
+        bucketMask = (table.length >>> BUCKET_SIZE_SHIFT) - 1;
+
+        // +1 because we need dictSize bytes of history + the current byte.
+        cyclicSize = dictSize + 1;
+        lzPos = cyclicSize;
+
+        // Substracting 2 because the shortest match that this match
+        // finder can find is 3 bytes.
+        matches = new Matches(niceLen - 2);
+
+        // A deeper search than the bucket size isn't possible.
+        this.depthLimit = (depthLimit > 0 && depthLimit < BUCKET_SIZE)
+                          ? depthLimit : BUCKET_SIZE;
+    }
+
+    public void reset() {
+        super.reset();
+
+        // See HC4.reset.
+        if (lzPos >= Integer.MAX_VALUE - cyclicSize) {
+            Arrays.fill(table, 0);
+            lzPos = cyclicSize;
+        } else {
+            lzPos += cyclicSize;
+        }
+    }
+
+    void saveMatchFinderState(PresetDictState state) {
+        state.hashTables = new int[][] { (int[])table.clone() };
+        state.positions = new int[0];
+        state.lzPos = lzPos;
+    }
+
+    void loadMatchFinderState(PresetDictState state) {
+        System.arraycopy(state.hashTables[0], 0, table, 0, table.length);
+        lzPos = state.lzPos;
+    }
+
+    public void putArraysToCache(ArrayCache arrayCache) {
+        arrayCache.putArray(table);
+        super.putArraysToCache(arrayCache);
+    }
+
+    /**
+     * Moves to the next byte, checks that there is enough available space,
+     * and possibly normalizes the bucket table.
+     *
+     * @return      number of bytes available, including the current byte
+     */
+    private int movePos() {
+        int avail = movePos(4, 4);
+
+        if (avail != 0) {
+            if (++lzPos == Integer.MAX_VALUE) {
+                int normalizationOffset = Integer.MAX_VALUE - cyclicSize;
+                normalize(table, normalizationOffset);
+                lzPos -= normalizationOffset;
+            }
+        }
+
+        return avail;
+    }
+
+    /**
+     * Gets the index of the first element of the bucket of the current
+     * byte. This uses the same hash function as <code>Hash234</code>.
+     */
+    private int getBucket() {
+        int temp = CRC32Hash.crcTable[buf[readPos] & 0xFF]
+                   ^ (buf[readPos + 1] & 0xFF)
+                   ^ ((buf[readPos + 2] & 0xFF) << 8)
+                   ^ (CRC32Hash.crcTable[buf[readPos + 3] & 0xFF] << 5);
+        return (temp & bucketMask) << BUCKET_SIZE_SHIFT;
+    }
+
+    /**
+     * Puts the current position first in the bucket. The oldest position
+     * in the bucket is dropped.
+     */
+    private void insert(int bucket) {
+        System.arraycopy(table, bucket, table, bucket + 1, BUCKET_SIZE - 1);
+        table[bucket] = lzPos;
+    }
+
+    public Matches getMatches() {
+        matches.count = 0;
+        int matchLenLimit = matchLenMax;
+        int niceLenLimit = niceLen;
+        int avail = movePos();
+
+        if (avail < matchLenLimit) {
+            if (avail == 0)
+                return matches;
+
+            matchLenLimit = avail;
+            if (niceLenLimit > avail)
+                niceLenLimit = avail;
+        }
+
+        int bucket = getBucket();
+        int end = bucket + depthLimit;
+
+        // The hash doesn't guarantee anything about the bytes of
+        // the candidates, so all of them need to be tested. Starting
+        // from two makes the shortest accepted match three bytes.
+        int lenBest = 2;
+
+        for (int i = bucket; i < end; ++i) {
+            int delta = lzPos - table[i];
+
+            // The positions are in the bucket from newest to oldest,
+            // so the rest are too far away too. Empty slots are zeros
+            // and thus always too far away.
+            if (delta >= cyclicSize)
+                break;
+
+            // Test the first byte and the first new byte that would give us
+            // a match that is at least one byte longer than lenBest. This
+            // too short matches get quickly skipped.
+            if (buf[readPos + lenBest - delta] == buf[readPos + lenBest]
+                    && buf[readPos - delta] == buf[readPos]) {
+                // Calculate the length of the match.
+                int len = 0;
+                while (++len < matchLenLimit)
+                    if (buf[readPos + len - delta] != buf[readPos + len])
+                        break;
+
+                // Use the match if and only if it is better than the longest
+                // match found so far.
+                if (len > lenBest) {
+                    lenBest = len;
+                    matches.len[matches.count] = len;
+                    matches.dist[matches.count] = delta - 1;
+                    ++matches.count;
+
+                    // Stop if it is long enough (niceLen or reached the
+                    // end of the dictionary).
+                    if (len >= niceLenLimit)
+                        break;
+                }
+            }
+        }
+
+        insert(bucket);
+        return matches;
+    }
+
+    public void skip(int len) {
+        assert len >= 0;
+
+        while (len-- > 0)
+            if (movePos() != 0)
+                insert(getBucket());
+    }
+}
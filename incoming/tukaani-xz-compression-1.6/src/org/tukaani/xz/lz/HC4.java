@@ -10,6 +10,8 @@
 
 package org.tukaani.xz.lz;
 
+import org.tukaani.xz.ArrayCache;
+
 final class HC4 extends LZEncoder {
     private final Hash234 hash;
     private final int[] chain;
@@ -32,14 +34,18 @@ final class HC4 extends LZEncoder {
      * See <code>LZEncoder.getInstance</code> for parameter descriptions.
      */
     HC4(int dictSize, int beforeSizeMin, int readAheadMax,
-            int niceLen, int matchLenMax, int depthLimit) {
-        super(dictSize, beforeSizeMin, readAheadMax, niceLen, matchLenMax);
+            int niceLen, int matchLenMax, int depthLimit,
+            ArrayCache arrayCache) {
+        super(dictSize, beforeSizeMin, readAheadMax, niceLen, matchLenMax,
+              arrayCache);
 
-        hash = new Hash234(dictSize);
+        hash = new Hash234(dictSize, arrayCache);
 
         // +1 because we need dictSize bytes of history + the current byte.
+        // The chain doesn't need to be cleared because an element is
+        // always written before it is read.
         cyclicSize = dictSize + 1;
-        chain = new int[cyclicSize];
+        chain = arrayCache.getIntArray(cyclicSize, false);
         lzPos = cyclicSize;
 
         // Substracting 1 because the shortest match that this match
@@ -53,6 +59,45 @@ final class HC4 extends LZEncoder {
         this.depthLimit = (depthLimit > 0) ? depthLimit : 4 + niceLen / 4;
     }
 
+    public void reset() {
+        super.reset();
+
+        // Positions that are cyclicSize or more bytes behind lzPos are
+        // treated like empty hash table slots. Moving lzPos forward by
+        // cyclicSize thus makes all old positions unreachable without
+        // clearing the hash tables, and the hash chain is only reached via
+        // the hash tables. Clear the tables only if lzPos would overflow.
+        if (lzPos >= Integer.MAX_VALUE - cyclicSize) {
+            hash.reset();
+            lzPos = cyclicSize;
+        } else {
+            lzPos += cyclicSize;
+        }
+    }
+
+    void saveMatchFinderState(PresetDictState state) {
+        state.hashTables = hash.copyTables();
+        state.positions = new int[cyclicPos + 1];
+        System.arraycopy(chain, 0, state.positions, 0,
+                         state.positions.length);
+        state.lzPos = lzPos;
+        state.cyclicPos = cyclicPos;
+    }
+
+    void loadMatchFinderState(PresetDictState state) {
+        hash.setTables(state.hashTables);
+        System.arraycopy(state.positions, 0, chain, 0,
+                         state.positions.length);
+        lzPos = state.lzPos;
+        cyclicPos = state.cyclicPos;
+    }
+
+    public void putArraysToCache(ArrayCache arrayCache) {
+        arrayCache.putArray(chain);
+        hash.putArraysToCache(arrayCache);
+        super.putArraysToCache(arrayCache);
+    }
+
     /**
      * Moves to the next byte, checks that there is enough available space,
      * and possibly normalizes the hash tables and the hash chain.
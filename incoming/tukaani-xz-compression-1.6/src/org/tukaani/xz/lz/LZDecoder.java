@@ -12,6 +12,7 @@ package org.tukaani.xz.lz;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import org.tukaani.xz.ArrayCache;
 import org.tukaani.xz.CorruptedInputException;
 
 public final class LZDecoder {
@@ -23,8 +24,13 @@ public final class LZDecoder {
     private int pendingLen = 0;
     private int pendingDist = 0;
 
-    public LZDecoder(int dictSize, byte[] presetDict) {
-        buf = new byte[dictSize];
+    public LZDecoder(int dictSize, byte[] presetDict, ArrayCache arrayCache) {
+        // The buffer may contain old data from the cache. Only the last
+        // byte needs to be cleared: it is used as the previous byte
+        // when decoding the first literal. The rest of the buffer is never
+        // read before it has been written.
+        buf = arrayCache.getByteArray(dictSize, false);
+        buf[buf.length - 1] = 0x00;
 
         if (presetDict != null) {
             pos = Math.min(presetDict.length, dictSize);
@@ -34,6 +40,14 @@ public final class LZDecoder {
         }
     }
 
+    /**
+     * Puts the dictionary buffer to the given cache. This LZDecoder
+     * must not be used after calling this.
+     */
+    public void putArraysToCache(ArrayCache arrayCache) {
+        arrayCache.putArray(buf);
+    }
+
     public void reset() {
         start = 0;
         pos = 0;
@@ -12,10 +12,12 @@ package org.tukaani.xz.lz;
 
 import java.io.OutputStream;
 import java.io.IOException;
+import org.tukaani.xz.ArrayCache;
 
 public abstract class LZEncoder {
     public static final int MF_HC4 = 0x04;
     public static final int MF_BT4 = 0x14;
+    public static final int MF_HB4 = 0x24;
 
     /**
      * Number of bytes to keep available before the current byte
@@ -83,6 +85,10 @@ public abstract class LZEncoder {
                 m += BT4.getMemoryUsage(dictSize);
                 break;
 
+            case MF_HB4:
+                m += HB4.getMemoryUsage(dictSize);
+                break;
+
             default:
                 throw new IllegalArgumentException();
         }
@@ -113,18 +119,25 @@ public abstract class LZEncoder {
      * @param       mf          match finder ID
      *
      * @param       depthLimit  match finder search depth limit
+     *
+     * @param       arrayCache  cache from which the big arrays are allocated
      */
     public static LZEncoder getInstance(
             int dictSize, int extraSizeBefore, int extraSizeAfter,
-            int niceLen, int matchLenMax, int mf, int depthLimit) {
+            int niceLen, int matchLenMax, int mf, int depthLimit,
+            ArrayCache arrayCache) {
         switch (mf) {
             case MF_HC4:
                 return new HC4(dictSize, extraSizeBefore, extraSizeAfter,
-                               niceLen, matchLenMax, depthLimit);
+                               niceLen, matchLenMax, depthLimit, arrayCache);
 
             case MF_BT4:
                 return new BT4(dictSize, extraSizeBefore, extraSizeAfter,
-                               niceLen, matchLenMax, depthLimit);
+                               niceLen, matchLenMax, depthLimit, arrayCache);
+
+            case MF_HB4:
+                return new HB4(dictSize, extraSizeBefore, extraSizeAfter,
+                               niceLen, matchLenMax, depthLimit, arrayCache);
         }
 
         throw new IllegalArgumentException();
@@ -134,9 +147,12 @@ public abstract class LZEncoder {
      * Creates a new LZEncoder. See <code>getInstance</code>.
      */
     LZEncoder(int dictSize, int extraSizeBefore, int extraSizeAfter,
-              int niceLen, int matchLenMax) {
-        buf = new byte[getBufSize(dictSize, extraSizeBefore, extraSizeAfter,
-                                  matchLenMax)];
+              int niceLen, int matchLenMax, ArrayCache arrayCache) {
+        // The buffer doesn't need to be cleared. The match finders never
+        // look at data that hasn't been written to the buffer.
+        buf = arrayCache.getByteArray(getBufSize(dictSize, extraSizeBefore,
+                                                 extraSizeAfter, matchLenMax),
+                                      false);
 
         keepSizeBefore = extraSizeBefore + dictSize;
         keepSizeAfter = extraSizeAfter + matchLenMax;
@@ -145,6 +161,28 @@ public abstract class LZEncoder {
         this.niceLen = niceLen;
     }
 
+    /**
+     * Puts the arrays of this LZEncoder and its match finder to
+     * the given cache. This LZEncoder must not be used after calling this.
+     */
+    public void putArraysToCache(ArrayCache arrayCache) {
+        arrayCache.putArray(buf);
+    }
+
+    /**
+     * Resets the LZEncoder so that it can be used for new uncompressed
+     * data that is unrelated to the data encoded so far. The buffers are
+     * kept and the match finder forgets the old data without clearing
+     * its big arrays when possible.
+     */
+    public void reset() {
+        readPos = -1;
+        readLimit = -1;
+        finishing = false;
+        writePos = 0;
+        pendingSize = 0;
+    }
+
     /**
      * Sets a preset dictionary. If a preset dictionary is wanted, this
      * function must be called immediately after creating the LZEncoder
@@ -165,6 +203,35 @@ public abstract class LZEncoder {
         }
     }
 
+    /**
+     * Sets a preset dictionary by copying a state that was saved after
+     * running the same preset dictionary through the match finder.
+     * This gives the same result as <code>setPresetDict(int, byte[])</code>
+     * but is faster. The state must be compatible with this LZEncoder.
+     * Like <code>setPresetDict(int, byte[])</code>, this must be called
+     * before any data has been encoded.
+     */
+    public void setPresetDict(PresetDictState state) {
+        assert !isStarted();
+        assert writePos == 0;
+
+        System.arraycopy(state.dict, 0, buf, 0, state.dict.length);
+        writePos = state.dict.length;
+        readPos = state.readPos;
+        pendingSize = state.pendingSize;
+        loadMatchFinderState(state);
+    }
+
+    /**
+     * Saves the state after <code>setPresetDict(int, byte[])</code>
+     * has been called on a new LZEncoder.
+     */
+    void saveState(PresetDictState state) {
+        state.readPos = readPos;
+        state.pendingSize = pendingSize;
+        saveMatchFinderState(state);
+    }
+
     /**
      * Moves data from the end of the buffer to the beginning, discarding
      * old data and making space for new input.
@@ -407,6 +474,19 @@ public abstract class LZEncoder {
         return avail;
     }
 
+    /**
+     * Copies the hash tables and the positions that have been inserted
+     * into the match finder to <code>state</code>.
+     */
+    abstract void saveMatchFinderState(PresetDictState state);
+
+    /**
+     * Replaces the match finder state with a copy of <code>state</code>.
+     * All old positions become unreachable because every hash table
+     * entry is overwritten.
+     */
+    abstract void loadMatchFinderState(PresetDictState state);
+
     /**
      * Runs match finder for the next byte and returns the matches found.
      */
@@ -0,0 +1,93 @@
+/*
+ * PresetDictState
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz.lz;
+
+import org.tukaani.xz.ArrayCache;
+
+/**
+ * State of an LZEncoder after a preset dictionary has been run through
+ * its match finder. Copying this state to a new or reset LZEncoder gives
+ * the same result as <code>LZEncoder.setPresetDict(int, byte[])</code>
+ * but without running the match finder again.
+ * <p>
+ * The state isn't modified after it has been created, so it can be
+ * shared by encoders in different threads.
+ */
+public final class PresetDictState {
+    private final int dictSize;
+    private final int niceLen;
+    private final int mf;
+    private final int depthLimit;
+
+    /**
+     * The part of the preset dictionary that fits into the dictionary.
+     */
+    final byte[] dict;
+
+    // These are set by LZEncoder.saveState.
+    int readPos;
+    int pendingSize;
+
+    // These are set by the match finders.
+    int[][] hashTables;
+    int[] positions;
+    int lzPos;
+    int cyclicPos;
+
+    /**
+     * Runs the preset dictionary through a temporary LZEncoder and
+     * saves the resulting state.
+     *
+     * @param       dictSize    dictionary size of the encoders that
+     *                          will use this state
+     *
+     * @param       presetDict  preset dictionary; if it is bigger than
+     *                          <code>dictSize</code>, only the tail is used
+     *
+     * @param       niceLen     nice length of the encoders
+     *
+     * @param       mf          match finder ID
+     *
+     * @param       depthLimit  match finder search depth limit of
+     *                          the encoders
+     */
+    public PresetDictState(int dictSize, byte[] presetDict, int niceLen,
+                           int mf, int depthLimit) {
+        this.dictSize = dictSize;
+        this.niceLen = niceLen;
+        this.mf = mf;
+        this.depthLimit = depthLimit;
+
+        int copySize = Math.min(presetDict.length, dictSize);
+        dict = new byte[copySize];
+        System.arraycopy(presetDict, presetDict.length - copySize,
+                         dict, 0, copySize);
+
+        // The amount of extra space and the maximum match length don't
+        // affect how the match finder processes the preset dictionary.
+        // The depth limit does: the binary tree match finder uses it
+        // also when skipping bytes.
+        LZEncoder lz = LZEncoder.getInstance(dictSize, 0, 0, niceLen,
+                                             niceLen, mf, depthLimit,
+                                             ArrayCache.getDummyCache());
+        lz.setPresetDict(dictSize, dict);
+        lz.saveState(this);
+    }
+
+    /**
+     * Returns true if this state can be used by an LZEncoder with
+     * the given settings.
+     */
+    public boolean isCompatible(int dictSize, int niceLen, int mf,
+                                int depthLimit) {
+        return this.dictSize == dictSize && this.niceLen == niceLen
+               && this.mf == mf && this.depthLimit == depthLimit;
+    }
+}
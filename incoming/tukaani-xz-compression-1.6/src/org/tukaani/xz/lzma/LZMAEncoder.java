@@ -11,6 +11,7 @@
 package org.tukaani.xz.lzma;
 
 import java.io.IOException;
+import org.tukaani.xz.ArrayCache;
 import org.tukaani.xz.lz.LZEncoder;
 import org.tukaani.xz.lz.Matches;
 import org.tukaani.xz.rangecoder.RangeEncoder;
@@ -43,6 +44,16 @@ public abstract class LZMAEncoder extends LZMACoder {
      */
     private static final int LZMA2_COMPRESSED_LIMIT = (64 << 10) - 26;
 
+    /**
+     * When measuring the time spent in the match finder, only one call
+     * out of <code>1 << MF_TIMING_SAMPLE_BITS</code> is timed. Timing
+     * every call would take about as much time as the match finder itself
+     * in the fast mode.
+     */
+    private static final int MF_TIMING_SAMPLE_BITS = 6;
+    private static final int MF_TIMING_SAMPLE_MASK
+            = (1 << MF_TIMING_SAMPLE_BITS) - 1;
+
     private static final int DIST_PRICE_UPDATE_INTERVAL = FULL_DISTANCES;
     private static final int ALIGN_PRICE_UPDATE_INTERVAL = ALIGN_SIZE;
 
@@ -66,6 +77,10 @@ public abstract class LZMAEncoder extends LZMACoder {
     int readAhead = -1;
     private int uncompressedSize = 0;
 
+    private boolean mfTiming = false;
+    private int mfCalls = 0;
+    private long mfTime = 0;
+
     public static int getMemoryUsage(int mode, int dictSize,
                                      int extraSizeBefore, int mf) {
         int m = 80;
@@ -91,22 +106,33 @@ public abstract class LZMAEncoder extends LZMACoder {
     public static LZMAEncoder getInstance(
                 RangeEncoder rc, int lc, int lp, int pb, int mode,
                 int dictSize, int extraSizeBefore,
-                int niceLen, int mf, int depthLimit) {
+                int niceLen, int mf, int depthLimit,
+                ArrayCache arrayCache) {
         switch (mode) {
             case MODE_FAST:
                 return new LZMAEncoderFast(rc, lc, lp, pb,
                                            dictSize, extraSizeBefore,
-                                           niceLen, mf, depthLimit);
+                                           niceLen, mf, depthLimit,
+                                           arrayCache);
 
             case MODE_NORMAL:
                 return new LZMAEncoderNormal(rc, lc, lp, pb,
                                              dictSize, extraSizeBefore,
-                                             niceLen, mf, depthLimit);
+                                             niceLen, mf, depthLimit,
+                                             arrayCache);
         }
 
         throw new IllegalArgumentException();
     }
 
+    /**
+     * Puts the big arrays of the LZ encoder to the given cache.
+     * This LZMAEncoder must not be used after calling this.
+     */
+    public void putArraysToCache(ArrayCache arrayCache) {
+        lz.putArraysToCache(arrayCache);
+    }
+
     /**
      * Gets an integer [0, 63] matching the highest two bits of an integer.
      * This is like bit scan reverse (BSR) on x86 except that this also
@@ -197,6 +223,18 @@ public abstract class LZMAEncoder extends LZMACoder {
         readAhead = -1;
     }
 
+    /**
+     * Resets both the LZMA state and the LZ encoder so that this encoder
+     * can be used for a new stream. This is cheaper than creating a new
+     * encoder because the arrays are kept and the prices are recalculated
+     * only when they are needed.
+     */
+    public void resetForNewStream() {
+        lz.reset();
+        reset();
+        uncompressedSize = 0;
+    }
+
     public int getUncompressedSize() {
         return uncompressedSize;
     }
@@ -205,6 +243,24 @@ public abstract class LZMAEncoder extends LZMACoder {
         uncompressedSize = 0;
     }
 
+    /**
+     * Enables or disables measuring the time spent in the match finder.
+     * It is disabled by default.
+     */
+    public void setMatchFinderTiming(boolean enabled) {
+        mfTiming = enabled;
+    }
+
+    /**
+     * Gets the estimated time spent in the match finder in nanoseconds
+     * since the previous call to this function, and resets the counter.
+     */
+    public long getMatchFinderTime() {
+        long time = mfTime;
+        mfTime = 0;
+        return time;
+    }
+
     /**
      * Compress for LZMA1.
      */
@@ -234,12 +290,26 @@ public abstract class LZMAEncoder extends LZMACoder {
      * @return      true if the LZMA2 chunk became full, false otherwise
      */
     public boolean encodeForLZMA2() {
+        return encodeForLZMA2(LZMA2_UNCOMPRESSED_LIMIT);
+    }
+
+    /**
+     * Compresses for LZMA2 until the uncompressed size of the chunk
+     * exceeds <code>limit</code>, which must not be greater than
+     * the limit used by <code>encodeForLZMA2()</code>.
+     *
+     * @return      true if the limit was reached or the LZMA2 chunk
+     *              became full, false otherwise
+     */
+    public boolean encodeForLZMA2(int limit) {
+        assert limit <= LZMA2_UNCOMPRESSED_LIMIT;
+
         // LZMA2 uses RangeEncoderToBuffer so IOExceptions aren't possible.
         try {
             if (!lz.isStarted() && !encodeInit())
                 return false;
 
-            while (uncompressedSize <= LZMA2_UNCOMPRESSED_LIMIT
+            while (uncompressedSize <= limit
                     && rc.getPendingSize() <= LZMA2_COMPRESSED_LIMIT)
                 if (!encodeSymbol())
                     return false;
@@ -250,6 +320,32 @@ public abstract class LZMAEncoder extends LZMACoder {
         return true;
     }
 
+    /**
+     * Runs data through the match finder without encoding it until
+     * the uncompressed size of the chunk reaches <code>limit</code>.
+     * This is used when LZMA2 stores the data in uncompressed chunks.
+     * The match finder still needs to see the data so that the following
+     * chunks can refer to it. <code>reset()</code> must have been called
+     * after encoding the previous symbol.
+     *
+     * @return      true if the limit was reached, false if more input
+     *              is needed
+     */
+    public boolean skipForLZMA2(int limit) {
+        assert readAhead == -1;
+
+        while (uncompressedSize < limit) {
+            if (!lz.hasEnoughData(0))
+                return false;
+
+            skip(1);
+            --readAhead;
+            ++uncompressedSize;
+        }
+
+        return true;
+    }
+
     private boolean encodeInit() throws IOException {
         assert readAhead == -1;
         if (!lz.hasEnoughData(0))
@@ -376,14 +472,30 @@ public abstract class LZMAEncoder extends LZMACoder {
 
     Matches getMatches() {
         ++readAhead;
-        Matches matches = lz.getMatches();
+        Matches matches;
+
+        if (mfTiming && (++mfCalls & MF_TIMING_SAMPLE_MASK) == 0) {
+            long start = System.nanoTime();
+            matches = lz.getMatches();
+            mfTime += (System.nanoTime() - start) << MF_TIMING_SAMPLE_BITS;
+        } else {
+            matches = lz.getMatches();
+        }
+
         assert lz.verifyMatches(matches);
         return matches;
     }
 
     void skip(int len) {
         readAhead += len;
-        lz.skip(len);
+
+        if (mfTiming && (++mfCalls & MF_TIMING_SAMPLE_MASK) == 0) {
+            long start = System.nanoTime();
+            lz.skip(len);
+            mfTime += (System.nanoTime() - start) << MF_TIMING_SAMPLE_BITS;
+        } else {
+            lz.skip(len);
+        }
     }
 
     int getAnyMatchPrice(State state, int posState) {
@@ -10,6 +10,7 @@
 
 package org.tukaani.xz.lzma;
 
+import org.tukaani.xz.ArrayCache;
 import org.tukaani.xz.lz.LZEncoder;
 import org.tukaani.xz.lz.Matches;
 import org.tukaani.xz.rangecoder.RangeEncoder;
@@ -20,7 +21,29 @@ final class LZMAEncoderNormal extends LZMAEncoder {
     private static final int EXTRA_SIZE_BEFORE = OPTS;
     private static final int EXTRA_SIZE_AFTER = OPTS;
 
-    private final Optimum[] opts = new Optimum[OPTS];
+    private static final int INFINITY_PRICE = 1 << 30;
+
+    // The optimum table is stored as parallel arrays indexed by the
+    // position in the table so that the optimal parsing loops access
+    // a few contiguous arrays instead of thousands of small objects.
+    //
+    // prices[i] is the cumulative price of arriving to the byte i.
+    // optPrevs[i] and backPrevs[i] tell the previous position and the
+    // LZMA symbol used to get from there to i. If prev1IsLiteral[i] is
+    // true, that symbol is preceded by a literal, and if also hasPrev2[i]
+    // is true, the literal is preceded by the symbol backPrevs2[i] from
+    // the position optPrevs2[i]. states[i] and optReps[i * REPS] to
+    // optReps[i * REPS + REPS - 1] are the LZMA state and the reps at i.
+    private final int[] prices = new int[OPTS];
+    private final int[] optPrevs = new int[OPTS];
+    private final int[] backPrevs = new int[OPTS];
+    private final boolean[] prev1IsLiteral = new boolean[OPTS];
+    private final boolean[] hasPrev2 = new boolean[OPTS];
+    private final int[] optPrevs2 = new int[OPTS];
+    private final int[] backPrevs2 = new int[OPTS];
+    private final int[] states = new int[OPTS];
+    private final int[] optReps = new int[OPTS * REPS];
+
     private int optCur = 0;
     private int optEnd = 0;
 
@@ -31,6 +54,9 @@ final class LZMAEncoderNormal extends LZMAEncoder {
     private final int[] repLens = new int[REPS];
     private final State nextState = new State();
 
+    // The state of optCur for the price calculation functions.
+    private final State curState = new State();
+
     static int getMemoryUsage(int dictSize, int extraSizeBefore, int mf) {
         return LZEncoder.getMemoryUsage(dictSize,
                    Math.max(extraSizeBefore, EXTRA_SIZE_BEFORE),
@@ -40,17 +66,15 @@ final class LZMAEncoderNormal extends LZMAEncoder {
 
     LZMAEncoderNormal(RangeEncoder rc, int lc, int lp, int pb,
                              int dictSize, int extraSizeBefore,
-                             int niceLen, int mf, int depthLimit) {
+                             int niceLen, int mf, int depthLimit,
+                             ArrayCache arrayCache) {
         super(rc, LZEncoder.getInstance(dictSize,
                                         Math.max(extraSizeBefore,
                                                  EXTRA_SIZE_BEFORE),
                                         EXTRA_SIZE_AFTER,
                                         niceLen, MATCH_LEN_MAX,
-                                        mf, depthLimit),
+                                        mf, depthLimit, arrayCache),
               lc, lp, pb, dictSize, niceLen);
-
-        for (int i = 0; i < OPTS; ++i)
-            opts[i] = new Optimum();
     }
 
     public void reset() {
@@ -60,39 +84,84 @@ final class LZMAEncoderNormal extends LZMAEncoder {
     }
 
     /**
-     * Converts the opts array from backward indexes to forward indexes.
+     * Resets the price of the byte i.
+     */
+    private void resetPrice(int i) {
+        prices[i] = INFINITY_PRICE;
+    }
+
+    /**
+     * Sets the byte i to be reached with one LZMA symbol
+     * (literal, rep, or match).
+     */
+    private void set1(int i, int newPrice, int optCur, int back) {
+        prices[i] = newPrice;
+        optPrevs[i] = optCur;
+        backPrevs[i] = back;
+        prev1IsLiteral[i] = false;
+    }
+
+    /**
+     * Sets the byte i to be reached with two LZMA symbols of which
+     * the first one is a literal.
+     */
+    private void set2(int i, int newPrice, int optCur, int back) {
+        prices[i] = newPrice;
+        optPrevs[i] = optCur + 1;
+        backPrevs[i] = back;
+        prev1IsLiteral[i] = true;
+        hasPrev2[i] = false;
+    }
+
+    /**
+     * Sets the byte i to be reached with three LZMA symbols of which
+     * the second one is a literal.
+     */
+    private void set3(int i, int newPrice, int optCur, int back2, int len2,
+                      int back) {
+        prices[i] = newPrice;
+        optPrevs[i] = optCur + len2 + 1;
+        backPrevs[i] = back;
+        prev1IsLiteral[i] = true;
+        hasPrev2[i] = true;
+        optPrevs2[i] = optCur;
+        backPrevs2[i] = back2;
+    }
+
+    /**
+     * Converts the opts arrays from backward indexes to forward indexes.
      * Then it will be simple to get the next symbol from the array
      * in later calls to <code>getNextSymbol()</code>.
      */
     private int convertOpts() {
         optEnd = optCur;
 
-        int optPrev = opts[optCur].optPrev;
+        int optPrev = optPrevs[optCur];
 
         do {
-            Optimum opt = opts[optCur];
+            int opt = optCur;
 
-            if (opt.prev1IsLiteral) {
-                opts[optPrev].optPrev = optCur;
-                opts[optPrev].backPrev = -1;
+            if (prev1IsLiteral[opt]) {
+                optPrevs[optPrev] = optCur;
+                backPrevs[optPrev] = -1;
                 optCur = optPrev--;
 
-                if (opt.hasPrev2) {
-                    opts[optPrev].optPrev = optPrev + 1;
-                    opts[optPrev].backPrev = opt.backPrev2;
+                if (hasPrev2[opt]) {
+                    optPrevs[optPrev] = optPrev + 1;
+                    backPrevs[optPrev] = backPrevs2[opt];
                     optCur = optPrev;
-                    optPrev = opt.optPrev2;
+                    optPrev = optPrevs2[opt];
                 }
             }
 
-            int temp = opts[optPrev].optPrev;
-            opts[optPrev].optPrev = optCur;
+            int temp = optPrevs[optPrev];
+            optPrevs[optPrev] = optCur;
             optCur = optPrev;
             optPrev = temp;
         } while (optCur > 0);
 
-        optCur = opts[0].optPrev;
-        back = opts[optCur].backPrev;
+        optCur = optPrevs[0];
+        back = backPrevs[optCur];
         return optCur;
     }
 
@@ -100,9 +169,9 @@ final class LZMAEncoderNormal extends LZMAEncoder {
         // If there are pending symbols from an earlier call to this
         // function, return those symbols first.
         if (optCur < optEnd) {
-            int len = opts[optCur].optPrev - optCur;
-            optCur = opts[optCur].optPrev;
-            back = opts[optCur].backPrev;
+            int len = optPrevs[optCur] - optCur;
+            optCur = optPrevs[optCur];
+            back = backPrevs[optCur];
             return len;
         }
 
@@ -178,7 +247,7 @@ final class LZMAEncoderNormal extends LZMAEncoder {
             int prevByte = lz.getByte(1);
             int literalPrice = literalEncoder.getPrice(curByte, matchByte,
                                                        prevByte, pos, state);
-            opts[1].set1(literalPrice, 0, -1);
+            set1(1, literalPrice, 0, -1);
         }
 
         int anyMatchPrice = getAnyMatchPrice(state, posState);
@@ -189,8 +258,8 @@ final class LZMAEncoderNormal extends LZMAEncoder {
         if (matchByte == curByte) {
             int shortRepPrice = getShortRepPrice(anyRepPrice,
                                                  state, posState);
-            if (shortRepPrice < opts[1].price)
-                opts[1].set1(shortRepPrice, 0, 0);
+            if (shortRepPrice < prices[1])
+                set1(1, shortRepPrice, 0, 0);
         }
 
         // Return if there is neither normal nor long repeated match. Use
@@ -198,7 +267,7 @@ final class LZMAEncoderNormal extends LZMAEncoder {
         optEnd = Math.max(mainLen, repLens[repBest]);
         if (optEnd < MATCH_LEN_MIN) {
             assert optEnd == 0 : optEnd;
-            back = opts[1].backPrev;
+            back = backPrevs[1];
             return 1;
         }
 
@@ -208,15 +277,15 @@ final class LZMAEncoderNormal extends LZMAEncoder {
         // don't need these tables.)
         updatePrices();
 
-        // Initialize the state and reps of this position in opts[].
+        // Initialize the state and reps of this position in the opts arrays.
         // updateOptStateAndReps() will need these to get the new
         // state and reps for the next byte.
-        opts[0].state.set(state);
-        System.arraycopy(reps, 0, opts[0].reps, 0, REPS);
+        states[0] = state.get();
+        System.arraycopy(reps, 0, optReps, 0, REPS);
 
         // Initialize the prices for latter opts that will be used below.
         for (int i = optEnd; i >= MATCH_LEN_MIN; --i)
-            opts[i].reset();
+            resetPrice(i);
 
         // Calculate the prices of repeated matches of all lengths.
         for (int rep = 0; rep < REPS; ++rep) {
@@ -229,8 +298,8 @@ final class LZMAEncoderNormal extends LZMAEncoder {
             do {
                 int price = longRepPrice + repLenEncoder.getPrice(repLen,
                                                                   posState);
-                if (price < opts[repLen].price)
-                    opts[repLen].set1(price, 0, rep);
+                if (price < prices[repLen])
+                    set1(repLen, price, 0, rep);
             } while (--repLen >= MATCH_LEN_MIN);
         }
 
@@ -251,8 +320,8 @@ final class LZMAEncoderNormal extends LZMAEncoder {
                     int dist = matches.dist[i];
                     int price = getMatchAndLenPrice(normalMatchPrice,
                                                     dist, len, posState);
-                    if (price < opts[len].price)
-                        opts[len].set1(price, 0, dist + REPS);
+                    if (price < prices[len])
+                        set1(len, price, 0, dist + REPS);
 
                     if (len == matches.len[i])
                         if (++i == matches.count)
@@ -280,9 +349,9 @@ final class LZMAEncoderNormal extends LZMAEncoder {
             posState = pos & posMask;
 
             updateOptStateAndReps();
-            anyMatchPrice = opts[optCur].price
-                            + getAnyMatchPrice(opts[optCur].state, posState);
-            anyRepPrice = getAnyRepPrice(anyMatchPrice, opts[optCur].state);
+            anyMatchPrice = prices[optCur]
+                            + getAnyMatchPrice(curState, posState);
+            anyRepPrice = getAnyRepPrice(anyMatchPrice, curState);
 
             calc1BytePrices(pos, posState, avail, anyRepPrice);
 
@@ -299,70 +368,77 @@ final class LZMAEncoderNormal extends LZMAEncoder {
     }
 
     /**
-     * Updates the state and reps for the current byte in the opts array.
+     * Updates the state and reps for the current byte in the opts arrays.
+     * The state is also left in <code>curState</code>.
      */
     private void updateOptStateAndReps() {
-        int optPrev = opts[optCur].optPrev;
+        int optPrev = optPrevs[optCur];
         assert optPrev < optCur;
 
-        if (opts[optCur].prev1IsLiteral) {
+        if (prev1IsLiteral[optCur]) {
             --optPrev;
 
-            if (opts[optCur].hasPrev2) {
-                opts[optCur].state.set(opts[opts[optCur].optPrev2].state);
-                if (opts[optCur].backPrev2 < REPS)
-                    opts[optCur].state.updateLongRep();
+            if (hasPrev2[optCur]) {
+                curState.set(states[optPrevs2[optCur]]);
+                if (backPrevs2[optCur] < REPS)
+                    curState.updateLongRep();
                 else
-                    opts[optCur].state.updateMatch();
+                    curState.updateMatch();
             } else {
-                opts[optCur].state.set(opts[optPrev].state);
+                curState.set(states[optPrev]);
             }
 
-            opts[optCur].state.updateLiteral();
+            curState.updateLiteral();
         } else {
-            opts[optCur].state.set(opts[optPrev].state);
+            curState.set(states[optPrev]);
         }
 
+        int curReps = optCur * REPS;
+
         if (optPrev == optCur - 1) {
             // Must be either a short rep or a literal.
-            assert opts[optCur].backPrev == 0 || opts[optCur].backPrev == -1;
+            assert backPrevs[optCur] == 0 || backPrevs[optCur] == -1;
 
-            if (opts[optCur].backPrev == 0)
-                opts[optCur].state.updateShortRep();
+            if (backPrevs[optCur] == 0)
+                curState.updateShortRep();
             else
-                opts[optCur].state.updateLiteral();
+                curState.updateLiteral();
 
-            System.arraycopy(opts[optPrev].reps, 0,
-                             opts[optCur].reps, 0, REPS);
+            System.arraycopy(optReps, optPrev * REPS,
+                             optReps, curReps, REPS);
         } else {
             int back;
-            if (opts[optCur].prev1IsLiteral && opts[optCur].hasPrev2) {
-                optPrev = opts[optCur].optPrev2;
-                back = opts[optCur].backPrev2;
-                opts[optCur].state.updateLongRep();
+            if (prev1IsLiteral[optCur] && hasPrev2[optCur]) {
+                optPrev = optPrevs2[optCur];
+                back = backPrevs2[optCur];
+                curState.updateLongRep();
             } else {
-                back = opts[optCur].backPrev;
+                back = backPrevs[optCur];
                 if (back < REPS)
-                    opts[optCur].state.updateLongRep();
+                    curState.updateLongRep();
                 else
-                    opts[optCur].state.updateMatch();
+                    curState.updateMatch();
             }
 
+            int prevReps = optPrev * REPS;
+
             if (back < REPS) {
-                opts[optCur].reps[0] = opts[optPrev].reps[back];
+                optReps[curReps] = optReps[prevReps + back];
 
                 int rep;
                 for (rep = 1; rep <= back; ++rep)
-                    opts[optCur].reps[rep] = opts[optPrev].reps[rep - 1];
+                    optReps[curReps + rep] = optReps[prevReps + rep - 1];
 
                 for (; rep < REPS; ++rep)
-                    opts[optCur].reps[rep] = opts[optPrev].reps[rep];
+                    optReps[curReps + rep] = optReps[prevReps + rep];
             } else {
-                opts[optCur].reps[0] = back - REPS;
-                System.arraycopy(opts[optPrev].reps, 0,
-                                 opts[optCur].reps, 1, REPS - 1);
+                optReps[curReps] = back - REPS;
+                System.arraycopy(optReps, prevReps,
+                                 optReps, curReps + 1, REPS - 1);
             }
         }
+
+        states[optCur] = curState.get();
     }
 
     /**
@@ -374,25 +450,24 @@ final class LZMAEncoderNormal extends LZMAEncoder {
         boolean nextIsByte = false;
 
         int curByte = lz.getByte(0);
-        int matchByte = lz.getByte(opts[optCur].reps[0] + 1);
+        int matchByte = lz.getByte(optReps[optCur * REPS] + 1);
 
         // Try a literal.
-        int literalPrice = opts[optCur].price
+        int literalPrice = prices[optCur]
                 + literalEncoder.getPrice(curByte, matchByte, lz.getByte(1),
-                                          pos, opts[optCur].state);
-        if (literalPrice < opts[optCur + 1].price) {
-            opts[optCur + 1].set1(literalPrice, optCur, -1);
+                                          pos, curState);
+        if (literalPrice < prices[optCur + 1]) {
+            set1(optCur + 1, literalPrice, optCur, -1);
             nextIsByte = true;
         }
 
         // Try a short rep.
-        if (matchByte == curByte && (opts[optCur + 1].optPrev == optCur
-                                      || opts[optCur + 1].backPrev != 0)) {
+        if (matchByte == curByte && (optPrevs[optCur + 1] == optCur
+                                      || backPrevs[optCur + 1] != 0)) {
             int shortRepPrice = getShortRepPrice(anyRepPrice,
-                                                 opts[optCur].state,
-                                                 posState);
-            if (shortRepPrice <= opts[optCur + 1].price) {
-                opts[optCur + 1].set1(shortRepPrice, optCur, 0);
+                                                 curState, posState);
+            if (shortRepPrice <= prices[optCur + 1]) {
+                set1(optCur + 1, shortRepPrice, optCur, 0);
                 nextIsByte = true;
             }
         }
@@ -401,10 +476,10 @@ final class LZMAEncoderNormal extends LZMAEncoder {
         // try literal + long rep0.
         if (!nextIsByte && matchByte != curByte && avail > MATCH_LEN_MIN) {
             int lenLimit = Math.min(niceLen, avail - 1);
-            int len = lz.getMatchLen(1, opts[optCur].reps[0], lenLimit);
+            int len = lz.getMatchLen(1, optReps[optCur * REPS], lenLimit);
 
             if (len >= MATCH_LEN_MIN) {
-                nextState.set(opts[optCur].state);
+                nextState.set(curState);
                 nextState.updateLiteral();
                 int nextPosState = (pos + 1) & posMask;
                 int price = literalPrice
@@ -413,10 +488,10 @@ final class LZMAEncoderNormal extends LZMAEncoder {
 
                 int i = optCur + 1 + len;
                 while (optEnd < i)
-                    opts[++optEnd].reset();
+                    resetPrice(++optEnd);
 
-                if (price < opts[i].price)
-                    opts[i].set2(price, optCur, 0);
+                if (price < prices[i])
+                    set2(i, price, optCur, 0);
             }
         }
     }
@@ -430,35 +505,35 @@ final class LZMAEncoderNormal extends LZMAEncoder {
         int lenLimit = Math.min(avail, niceLen);
 
         for (int rep = 0; rep < REPS; ++rep) {
-            int len = lz.getMatchLen(opts[optCur].reps[rep], lenLimit);
+            int len = lz.getMatchLen(optReps[optCur * REPS + rep], lenLimit);
             if (len < MATCH_LEN_MIN)
                 continue;
 
             while (optEnd < optCur + len)
-                opts[++optEnd].reset();
+                resetPrice(++optEnd);
 
             int longRepPrice = getLongRepPrice(anyRepPrice, rep,
-                                               opts[optCur].state, posState);
+                                               curState, posState);
 
             for (int i = len; i >= MATCH_LEN_MIN; --i) {
                 int price = longRepPrice
                             + repLenEncoder.getPrice(i, posState);
-                if (price < opts[optCur + i].price)
-                    opts[optCur + i].set1(price, optCur, rep);
+                if (price < prices[optCur + i])
+                    set1(optCur + i, price, optCur, rep);
             }
 
             if (rep == 0)
                 startLen = len + 1;
 
             int len2Limit = Math.min(niceLen, avail - len - 1);
-            int len2 = lz.getMatchLen(len + 1, opts[optCur].reps[rep],
+            int len2 = lz.getMatchLen(len + 1, optReps[optCur * REPS + rep],
                                       len2Limit);
 
             if (len2 >= MATCH_LEN_MIN) {
                 // Rep
                 int price = longRepPrice
                             + repLenEncoder.getPrice(len, posState);
-                nextState.set(opts[optCur].state);
+                nextState.set(curState);
                 nextState.updateLongRep();
 
                 // Literal
@@ -476,10 +551,10 @@ final class LZMAEncoderNormal extends LZMAEncoder {
 
                 int i = optCur + len + 1 + len2;
                 while (optEnd < i)
-                    opts[++optEnd].reset();
+                    resetPrice(++optEnd);
 
-                if (price < opts[i].price)
-                    opts[i].set3(price, optCur, rep, len, 0);
+                if (price < prices[i])
+                    set3(i, price, optCur, rep, len, 0);
             }
         }
 
@@ -492,7 +567,7 @@ final class LZMAEncoderNormal extends LZMAEncoder {
     private void calcNormalMatchPrices(int pos, int posState, int avail,
                                        int anyMatchPrice, int startLen) {
         // If the longest match is so long that it would not fit into
-        // the opts array, shorten the matches.
+        // the opts arrays, shorten the matches.
         if (matches.len[matches.count - 1] > avail) {
             matches.count = 0;
             while (matches.len[matches.count] < avail)
@@ -505,10 +580,9 @@ final class LZMAEncoderNormal extends LZMAEncoder {
             return;
 
         while (optEnd < optCur + matches.len[matches.count - 1])
-            opts[++optEnd].reset();
+            resetPrice(++optEnd);
 
-        int normalMatchPrice = getNormalMatchPrice(anyMatchPrice,
-                                                   opts[optCur].state);
+        int normalMatchPrice = getNormalMatchPrice(anyMatchPrice, curState);
 
         int match = 0;
         while (startLen > matches.len[match])
@@ -521,9 +595,8 @@ final class LZMAEncoderNormal extends LZMAEncoder {
             // possible distance.
             int matchAndLenPrice = getMatchAndLenPrice(normalMatchPrice,
                                                        dist, len, posState);
-            if (matchAndLenPrice < opts[optCur + len].price)
-                opts[optCur + len].set1(matchAndLenPrice,
-                                        optCur, dist + REPS);
+            if (matchAndLenPrice < prices[optCur + len])
+                set1(optCur + len, matchAndLenPrice, optCur, dist + REPS);
 
             if (len != matches.len[match])
                 continue;
@@ -533,7 +606,7 @@ final class LZMAEncoderNormal extends LZMAEncoder {
             int len2 = lz.getMatchLen(len + 1, dist, len2Limit);
 
             if (len2 >= MATCH_LEN_MIN) {
-                nextState.set(opts[optCur].state);
+                nextState.set(curState);
                 nextState.updateMatch();
 
                 // Literal
@@ -553,10 +626,10 @@ final class LZMAEncoderNormal extends LZMAEncoder {
 
                 int i = optCur + len + 1 + len2;
                 while (optEnd < i)
-                    opts[++optEnd].reset();
+                    resetPrice(++optEnd);
 
-                if (price < opts[i].price)
-                    opts[i].set3(price, optCur, dist + REPS, len, 0);
+                if (price < prices[i])
+                    set3(i, price, optCur, dist + REPS, len, 0);
             }
 
             if (++match == matches.count)
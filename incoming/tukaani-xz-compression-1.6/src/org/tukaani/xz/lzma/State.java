@@ -48,6 +48,10 @@ final class State {
         state = other.state;
     }
 
+    void set(int newState) {
+        state = newState;
+    }
+
     void updateLiteral() {
         if (state <= SHORTREP_LIT_LIT)
             state = LIT_LIT;
@@ -19,7 +19,7 @@ public abstract class RangeDecoder extends RangeCoder {
 
     public abstract void normalize() throws IOException;
 
-    public int decodeBit(short[] probs, int index) throws IOException {
+    public final int decodeBit(short[] probs, int index) throws IOException {
         normalize();
 
         int prob = probs[index];
@@ -42,7 +42,7 @@ public abstract class RangeDecoder extends RangeCoder {
         return bit;
     }
 
-    public int decodeBitTree(short[] probs) throws IOException {
+    public final int decodeBitTree(short[] probs) throws IOException {
         int symbol = 1;
 
         do {
@@ -52,7 +52,7 @@ public abstract class RangeDecoder extends RangeCoder {
         return symbol - probs.length;
     }
 
-    public int decodeReverseBitTree(short[] probs) throws IOException {
+    public final int decodeReverseBitTree(short[] probs) throws IOException {
         int symbol = 1;
         int i = 0;
         int result = 0;
@@ -66,7 +66,7 @@ public abstract class RangeDecoder extends RangeCoder {
         return result;
     }
 
-    public int decodeDirectBits(int count) throws IOException {
+    public final int decodeDirectBits(int count) throws IOException {
         int result = 0;
 
         do {
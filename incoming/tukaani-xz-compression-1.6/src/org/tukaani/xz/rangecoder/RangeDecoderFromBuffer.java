@@ -12,6 +12,7 @@ package org.tukaani.xz.rangecoder;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import org.tukaani.xz.ArrayCache;
 import org.tukaani.xz.CorruptedInputException;
 
 public final class RangeDecoderFromBuffer extends RangeDecoder {
@@ -21,8 +22,12 @@ public final class RangeDecoderFromBuffer extends RangeDecoder {
     private int pos = 0;
     private int end = 0;
 
-    public RangeDecoderFromBuffer(int inputSizeMax) {
-        buf = new byte[inputSizeMax - INIT_SIZE];
+    public RangeDecoderFromBuffer(int inputSizeMax, ArrayCache arrayCache) {
+        buf = arrayCache.getByteArray(inputSizeMax - INIT_SIZE, false);
+    }
+
+    public void putArraysToCache(ArrayCache arrayCache) {
+        arrayCache.putArray(buf);
     }
 
     public void prepareInputBuffer(DataInputStream in, int len)
@@ -51,14 +56,13 @@ public final class RangeDecoderFromBuffer extends RangeDecoder {
 
     public void normalize() throws IOException {
         if ((range & TOP_MASK) == 0) {
-            try {
-                // If the input is corrupt, this might throw
-                // ArrayIndexOutOfBoundsException.
-                code = (code << SHIFT_BITS) | (buf[pos++] & 0xFF);
-                range <<= SHIFT_BITS;
-            } catch (ArrayIndexOutOfBoundsException e) {
+            // The array may be bigger than the input, so reading past
+            // the end has to be checked explicitly.
+            if (pos == end)
                 throw new CorruptedInputException();
-            }
+
+            code = (code << SHIFT_BITS) | (buf[pos++] & 0xFF);
+            range <<= SHIFT_BITS;
         }
     }
 }
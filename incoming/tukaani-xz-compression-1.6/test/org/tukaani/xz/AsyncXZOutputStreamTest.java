@@ -0,0 +1,120 @@
+/*
+ * AsyncXZOutputStreamTest
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz;
+
+import java.io.*;
+
+/**
+ * Checks that the background thread of AsyncXZOutputStream exits when
+ * the stream is finished without closing it or when the stream is
+ * abandoned, and that an interrupted wait keeps the interrupt status.
+ */
+class AsyncXZOutputStreamTest {
+    private static final String THREAD_NAME = "XZ encoder";
+    private static final int BUFFER_SIZE = 64 << 10;
+
+    /**
+     * Output stream whose write blocks between calls to block()
+     * and unblock().
+     */
+    private static class BlockingOutput extends ByteArrayOutputStream {
+        private boolean blocked = false;
+
+        public synchronized void write(byte[] buf, int off, int len) {
+            while (blocked) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e.toString());
+                }
+            }
+
+            super.write(buf, off, len);
+        }
+
+        synchronized void block() {
+            blocked = true;
+        }
+
+        synchronized void unblock() {
+            blocked = false;
+            notifyAll();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        byte[] data = TestData.getText(1 << 20, 7);
+
+        // Finish without closing.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsyncXZOutputStream async = new AsyncXZOutputStream(
+                new XZOutputStream(out, new LZMA2Options(1)),
+                BUFFER_SIZE, 2);
+        async.write(data);
+        async.finish();
+        waitForExit("finish()");
+        TestData.checkDecompress(out.toByteArray(), data);
+
+        // Abandon after filling a few buffers.
+        async = new AsyncXZOutputStream(
+                new XZOutputStream(new ByteArrayOutputStream(),
+                                   new LZMA2Options(1)),
+                BUFFER_SIZE, 2);
+        async.write(data, 0, 3 * BUFFER_SIZE + 1);
+        waitForExit("abandoning the stream");
+
+        // Interrupt the writing thread while it waits in flush().
+        BlockingOutput blocking = new BlockingOutput();
+        async = new AsyncXZOutputStream(
+                new XZOutputStream(blocking, new LZMA2Options(1)),
+                BUFFER_SIZE, 2);
+        blocking.block();
+        async.write(data, 0, BUFFER_SIZE);
+        Thread.currentThread().interrupt();
+
+        try {
+            async.flush();
+            throw new RuntimeException("flush() wasn't interrupted");
+        } catch (XZIOException e) {
+            if (!Thread.interrupted())
+                throw new RuntimeException("Interrupt status was lost");
+        }
+
+        blocking.unblock();
+        async.close();
+        waitForExit("close()");
+    }
+
+    /**
+     * Waits up to ten seconds for the background threads to exit.
+     */
+    private static void waitForExit(String what) throws InterruptedException {
+        for (int i = 0; i < 1000; ++i) {
+            if (!isRunning())
+                return;
+
+            Thread.sleep(10);
+        }
+
+        throw new RuntimeException("The background thread didn't exit after "
+                                   + what);
+    }
+
+    private static boolean isRunning() {
+        Thread[] threads = new Thread[Thread.activeCount() + 10];
+        int count = Thread.enumerate(threads);
+
+        for (int i = 0; i < count; ++i)
+            if (threads[i].getName().equals(THREAD_NAME))
+                return true;
+
+        return false;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * LZMA2StoreTest
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz;
+
+import java.io.*;
+import java.util.Random;
+
+/**
+ * Checks that compressible data following incompressible data gets
+ * compressed. LZMA2OutputStream stores chunks uncompressed without
+ * encoding them when a trial at the beginning of the chunk doesn't
+ * compress, and the stored run must not swallow much of the data
+ * that comes after it.
+ */
+class LZMA2StoreTest {
+    private static final int RANDOM_SIZE = 1 << 20;
+    private static final int TEXT_SIZE = 658 << 10;
+
+    /**
+     * At most one stored chunk of compressible data is allowed,
+     * plus a little for the chunk headers.
+     */
+    private static final int SLACK = (64 << 10) + 1024;
+
+    public static void main(String[] args) throws IOException {
+        byte[] random = new byte[RANDOM_SIZE];
+        new Random(1).nextBytes(random);
+        byte[] text = TestData.getText(TEXT_SIZE, 2);
+
+        byte[] both = new byte[RANDOM_SIZE + TEXT_SIZE];
+        System.arraycopy(random, 0, both, 0, RANDOM_SIZE);
+        System.arraycopy(text, 0, both, RANDOM_SIZE, TEXT_SIZE);
+
+        for (int preset = 0; preset <= 6; preset += 6) {
+            LZMA2Options options = new LZMA2Options(preset);
+            long expected = TestData.compress(random, options).length
+                            + TestData.compress(text, options).length;
+            byte[] compressed = TestData.compress(both, options);
+
+            if (compressed.length > expected + SLACK)
+                throw new RuntimeException("Preset " + preset + ": "
+                        + compressed.length + " bytes, expected at most "
+                        + (expected + SLACK));
+
+            TestData.checkDecompress(compressed, both);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * PrefetchInputStreamTest
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Checks that the background thread of PrefetchInputStream is started
+ * by the first read, that it exits when the stream is abandoned, and
+ * that close() doesn't close the underlying stream in the middle of
+ * a read.
+ */
+class PrefetchInputStreamTest {
+    private static final String THREAD_NAME = "XZ input prefetcher";
+    private static final int BUFFER_SIZE = 1024;
+    private static final int BUFFER_COUNT = 4;
+
+    /**
+     * Input stream whose second read blocks until it is released.
+     */
+    private static class SlowInput extends InputStream {
+        private int reads = 0;
+        private boolean reading = false;
+        private boolean released = false;
+        private boolean closed = false;
+        private boolean closedDuringRead = false;
+
+        public int read() {
+            throw new UnsupportedOperationException();
+        }
+
+        public synchronized int read(byte[] buf, int off, int len) {
+            if (++reads == 1)
+                return len;
+
+            reading = true;
+            notifyAll();
+
+            while (!released) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e.toString());
+                }
+            }
+
+            reading = false;
+            return -1;
+        }
+
+        synchronized void waitForRead() throws InterruptedException {
+            while (!reading)
+                wait();
+        }
+
+        void release() {
+            synchronized (this) {
+                released = true;
+                notifyAll();
+            }
+        }
+
+        // A blocked read waits without holding the lock, so
+        // this can see whether a read is in progress.
+        public synchronized void close() {
+            closedDuringRead = reading;
+            closed = true;
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        synchronized boolean isClosedDuringRead() {
+            return closedDuringRead;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        byte[] data = TestData.getText(BUFFER_SIZE * BUFFER_COUNT * 8, 9);
+
+        // The thread must not be started before the first read.
+        PrefetchInputStream in = new PrefetchInputStream(
+                new ByteArrayInputStream(data), BUFFER_SIZE, BUFFER_COUNT);
+        if (isRunning())
+            throw new RuntimeException("The background thread was started "
+                                       + "before reading");
+
+        // Read everything in small pieces so that the thread has to be
+        // started again several times.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[100];
+        int size;
+        while ((size = in.read(buf, 0, buf.length)) != -1) {
+            out.write(buf, 0, size);
+            Thread.yield();
+        }
+
+        if (!Arrays.equals(out.toByteArray(), data))
+            throw new RuntimeException("Read data differs");
+
+        waitForExit("the end of the input");
+        in.close();
+
+        // Abandon after reading one byte.
+        in = new PrefetchInputStream(new ByteArrayInputStream(data),
+                                     BUFFER_SIZE, BUFFER_COUNT);
+        in.read();
+        waitForExit("abandoning the stream");
+
+        // Close while the background thread is reading.
+        SlowInput slow = new SlowInput();
+        final PrefetchInputStream prefetch = new PrefetchInputStream(
+                slow, BUFFER_SIZE, BUFFER_COUNT);
+        prefetch.read();
+        slow.waitForRead();
+
+        Thread closer = new Thread() {
+            public void run() {
+                try {
+                    prefetch.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e.toString());
+                }
+            }
+        };
+        closer.start();
+        closer.join(200);
+
+        if (slow.isClosed())
+            throw new RuntimeException("close() didn't wait for the read");
+
+        slow.release();
+        closer.join();
+
+        if (!slow.isClosed() || slow.isClosedDuringRead())
+            throw new RuntimeException("The underlying stream was closed "
+                                       + "incorrectly");
+
+        waitForExit("close()");
+    }
+
+    /**
+     * Waits up to ten seconds for the background threads to exit.
+     */
+    private static void waitForExit(String what) throws InterruptedException {
+        for (int i = 0; i < 1000; ++i) {
+            if (!isRunning())
+                return;
+
+            Thread.sleep(10);
+        }
+
+        throw new RuntimeException("The background thread didn't exit after "
+                                   + what);
+    }
+
+    private static boolean isRunning() {
+        Thread[] threads = new Thread[Thread.activeCount() + 10];
+        int count = Thread.enumerate(threads);
+
+        for (int i = 0; i < count; ++i)
+            if (threads[i].getName().equals(THREAD_NAME))
+                return true;
+
+        return false;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * PrimedDictionaryTest
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Checks that compressing with a PrimedDictionary gives the same output
+ * as compressing with the same bytes given to setPresetDict(byte[]).
+ * The presets 0 and 1 use a non-default depth limit, which changes how
+ * BT4 processes the preset dictionary.
+ */
+class PrimedDictionaryTest {
+    private static final int DICT_SIZE = 64 << 10;
+    private static final int PRESET_DICT_SIZE = 32 << 10;
+    private static final int MESSAGE_SIZE = 4 << 10;
+    private static final int MESSAGES = 20;
+
+    private static final int[] MATCH_FINDERS = {
+            LZMA2Options.MF_HC4, LZMA2Options.MF_BT4, LZMA2Options.MF_HB4 };
+
+    public static void main(String[] args) throws IOException {
+        byte[] dict = TestData.getText(PRESET_DICT_SIZE, 3);
+        byte[][] messages = new byte[MESSAGES][];
+        for (int i = 0; i < MESSAGES; ++i)
+            messages[i] = TestData.getText(MESSAGE_SIZE, 100 + i);
+
+        for (int preset = 0; preset <= 6; ++preset) {
+            for (int i = 0; i < MATCH_FINDERS.length; ++i) {
+                LZMA2Options options = new LZMA2Options(preset);
+
+                // MF_HB4 supports only MODE_FAST.
+                if (MATCH_FINDERS[i] == LZMA2Options.MF_HB4
+                        && options.getMode() == LZMA2Options.MODE_NORMAL)
+                    continue;
+
+                options.setDictSize(DICT_SIZE);
+                options.setMatchFinder(MATCH_FINDERS[i]);
+
+                check(preset, options, dict, messages);
+
+                // A different depth limit makes the encoders ignore
+                // the saved state, and the output must still be the same.
+                LZMA2Options primeOptions = (LZMA2Options)options.clone();
+                primeOptions.setDepthLimit(options.getDepthLimit() + 1);
+                check(preset, options, dict, messages, primeOptions);
+            }
+        }
+    }
+
+    private static void check(int preset, LZMA2Options options, byte[] dict,
+                              byte[][] messages) throws IOException {
+        check(preset, options, dict, messages, options);
+    }
+
+    private static void check(int preset, LZMA2Options options, byte[] dict,
+                              byte[][] messages, LZMA2Options primeOptions)
+            throws IOException {
+        LZMA2Options plain = (LZMA2Options)options.clone();
+        plain.setPresetDict(dict);
+
+        LZMA2Options primed = (LZMA2Options)options.clone();
+        primed.setPrimedDict(new PrimedDictionary(dict, primeOptions));
+
+        for (int i = 0; i < messages.length; ++i) {
+            byte[] expected = compress(messages[i], plain);
+            byte[] compressed = compress(messages[i], primed);
+
+            if (!Arrays.equals(compressed, expected))
+                throw new RuntimeException("Preset " + preset
+                        + ", match finder " + options.getMatchFinder()
+                        + ", depth limit " + primeOptions.getDepthLimit()
+                        + ": message " + i + " differs");
+        }
+    }
+
+    private static byte[] compress(byte[] in, LZMA2Options options)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FinishableOutputStream lzma2 = options.getOutputStream(
+                new FinishableWrapperOutputStream(out));
+        lzma2.write(in);
+        lzma2.finish();
+        return out.toByteArray();
+    }
+}
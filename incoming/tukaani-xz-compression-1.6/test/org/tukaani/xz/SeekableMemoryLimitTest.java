@@ -0,0 +1,190 @@
+/*
+ * SeekableMemoryLimitTest
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Checks that SeekableXZInputStream doesn't decompress whole Blocks into
+ * RAM when they don't fit within the memory usage limit, neither with
+ * worker threads nor with a BlockCache. Such Blocks must be decompressed
+ * as a stream, so reading the first byte of a Block must not read all
+ * of its compressed data. The memory usage of the decoders of
+ * the worker threads must be counted too.
+ */
+class SeekableMemoryLimitTest {
+    private static final int SMALL_SIZE = 64 << 10;
+    private static final int BIG_SIZE = 2 << 20;
+    private static final int BIG_BLOCK = 1;
+
+    /**
+     * Big enough for the LZMA2 decoder of preset 0 and for a small
+     * Block but not for the big Block.
+     */
+    private static final int MEMORY_LIMIT = 1024;
+
+    /**
+     * Big enough for one small Block and its LZMA2 decoder of preset 0
+     * (about 360 KiB) but not for two.
+     */
+    private static final int DECODER_MEMORY_LIMIT = 700;
+
+    /**
+     * Seekable stream that reads from a byte array and counts
+     * the bytes that have been read.
+     */
+    private static class CountingInput extends SeekableInputStream {
+        private final byte[] buf;
+        private int pos = 0;
+        long count = 0;
+
+        CountingInput(byte[] buf) {
+            this.buf = buf;
+        }
+
+        public int read() {
+            if (pos == buf.length)
+                return -1;
+
+            ++count;
+            return buf[pos++] & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+
+            if (pos == buf.length)
+                return -1;
+
+            len = Math.min(len, buf.length - pos);
+            System.arraycopy(buf, pos, b, off, len);
+            pos += len;
+            count += len;
+            return len;
+        }
+
+        public long length() {
+            return buf.length;
+        }
+
+        public long position() {
+            return pos;
+        }
+
+        public void seek(long pos) {
+            this.pos = (int)Math.min(pos, buf.length);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int[] sizes = { SMALL_SIZE, BIG_SIZE, SMALL_SIZE, SMALL_SIZE };
+        int total = 0;
+        for (int i = 0; i < sizes.length; ++i)
+            total += sizes[i];
+
+        byte[] data = TestData.getText(total, 4);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XZOutputStream xz = new XZOutputStream(out, new LZMA2Options(0));
+        int pos = 0;
+        for (int i = 0; i < sizes.length; ++i) {
+            xz.write(data, pos, sizes[i]);
+            xz.endBlock();
+            pos += sizes[i];
+        }
+
+        xz.finish();
+        byte[] compressed = out.toByteArray();
+
+        check(compressed, data, MEMORY_LIMIT, 2, false, false);
+        check(compressed, data, -1, 2, false, true);
+        check(compressed, data, MEMORY_LIMIT, 0, true, false);
+        check(compressed, data, -1, 0, true, true);
+
+        checkDecoderMemory(compressed, data, sizes.length - 2);
+    }
+
+    private static void check(byte[] compressed, byte[] expected,
+                              int memoryLimit, int threads, boolean cache,
+                              boolean wholeBlock) throws IOException {
+        CountingInput counter = new CountingInput(compressed);
+        SeekableXZInputStream in = new SeekableXZInputStream(counter,
+                                                             memoryLimit);
+        try {
+            in.setDecoderThreads(threads);
+            if (cache)
+                in.setBlockCache(new BlockCache(Long.MAX_VALUE));
+
+            // Reading the first byte of the big Block reads all of its
+            // compressed data only if the whole Block is decompressed.
+            long compSize = in.getBlockCompSize(BIG_BLOCK);
+            in.seek(in.getBlockPos(BIG_BLOCK));
+            counter.count = 0;
+            in.read();
+
+            if ((counter.count >= compSize) != wholeBlock)
+                throw new RuntimeException("Memory usage limit "
+                        + memoryLimit + ", " + threads + " threads, "
+                        + (cache ? "cache" : "no cache") + ": "
+                        + counter.count + " bytes read from a Block of "
+                        + compSize + " bytes");
+
+            in.seek(0);
+            byte[] buf = new byte[expected.length];
+            new DataInputStream(in).readFully(buf);
+
+            if (!Arrays.equals(buf, expected))
+                throw new RuntimeException("Decompressed data differs");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the first byte of the given small Block with two worker
+     * threads. The next small Block must not be read ahead because
+     * the two decoders don't fit within the limit.
+     */
+    private static void checkDecoderMemory(byte[] compressed,
+                                           byte[] expected, int block)
+            throws IOException {
+        CountingInput counter = new CountingInput(compressed);
+        SeekableXZInputStream in = new SeekableXZInputStream(
+                counter, DECODER_MEMORY_LIMIT);
+        try {
+            in.setDecoderThreads(2);
+
+            long compSize = in.getBlockCompSize(block)
+                            + in.getBlockCompSize(block + 1);
+            long pos = in.getBlockPos(block);
+            in.seek(pos);
+            counter.count = 0;
+            in.read();
+
+            if (counter.count >= compSize)
+                throw new RuntimeException("Memory usage limit "
+                        + DECODER_MEMORY_LIMIT + ": " + counter.count
+                        + " bytes read from two Blocks of " + compSize
+                        + " bytes");
+
+            in.seek(pos);
+            byte[] buf = new byte[expected.length - (int)pos];
+            new DataInputStream(in).readFully(buf);
+
+            for (int i = 0; i < buf.length; ++i)
+                if (buf[i] != expected[(int)pos + i])
+                    throw new RuntimeException("Decompressed data differs");
+        } finally {
+            in.close();
+        }
+    }
+}
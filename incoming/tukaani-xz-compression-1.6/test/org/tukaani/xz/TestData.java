@@ -0,0 +1,78 @@
+/*
+ * TestData
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Helpers shared by the tests
+ */
+class TestData {
+    private TestData() {}
+
+    /**
+     * Generates text-like data from a fixed vocabulary. The same seed
+     * always gives the same data.
+     */
+    static byte[] getText(int size, long seed) {
+        Random r = new Random(seed);
+        byte[][] words = new byte[2000][];
+        for (int i = 0; i < words.length; ++i) {
+            words[i] = new byte[2 + r.nextInt(9)];
+            for (int j = 0; j < words[i].length; ++j)
+                words[i][j] = (byte)('a' + r.nextInt(26));
+        }
+
+        byte[] buf = new byte[size];
+        int pos = 0;
+        while (pos < size) {
+            // Zipf-like choice so that some words are much more common.
+            byte[] word = words[(int)(words.length
+                                      * Math.pow(r.nextDouble(), 3))];
+            int n = Math.min(word.length, size - pos);
+            System.arraycopy(word, 0, buf, pos, n);
+            pos += n;
+
+            if (pos < size)
+                buf[pos++] = (byte)(r.nextInt(12) == 0 ? '\n' : ' ');
+        }
+
+        return buf;
+    }
+
+    /**
+     * Compresses <code>in</code> into a single-Stream .xz file.
+     */
+    static byte[] compress(byte[] in, FilterOptions options)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XZOutputStream xz = new XZOutputStream(out, options);
+        xz.write(in);
+        xz.finish();
+        return out.toByteArray();
+    }
+
+    /**
+     * Decompresses a .xz file and throws if the result isn't
+     * equal to <code>expected</code>.
+     */
+    static void checkDecompress(byte[] compressed, byte[] expected)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new XZInputStream(
+                new ByteArrayInputStream(compressed)));
+        byte[] buf = new byte[expected.length];
+        in.readFully(buf);
+
+        if (in.read() != -1 || !Arrays.equals(buf, expected))
+            throw new RuntimeException("Decompressed data differs");
+    }
+}
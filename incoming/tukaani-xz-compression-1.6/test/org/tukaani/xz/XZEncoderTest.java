@@ -0,0 +1,92 @@
+/*
+ * XZEncoderTest
+ *
+ * Author: Lasse Collin <lasse.collin@tukaani.org>
+ *
+ * This file has been put into the public domain.
+ * You can do whatever you want with this file.
+ */
+
+package org.tukaani.xz;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+
+/**
+ * Runs the usage example from the XZEncoder class documentation with
+ * a destination buffer that is much smaller than the compressed output.
+ * Output is then pending after most calls, which leaves input in
+ * the source buffer when the input channel reaches its end.
+ */
+class XZEncoderTest {
+    private static final int SRC_SIZE = 64 << 10;
+    private static final int DST_SIZE = 512;
+
+    public static void main(String[] args) throws IOException {
+        byte[] random = new byte[300 << 10];
+        new Random(6).nextBytes(random);
+
+        check(TestData.getText(1 << 20, 5), false);
+        check(random, false);
+        check(random, true);
+    }
+
+    private static void check(byte[] data, boolean direct)
+            throws IOException {
+        ReadableByteChannel inChannel = Channels.newChannel(
+                new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel outChannel = Channels.newChannel(out);
+
+        // This is the example from the documentation, except for
+        // the buffer sizes and types.
+        XZEncoder enc = new XZEncoder(new LZMA2Options());
+        ByteBuffer src = direct ? ByteBuffer.allocateDirect(SRC_SIZE)
+                                : ByteBuffer.allocate(SRC_SIZE);
+        ByteBuffer dst = ByteBuffer.allocate(DST_SIZE);
+
+        while (inChannel.read(src) != -1) {
+            src.flip();
+            enc.encode(src, dst);
+            src.compact();
+
+            dst.flip();
+            outChannel.write(dst);
+            dst.compact();
+        }
+
+        src.flip();
+        while (src.hasRemaining()) {
+            enc.encode(src, dst);
+
+            dst.flip();
+            outChannel.write(dst);
+            dst.compact();
+        }
+
+        while (true) {
+            boolean done = enc.finish(dst);
+
+            dst.flip();
+            outChannel.write(dst);
+            dst.compact();
+
+            if (done)
+                break;
+        }
+
+        enc.close();
+
+        if (enc.getTotalIn() != data.length
+                || enc.getTotalOut() != out.size())
+            throw new RuntimeException("Wrong totals: " + enc.getTotalIn()
+                                       + " in, " + enc.getTotalOut()
+                                       + " out");
+
+        TestData.checkDecompress(out.toByteArray(), data);
+    }
+}